@@ -0,0 +1,525 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.ngram.NGramKeyPacker;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+
+
+/**
+ * Counts ngrams of orders 1 through N in a bounded amount of memory, so that corpora larger than the heap can be counted.
+ *
+ * Counts accumulate in one {@link NGramCountTable} per order.
+ * When the tables together hold the configured number of distinct ngrams, they are sorted and spilled to a run file in the temporary directory and emptied.
+ * {@link #write(File)} spills what remains and merges the runs into a single sorted count file, summing the counts of ngrams that appear in several runs.
+ * At most {@link #MERGE_FAN_IN} runs are open at once; when there are more, groups of runs are first merged into larger runs.
+ *
+ * A count file is a sequence of records sorted by order and then by packed key, each record being the order as a byte,
+ * the word ids packed into longs with a {@link NGramKeyPacker} of {@link #BITS_PER_WORD} bits per word, and the count as a long.
+ * Read it back with {@link CountReader} or {@link #readCounts(File, int)}.
+ *
+ * Word ids are whatever the enumerators assign; enumerate every part of a corpus with the same {@link Vocabulary} so that the ids agree.
+ *
+ * @author romanows
+ */
+public class ExternalNGramCount {
+
+	/** Bits per word of the packed keys; any non-negative word id fits, since the vocabulary size is not known until counting is done */
+	public static final int BITS_PER_WORD = NGramKeyPacker.MAX_BITS_PER_WORD;
+
+	/** Maximum number of runs merged at once */
+	public static final int MERGE_FAN_IN = 64;
+
+	/** Bytes buffered for each run file that is read or written */
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	/** Highest order counted */
+	private final int order;
+
+	/** Number of distinct ngrams held in memory before spilling a run */
+	private final int bufferNGrams;
+
+	/** Directory that holds the run files, or null for the system default */
+	private final File tempDirectory;
+
+	/** In-memory counts; index 0 holds unigrams.  Their keys are packed as in the count file, and are never widened, so they are written as they are. */
+	private final NGramCountTable [] tables;
+
+	/** Run files spilled and not yet merged */
+	private final List<File> runs = new ArrayList<File>();
+
+
+	/**
+	 * Constructor.
+	 * @param order highest order of ngrams to count, e.g. "3" for trigrams
+	 * @param bufferNGrams number of distinct ngrams, over all orders, held in memory before they are spilled to disk
+	 * @param tempDirectory directory for the temporary run files, or null for the system default
+	 */
+	public ExternalNGramCount(int order, int bufferNGrams, File tempDirectory) {
+		if(order < 1 || bufferNGrams < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.order = order;
+		this.bufferNGrams = bufferNGrams;
+		this.tempDirectory = tempDirectory;
+
+		tables = new NGramCountTable[order];
+		for(int n=1; n<=order; n++) {
+			tables[n-1] = new NGramCountTable(n, BITS_PER_WORD, 0);
+		}
+	}
+
+
+	/**
+	 * Count all ngrams of an enumerator, up to this counter's order.
+	 * @param ngrams enumerator; its {@link NGramEnumerator#idIterator()} is consumed
+	 */
+	public void add(NGramEnumerator ngrams) {
+		int [] ids = new int[order];
+		for(Iterator<WordIdNGram> it = ngrams.idIterator(); it.hasNext(); ) {
+			WordIdNGram ngram = it.next();
+			if(ngram.size() <= order) {
+				for(int i=0; i<ngram.size(); i++) {
+					ids[i] = ngram.get(i);
+				}
+				add(ids, 0, ngram.size());
+			}
+		}
+	}
+
+
+	/**
+	 * Count one ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram
+	 */
+	public void add(int [] ids, int start, int length) {
+		if(length < 1 || length > order) {
+			throw new IllegalArgumentException("ngram order " + length + " is not in [1," + order + "]");
+		}
+		tables[length-1].increment(ids, start, 1);
+		if(buffered() >= bufferNGrams) {
+			spill();
+		}
+	}
+
+
+	/**
+	 * Get the number of runs spilled to disk and not yet merged.
+	 * @return the number of runs spilled to disk and not yet merged
+	 */
+	public int runCount() {
+		return runs.size();
+	}
+
+
+	/**
+	 * Write the final, sorted counts of every ngram counted so far, then delete the run files.
+	 * The counter is empty afterwards.
+	 * @param countFile destination file
+	 */
+	public void write(File countFile) {
+		if(buffered() > 0 || runs.isEmpty()) {
+			spill();
+		}
+		while(runs.size() > MERGE_FAN_IN) {
+			List<File> group = new ArrayList<File>(runs.subList(0, MERGE_FAN_IN));
+			runs.subList(0, MERGE_FAN_IN).clear();
+			runs.add(merge(group, createRunFile()));
+		}
+		merge(runs, countFile);
+		runs.clear();
+	}
+
+
+	/**
+	 * Read the counts of one order from a count file into a table.
+	 * Convenient for feeding models that take in-memory counts, like {@link com.pwnetics.languagemodel.lm.KneserNeyModFixModel2}, when the counts of that order fit in memory.
+	 * @param countFile count file written by {@link #write(File)}
+	 * @param order order of the ngrams to read
+	 * @return counts of the ngrams of the given order
+	 */
+	public static NGramCountTable readTable(File countFile, int order) {
+		NGramCountTable table = new NGramCountTable(order);
+		CountReader reader = new CountReader(countFile);
+		try {
+			int [] ids = new int[order];
+			while(reader.next()) {
+				if(reader.order() == order) {
+					reader.ids(ids, 0);
+					table.increment(ids, 0, reader.count());
+				} else if(reader.order() > order) {
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return table;
+	}
+
+
+	/**
+	 * Read the counts of one order from a count file, as {@link #readTable(File, int)} does, into an {@link ItemCounter}.
+	 * @param countFile count file written by {@link #write(File)}
+	 * @param order order of the ngrams to read
+	 * @return counts of the ngrams of the given order
+	 * @throws IllegalArgumentException if a count does not fit in an int
+	 */
+	public static ItemCounter<WordIdNGram> readCounts(File countFile, int order) {
+		return readTable(countFile, order).toItemCounter();
+	}
+
+
+	/**
+	 * Get the number of distinct ngrams held in memory.
+	 */
+	private int buffered() {
+		int size = 0;
+		for(NGramCountTable table : tables) {
+			size += table.size();
+		}
+		return size;
+	}
+
+
+	/**
+	 * Write the in-memory counts to a new run file and empty the tables.
+	 */
+	private void spill() {
+		File run = createRunFile();
+		RecordWriter writer = new RecordWriter(run);
+		try {
+			for(NGramCountTable table : tables) {
+				long [] key = new long[table.packer().longsPerKey()];
+				for(int slot : table.sortedSlots()) {
+					for(int j=0; j<key.length; j++) {
+						key[j] = table.key(slot, j);
+					}
+					writer.write(table.order(), key, table.count(slot));
+				}
+				table.clear();
+			}
+		} finally {
+			writer.close();
+		}
+		runs.add(run);
+	}
+
+
+	/**
+	 * Merge sorted runs into one sorted file, summing the counts of equal ngrams, and delete the runs.
+	 * @param sources sorted run files
+	 * @param destination merged file
+	 * @return the destination file
+	 */
+	private static File merge(List<File> sources, File destination) {
+		PriorityQueue<CountReader> queue = new PriorityQueue<CountReader>(Math.max(1, sources.size()), new Comparator<CountReader>() {
+			@Override
+			public int compare(CountReader a, CountReader b) {
+				return a.compareTo(b);
+			}
+		});
+		RecordWriter writer = null;
+		try {
+			for(File source : sources) {
+				CountReader reader = new CountReader(source);
+				if(reader.next()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+
+			writer = new RecordWriter(destination);
+			while(!queue.isEmpty()) {
+				CountReader head = queue.poll();
+				int headOrder = head.order();
+				long [] key = head.key.clone();
+				long count = head.count();
+				advance(head, queue);
+
+				while(!queue.isEmpty() && queue.peek().matches(headOrder, key)) {
+					CountReader same = queue.poll();
+					count += same.count();
+					advance(same, queue);
+				}
+				writer.write(headOrder, key, count);
+			}
+		} finally {
+			for(CountReader reader : queue) {
+				reader.close();
+			}
+			if(writer != null) {
+				writer.close();
+			}
+		}
+
+		for(File source : sources) {
+			if(!source.delete()) {
+				throw new IllegalArgumentException("unable to delete run file " + source);
+			}
+		}
+		return destination;
+	}
+
+
+	/**
+	 * Move a reader to its next record and put it back in the queue, or close it when it is exhausted.
+	 */
+	private static void advance(CountReader reader, PriorityQueue<CountReader> queue) {
+		if(reader.next()) {
+			queue.add(reader);
+		} else {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Create an empty run file in the temporary directory.
+	 */
+	private File createRunFile() {
+		try {
+			File run = File.createTempFile("ngramcount", ".run", tempDirectory);
+			run.deleteOnExit();
+			return run;
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	/**
+	 * Close a stream, wrapping any failure.
+	 */
+	private static void close(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	/**
+	 * Writes count records.
+	 */
+	private static class RecordWriter {
+
+		private final DataOutputStream out;
+
+
+		RecordWriter(File file) {
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+
+		void write(int order, long [] key, long count) {
+			try {
+				out.writeByte(order);
+				for(long k : key) {
+					out.writeLong(k);
+				}
+				out.writeLong(count);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+
+		void close() {
+			ExternalNGramCount.close(out);
+		}
+	}
+
+
+	/**
+	 * Reads the records of a count file in order.
+	 *
+	 * @author romanows
+	 */
+	public static class CountReader implements Closeable {
+
+		private final DataInputStream in;
+
+		/** Packer of each order; index 0 holds the unigram packer */
+		private final List<NGramKeyPacker> packers = new ArrayList<NGramKeyPacker>();
+
+		/** Order of the current record, 0 before the first record */
+		private int order;
+
+		/** Packed key of the current record */
+		private long [] key;
+
+		/** Count of the current record */
+		private long count;
+
+
+		/**
+		 * Constructor.
+		 * @param countFile count file written by {@link ExternalNGramCount#write(File)}
+		 */
+		public CountReader(File countFile) {
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(countFile), BUFFER_BYTES));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+
+		/**
+		 * Move to the next record.
+		 * @return false if there are no more records
+		 */
+		public boolean next() {
+			try {
+				int nextOrder = in.read();
+				if(nextOrder < 0) {
+					return false;
+				}
+				if(nextOrder != order) {
+					order = nextOrder;
+					while(packers.size() < order) {
+						packers.add(new NGramKeyPacker(packers.size() + 1, BITS_PER_WORD));
+					}
+					key = new long[packer().longsPerKey()];
+				}
+				for(int j=0; j<key.length; j++) {
+					key[j] = in.readLong();
+				}
+				count = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				throw new IllegalArgumentException("truncated count file", e);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+
+		/**
+		 * Get the order of the current ngram.
+		 * @return the order of the current ngram
+		 */
+		public int order() {
+			return order;
+		}
+
+
+		/**
+		 * Copy the word ids of the current ngram into an array.
+		 * @param ids destination array
+		 * @param start index in the destination array at which to store the {@link #order()} word ids
+		 */
+		public void ids(int [] ids, int start) {
+			packer().unpack(key, 0, ids, start);
+		}
+
+
+		/**
+		 * Get the count of the current ngram.
+		 * @return the count of the current ngram
+		 */
+		public long count() {
+			return count;
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			ExternalNGramCount.close(in);
+		}
+
+
+		private NGramKeyPacker packer() {
+			return packers.get(order - 1);
+		}
+
+
+		/**
+		 * Compare the current records of two readers by order and then by key.
+		 */
+		int compareTo(CountReader other) {
+			if(order != other.order) {
+				return order < other.order ? -1 : 1;
+			}
+			for(int j=0; j<key.length; j++) {
+				if(key[j] != other.key[j]) {
+					return key[j] < other.key[j] ? -1 : 1;
+				}
+			}
+			return 0;
+		}
+
+
+		/**
+		 * Check whether the current record holds the given ngram.
+		 */
+		boolean matches(int otherOrder, long [] otherKey) {
+			if(order != otherOrder) {
+				return false;
+			}
+			for(int j=0; j<key.length; j++) {
+				if(key[j] != otherKey[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -28,27 +28,114 @@ authors.
 
 package com.pwnetics.languagemodel;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import com.pwnetics.helper.ItemCounter;
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
 
+/**
+ * Counts the ngrams of one or more enumerators, in one {@link NGramCountTable} per order keyed by word id.
+ * Every enumerator must share the vocabulary of the first, so that the word ids agree.
+ *
+ * @author romanows
+ */
 public class NGramCount {
-	ItemCounter<AbstractNGram> ic;
+
+	/** Count table of each order seen so far; index 0 holds unigrams */
+	private final List<NGramCountTable> tables;
+
+	/** Vocabulary of the counted enumerators, which assigned the word ids; null until an enumerator is added */
+	private Vocabulary vocabulary;
+
 
 	public NGramCount() {
-		ic = new ItemCounter<AbstractNGram>();
+		tables = new ArrayList<NGramCountTable>();
 	}
 
+
+	/**
+	 * Count all ngrams of an enumerator.
+	 * @param ngrams enumerator; its {@link NGramEnumerator#idIterator()} is consumed
+	 */
 	public void add(NGramEnumerator ngrams) {
-		for(AbstractNGram ngram : ngrams) {
-			ic.increment(ngram);
+		if(vocabulary == null) {
+			vocabulary = ngrams.getVocabulary();
+		} else if(vocabulary != ngrams.getVocabulary()) {
+			throw new IllegalArgumentException("enumerators must share a vocabulary");
+		}
+
+		int [] ids = new int[tables.size()];
+		for(Iterator<WordIdNGram> it = ngrams.idIterator(); it.hasNext(); ) {
+			WordIdNGram ngram = it.next();
+			while(tables.size() < ngram.size()) {
+				tables.add(new NGramCountTable(tables.size() + 1));
+				ids = new int[tables.size()];
+			}
+			for(int i=0; i<ngram.size(); i++) {
+				ids[i] = ngram.get(i);
+			}
+			tables.get(ngram.size() - 1).increment(ids, 0, 1);
 		}
 	}
 
+
+	/**
+	 * Get the number of distinct ngrams counted, of all orders.
+	 * @return the number of distinct ngrams counted
+	 */
 	public int size() {
-		return ic.size();
+		int size = 0;
+		for(NGramCountTable table : tables) {
+			size += table.size();
+		}
+		return size;
 	}
 
+
+	/**
+	 * Get the vocabulary that assigned the word ids of the counts.
+	 * @return the vocabulary of the counted enumerators, or null if none has been added
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+
+	/**
+	 * Get the count table of every order, in the form taken by {@link com.pwnetics.languagemodel.lm.KneserNeyModFixModel2}.
+	 * The tables are those of this counter, not copies; they change if more ngrams are added.
+	 * @return count table of each order, unigrams first
+	 */
+	public NGramCountTable [] getTables() {
+		return tables.toArray(new NGramCountTable[tables.size()]);
+	}
+
+
+	/**
+	 * Get a copy of the counts of every order in one counter keyed by String-based ngrams.
+	 * Takes several times the memory of the tables; prefer {@link #getTables()}.
+	 * @return counts of the ngrams of all orders
+	 * @throws IllegalArgumentException if a count does not fit in an int
+	 */
 	public ItemCounter<AbstractNGram> getItemCounter() {
+		ItemCounter<AbstractNGram> ic = new ItemCounter<AbstractNGram>();
+		for(NGramCountTable table : tables) {
+			int [] ids = new int[table.order()];
+			for(NGramCountTable.Cursor c = table.cursor(); c.next(); ) {
+				if(c.count() > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("count of " + c.count() + " does not fit in an int");
+				}
+				c.ids(ids, 0);
+				String [] words = new String[ids.length];  // not reused, as an ngram may hold the array
+				for(int i=0; i<ids.length; i++) {
+					words[i] = vocabulary.getWord(ids[i]);
+				}
+				ic.set(AbstractNGram.factory(words), (int) c.count());
+			}
+		}
 		return ic.asUnmodifiable();
 	}
 }
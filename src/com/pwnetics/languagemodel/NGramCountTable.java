@@ -0,0 +1,570 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import java.util.Arrays;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.ngram.NGramKeyPacker;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+
+
+/**
+ * Counts ngrams of one order in primitive arrays.
+ *
+ * Ngrams are keyed by their word ids packed into longs with a {@link NGramKeyPacker}, in an open-addressing table with linear probing
+ * that doubles whenever it becomes three-quarters full.  Counts are longs.
+ * No object is created per ngram, unlike an {@link ItemCounter} of ngram objects and boxed counts, which takes several times the memory per ngram.
+ *
+ * Keys start out as narrow as the given bits per word allow.
+ * When a word id too large for the current width is counted, every key is repacked with enough bits for it,
+ * so a table filled while its vocabulary grows stays as compact as the vocabulary allows.
+ *
+ * Lookups may run concurrently once no more ngrams are counted.
+ *
+ * @author romanows
+ */
+public class NGramCountTable {
+
+	/** Number of slots of a new table that is not given an expected size */
+	private static final int MIN_SLOTS = 16;
+
+	/** Packs ngram word ids into keys; replaced by a wider packer when a larger word id is counted */
+	private NGramKeyPacker packer;
+
+	/** Number of longs in each key */
+	private int longsPerKey;
+
+	/** Packed key of each slot, {@link #longsPerKey} longs per slot; a slot whose first long is zero is empty */
+	private long [] keys;
+
+	/** Count of each slot */
+	private long [] counts;
+
+	/** Number of slots minus one; the number of slots is a power of two */
+	private int mask;
+
+	/** Number of ngrams held */
+	private int size;
+
+
+	/**
+	 * Constructor.
+	 * @param order order of the ngrams counted
+	 */
+	public NGramCountTable(int order) {
+		this(order, 1, 0);
+	}
+
+
+	/**
+	 * Constructor.
+	 * @param order order of the ngrams counted
+	 * @param bitsPerWord bits used to store each word id to begin with; see {@link NGramKeyPacker#bitsPerWord(int)}
+	 * @param expectedSize number of distinct ngrams expected, so that the table need not grow
+	 */
+	public NGramCountTable(int order, int bitsPerWord, int expectedSize) {
+		packer = new NGramKeyPacker(order, bitsPerWord);
+		longsPerKey = packer.longsPerKey();
+		int slotCount = MIN_SLOTS;
+		while(slotCount / 4 * 3 < expectedSize && slotCount < (1 << 30)) {
+			slotCount *= 2;
+		}
+		allocate(slotCount);
+	}
+
+
+	/**
+	 * Get the order of the ngrams counted.
+	 * @return the order of the ngrams counted
+	 */
+	public int order() {
+		return packer.order();
+	}
+
+
+	/**
+	 * Get the packer of the keys of this table.
+	 * The packer is replaced when a word id too large for it is counted.
+	 * @return the current packer of the keys of this table
+	 */
+	public NGramKeyPacker packer() {
+		return packer;
+	}
+
+
+	/**
+	 * Get the number of distinct ngrams counted.
+	 * @return the number of distinct ngrams counted
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Get the total of the counts of every ngram.
+	 * @return the total of the counts
+	 */
+	public long sum() {
+		long sum = 0;
+		for(long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+
+
+	/**
+	 * Get the number of ngrams that have each count up to a maximum.
+	 * @param maxCount largest count of interest
+	 * @return array whose element c, for c in [1,maxCount], is the number of ngrams counted exactly c times; element 0 is 0
+	 */
+	public long [] countOfCounts(int maxCount) {
+		long [] countOfCounts = new long[maxCount + 1];
+		for(int slot=0; slot<counts.length; slot++) {
+			if(keys[slot * longsPerKey] != 0 && counts[slot] <= maxCount) {
+				countOfCounts[(int) counts[slot]]++;
+			}
+		}
+		return countOfCounts;
+	}
+
+
+	/**
+	 * Add to the count of an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param by amount to add
+	 * @throws IllegalArgumentException if a word id is negative or too large for {@link NGramKeyPacker#MAX_BITS_PER_WORD} bits
+	 */
+	public void increment(int [] ids, int start, long by) {
+		if(!packer.canPack(ids, start)) {
+			widen(ids, start);
+		}
+		int slot = find(ids, start);
+		if(keys[slot * longsPerKey] == 0) {
+			packer.pack(ids, start, keys, slot * longsPerKey);
+			counts[slot] = by;
+			grow();
+		} else {
+			counts[slot] += by;
+		}
+	}
+
+
+	/**
+	 * Add every count of another table to this one.
+	 * @param other table of the same order
+	 */
+	public void addAll(NGramCountTable other) {
+		if(other.order() != order()) {
+			throw new IllegalArgumentException("tables count ngrams of different orders");
+		}
+		if(other.packer.bitsPerWord() > packer.bitsPerWord()) {
+			repack(new NGramKeyPacker(order(), other.packer.bitsPerWord()), counts.length);
+		}
+
+		if(other.packer.bitsPerWord() < packer.bitsPerWord()) {
+			int [] ids = new int[order()];
+			for(Cursor c = other.cursor(); c.next(); ) {
+				c.ids(ids, 0);
+				increment(ids, 0, c.count());
+			}
+			return;
+		}
+
+		// Keys are packed alike, so they are copied without unpacking
+		for(int otherSlot=0; otherSlot<other.counts.length; otherSlot++) {
+			int otherOffset = otherSlot * longsPerKey;
+			if(other.keys[otherOffset] == 0) {
+				continue;
+			}
+			int slot = (int) packer.hash(other.keys, otherOffset) & mask;
+			while(keys[slot * longsPerKey] != 0 && !sameKey(slot, other.keys, otherOffset)) {
+				slot = (slot + 1) & mask;
+			}
+			if(keys[slot * longsPerKey] == 0) {
+				System.arraycopy(other.keys, otherOffset, keys, slot * longsPerKey, longsPerKey);
+				counts[slot] = other.counts[otherSlot];
+				grow();
+			} else {
+				counts[slot] += other.counts[otherSlot];
+			}
+		}
+	}
+
+
+	/**
+	 * Get the count of an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @return the count of the ngram, 0 if it has not been counted
+	 */
+	public long get(int [] ids, int start) {
+		if(!packer.canPack(ids, start)) {
+			return 0;
+		}
+		return counts[find(ids, start)];
+	}
+
+
+	/**
+	 * Get the count of an ngram.
+	 * @param ngram ngram of this table's order
+	 * @return the count of the ngram, 0 if it has not been counted
+	 */
+	public long get(WordIdNGram ngram) {
+		if(ngram.size() != order()) {
+			throw new IllegalArgumentException("ngram of order " + ngram.size() + " looked up in a table of order " + order());
+		}
+		if(!packer.canPack(ngram)) {
+			return 0;
+		}
+		int slot = (int) packer.hash(ngram) & mask;
+		while(keys[slot * longsPerKey] != 0 && !packer.matches(keys, slot * longsPerKey, ngram)) {
+			slot = (slot + 1) & mask;
+		}
+		return counts[slot];
+	}
+
+
+	/**
+	 * Get a cursor over the counted ngrams, in no particular order.
+	 * The table must not be changed while the cursor is in use.
+	 * @return a cursor positioned before the first ngram
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+
+	/**
+	 * Copy the counts into an {@link ItemCounter}, for code that takes counts in that form.
+	 * @return counts of the ngrams of this table
+	 * @throws IllegalArgumentException if a count does not fit in an int
+	 */
+	public ItemCounter<WordIdNGram> toItemCounter() {
+		ItemCounter<WordIdNGram> itemCounter = new ItemCounter<WordIdNGram>();
+		for(Cursor c = cursor(); c.next(); ) {
+			if(c.count() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("count of " + c.count() + " does not fit in an int");
+			}
+			itemCounter.set(c.ngram(), (int) c.count());
+		}
+		return itemCounter;
+	}
+
+
+	/**
+	 * Forget every count, keeping the table's current capacity and key width.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(counts, 0);
+		size = 0;
+	}
+
+
+	/**
+	 * Get the occupied slots in increasing order of their packed keys, comparing the longs of a key first to last.
+	 * @return the occupied slots, sorted by key
+	 */
+	int [] sortedSlots() {
+		int [] slots = new int[size];
+		int n = 0;
+		for(int slot=0; slot<counts.length; slot++) {
+			if(keys[slot * longsPerKey] != 0) {
+				slots[n++] = slot;
+			}
+		}
+		sort(slots, 0, n);
+		return slots;
+	}
+
+
+	/**
+	 * Get one of the longs of the key of a slot.
+	 * @param slot an occupied slot
+	 * @param keyIndex which long of the key, in [0,{@link NGramKeyPacker#longsPerKey()})
+	 * @return the long of the key
+	 */
+	long key(int slot, int keyIndex) {
+		return keys[slot * longsPerKey + keyIndex];
+	}
+
+
+	/**
+	 * Get the count of a slot.
+	 * @param slot an occupied slot
+	 * @return the count of the slot
+	 */
+	long count(int slot) {
+		return counts[slot];
+	}
+
+
+	/**
+	 * Iterates over the ngrams of a table and their counts.
+	 *
+	 * @author romanows
+	 */
+	public class Cursor {
+
+		/** Current slot */
+		private int slot = -1;
+
+
+		/**
+		 * Move to the next ngram.
+		 * @return false if there are no more ngrams
+		 */
+		public boolean next() {
+			while(++slot < counts.length) {
+				if(keys[slot * longsPerKey] != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+
+		/**
+		 * Copy the word ids of the current ngram into an array.
+		 * @param ids destination array
+		 * @param start index in the destination array at which to store the {@link NGramCountTable#order()} word ids
+		 */
+		public void ids(int [] ids, int start) {
+			packer.unpack(keys, slot * longsPerKey, ids, start);
+		}
+
+
+		/**
+		 * Get the current ngram.
+		 * @return a new ngram holding the word ids of the current ngram
+		 */
+		public WordIdNGram ngram() {
+			int [] ids = new int[order()];
+			ids(ids, 0);
+			return new WordIdNGram(ids);
+		}
+
+
+		/**
+		 * Get the count of the current ngram.
+		 * @return the count of the current ngram
+		 */
+		public long count() {
+			return counts[slot];
+		}
+	}
+
+
+	/**
+	 * Find the slot that holds an ngram, or the empty slot where it would be placed.
+	 */
+	private int find(int [] ids, int start) {
+		int slot = (int) packer.hash(ids, start) & mask;
+		while(keys[slot * longsPerKey] != 0 && !packer.matches(keys, slot * longsPerKey, ids, start)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+
+	/**
+	 * Check whether a slot holds the given packed key.
+	 */
+	private boolean sameKey(int slot, long [] otherKeys, int otherOffset) {
+		for(int j=0; j<longsPerKey; j++) {
+			if(keys[slot * longsPerKey + j] != otherKeys[otherOffset + j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Repack every key wide enough for the word ids of an ngram that the current packer cannot pack.
+	 * @throws IllegalArgumentException if a word id is negative or too large to pack at all
+	 */
+	private void widen(int [] ids, int start) {
+		int maxId = 0;
+		for(int i=start; i<start+order(); i++) {
+			if(ids[i] < 0 || ids[i] == Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("word id " + ids[i] + " cannot be counted");
+			}
+			maxId = Math.max(maxId, ids[i]);
+		}
+		repack(new NGramKeyPacker(order(), NGramKeyPacker.bitsPerWord(maxId + 1)), counts.length);
+	}
+
+
+	/**
+	 * Count a newly placed ngram and double the table if it is now three-quarters full.
+	 */
+	private void grow() {
+		size++;
+		if(size * 4L > counts.length * 3L) {
+			repack(packer, counts.length * 2);
+		}
+	}
+
+
+	/**
+	 * Allocate empty arrays.
+	 * @param slotCount number of slots, a power of two
+	 */
+	private void allocate(int slotCount) {
+		keys = new long[slotCount * longsPerKey];
+		counts = new long[slotCount];
+		mask = slotCount - 1;
+	}
+
+
+	/**
+	 * Move every ngram into new arrays.
+	 * @param newPacker packer of the new keys; when it differs from the current packer, each key is unpacked and packed again
+	 * @param slotCount new number of slots, a power of two
+	 */
+	private void repack(NGramKeyPacker newPacker, int slotCount) {
+		NGramKeyPacker oldPacker = packer;
+		int oldLongsPerKey = longsPerKey;
+		long [] oldKeys = keys;
+		long [] oldCounts = counts;
+		packer = newPacker;
+		longsPerKey = newPacker.longsPerKey();
+		allocate(slotCount);
+
+		int [] ids = new int[order()];
+		for(int oldSlot=0; oldSlot<oldCounts.length; oldSlot++) {
+			int oldOffset = oldSlot * oldLongsPerKey;
+			if(oldKeys[oldOffset] == 0) {
+				continue;
+			}
+			int slot;
+			if(newPacker == oldPacker) {
+				slot = (int) packer.hash(oldKeys, oldOffset) & mask;
+				while(keys[slot * longsPerKey] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				System.arraycopy(oldKeys, oldOffset, keys, slot * longsPerKey, longsPerKey);
+			} else {
+				oldPacker.unpack(oldKeys, oldOffset, ids, 0);
+				slot = find(ids, 0);
+				packer.pack(ids, 0, keys, slot * longsPerKey);
+			}
+			counts[slot] = oldCounts[oldSlot];
+		}
+	}
+
+
+	/**
+	 * Compare the keys of two slots.
+	 * @return negative, zero or positive as the key of slot a is less than, equal to or greater than the key of slot b
+	 */
+	private int compare(int a, int b) {
+		for(int j=0; j<longsPerKey; j++) {
+			long x = keys[a * longsPerKey + j];
+			long y = keys[b * longsPerKey + j];
+			if(x != y) {
+				return x < y ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Sort a range of slots by key: quicksort with a median-of-three pivot, finishing small ranges with insertion sort.
+	 * Recurses into the smaller part only, so the stack stays shallow.
+	 * @param slots slots to sort
+	 * @param from index of the first slot of the range
+	 * @param to index after the last slot of the range
+	 */
+	private void sort(int [] slots, int from, int to) {
+		while(to - from > 16) {
+			int mid = (from + to) >>> 1;
+			if(compare(slots[mid], slots[from]) < 0) {
+				swap(slots, mid, from);
+			}
+			if(compare(slots[to-1], slots[from]) < 0) {
+				swap(slots, to-1, from);
+			}
+			if(compare(slots[to-1], slots[mid]) < 0) {
+				swap(slots, to-1, mid);
+			}
+			int pivot = slots[mid];
+
+			int i = from;
+			int j = to - 1;
+			while(i <= j) {
+				while(compare(slots[i], pivot) < 0) {
+					i++;
+				}
+				while(compare(slots[j], pivot) > 0) {
+					j--;
+				}
+				if(i <= j) {
+					swap(slots, i++, j--);
+				}
+			}
+
+			if(j + 1 - from < to - i) {
+				sort(slots, from, j + 1);
+				from = i;
+			} else {
+				sort(slots, i, to);
+				to = j + 1;
+			}
+		}
+
+		for(int i=from+1; i<to; i++) {
+			int slot = slots[i];
+			int j = i - 1;
+			while(j >= from && compare(slots[j], slot) > 0) {
+				slots[j+1] = slots[j];
+				j--;
+			}
+			slots[j+1] = slot;
+		}
+	}
+
+
+	/**
+	 * Swap two entries of an array.
+	 */
+	private static void swap(int [] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
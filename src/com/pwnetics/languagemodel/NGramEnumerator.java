@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
 import com.pwnetics.languagemodel.tokenizer.ITokenizer;
 
 /**
@@ -43,9 +44,15 @@ import com.pwnetics.languagemodel.tokenizer.ITokenizer;
  * If the array is initialized with a start-of-utterance token "a", then the above tokens will give the output: [b,ab,aab,c,bc,abc,d,cd,bcd].
  * Words "b c d" will be added to the vocabulary.  The start-of-utterance token is not added.
  *
+ * If padding is turned off, the start-of-utterance token instead begins the utterance as an ordinary word, and no ngram reaches back before it.
+ * The tokens "a b c a d" with start-of-utterance token "a" and a size of 3 give the output: [a,b,ab,c,bc,abc,a,d,ad].
+ * This is how SRILM counts sentences that begin with "&lt;s&gt;".
+ *
  * Apart from accumulating a list of words {@link Vocabulary}, the vocabulary is used to provide a canonical String reference for each token in an NGram.
  * This prevents duplication of string objects that compare as equal.
  *
+ * The same n-grams can be enumerated as {@link WordIdNGram}s with {@link #idIterator()}, which is cheaper when the consumer keys its data by word id.
+ *
  * @author romanows
  */
 public class NGramEnumerator implements Iterable<AbstractNGram> {
@@ -67,6 +74,9 @@ public class NGramEnumerator implements Iterable<AbstractNGram> {
 	/** Token string that identifies a start-of-utterance in the token stream */
 	private final String beginUtterance;
 
+	/** True if the window is padded with start-of-utterance tokens at each start-of-utterance, false if the token begins the utterance as a word */
+	private final boolean padUtterance;
+
 	/** New words added onto the end of the queue.  Limited to {@link #size} number of elements. */
 	private final LinkedList<String> queue;
 
@@ -93,6 +103,20 @@ public class NGramEnumerator implements Iterable<AbstractNGram> {
 	 * @param beginUtterance this string will be treated as a beginning-of-utterance token.  It is not added to the vocabulary.  See this class's description for details.
 	 */
 	public NGramEnumerator(Vocabulary vocabulary, ITokenizer tokenizer, int size, String beginUtterance) {
+		this(vocabulary, tokenizer, size, beginUtterance, true);
+	}
+
+
+	/**
+	 * Constructor.
+	 * @param vocabulary collects tokens and serves as a string pool that all created ngrams will reference
+	 * @param tokenizer provides tokens for ngrams
+	 * @param size max ngram order to output
+	 * @param beginUtterance this string will be treated as a beginning-of-utterance token; see this class's description for details
+	 * @param padUtterance true to pad the start of each utterance with the beginning-of-utterance token, which is then not added to the vocabulary;
+	 *   false to count the beginning-of-utterance token as the first word of each utterance
+	 */
+	public NGramEnumerator(Vocabulary vocabulary, ITokenizer tokenizer, int size, String beginUtterance, boolean padUtterance) {
 		if(tokenizer == null || size < 1) {
 			throw new IllegalArgumentException();
 		}
@@ -101,6 +125,7 @@ public class NGramEnumerator implements Iterable<AbstractNGram> {
 		this.tokenIter = tokenizer.iterator();
 		this.size = size;
 		this.beginUtterance = beginUtterance;
+		this.padUtterance = padUtterance;
 
 		queue = new LinkedList<String>();
 		nextIdx = -1;
@@ -146,6 +171,9 @@ public class NGramEnumerator implements Iterable<AbstractNGram> {
 				// Get the next token after any optional start-of-utterance markers
 				while( (s = tokenIter.next()).equals(beginUtterance) ) {
 					queue.clear();
+					if(!padUtterance) {
+						break;  // the start-of-utterance token is the utterance's first word
+					}
 
 					// Beginning utterance token used to pad the start of new utterances
 					if(beginUtterance != null) {
@@ -173,4 +201,79 @@ public class NGramEnumerator implements Iterable<AbstractNGram> {
 			}
 		};
 	}
+
+
+	/**
+	 * Iterate over the n-grams as word ids rather than as strings.
+	 * Produces the same sequence of n-grams as {@link #iterator()}, without creating any String-based n-gram objects.
+	 *
+	 * An n-gram of ids can only refer to words that have an id, so unlike {@link #iterator()}, the start-of-utterance token is added to the vocabulary if it is used for padding.
+	 * Like {@link #iterator()}, this consumes tokens from the tokenizer, so only one of the two methods should be called on an enumerator.
+	 *
+	 * @return iterator over the n-grams as word ids
+	 */
+	public Iterator<WordIdNGram> idIterator() {
+		return new Iterator<WordIdNGram>() {
+
+			/** Ids of the most recent tokens, oldest first.  Limited to {@link NGramEnumerator#size} number of elements. */
+			private final int [] window = new int[size];
+
+			/** Number of valid ids in {@link #window} */
+			private int windowSize = 0;
+
+			/** Moves backwards through the window, indicating the start (inclusive) of ever-longer n-grams */
+			private int nextWindowIdx = -1;
+
+			@Override
+			public boolean hasNext() {
+				if(windowSize > 0 && nextWindowIdx >= 0) {
+					return true;
+				}
+				return tokenIter.hasNext();
+			}
+
+			@Override
+			public WordIdNGram next() {
+				if(windowSize > 0 && nextWindowIdx >= 0) {
+					return nextNGram();
+				}
+
+				String s;
+				while( (s = tokenIter.next()).equals(beginUtterance) ) {
+					windowSize = 0;
+					if(!padUtterance) {
+						break;
+					}
+					if(beginUtterance != null) {
+						int beginId = vocabulary.addId(beginUtterance);
+						for(int i=0; i<size-1; i++) {
+							window[windowSize++] = beginId;
+						}
+					}
+				}
+
+				// Slide the window when it is full
+				if(windowSize == size) {
+					System.arraycopy(window, 1, window, 0, size-1);
+					windowSize--;
+				}
+				window[windowSize++] = vocabulary.addId(s);
+				nextWindowIdx = windowSize - 1;
+
+				return nextNGram();
+			}
+
+			/** Copy the next n-gram out of the window; the window is reused so the n-gram cannot be a view onto it */
+			private WordIdNGram nextNGram() {
+				int [] ids = new int[windowSize - nextWindowIdx];
+				System.arraycopy(window, nextWindowIdx--, ids, 0, ids.length);
+				return new WordIdNGram(ids);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
 }
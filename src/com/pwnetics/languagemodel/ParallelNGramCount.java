@@ -0,0 +1,383 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.ITokenizer;
+
+
+/**
+ * Counts ngrams of orders 1 through N on several threads.
+ *
+ * The calling thread reads the tokens and assigns their word ids, in order, so the vocabulary is the same as that built by an {@link NGramEnumerator}.
+ * The ids are cut into chunks, at an utterance boundary where one is near, and each chunk is counted by a worker thread
+ * into its own set of {@link NGramCountTable}s, so workers never contend for a table.
+ * Once the corpus has been read, the tables of each order are merged in parallel.
+ * The counts are those of {@link NGramEnumerator#idIterator()} over the same tokens, and do not depend on the number of threads.
+ *
+ * {@link #getTables()} gives the counts in the form taken by {@link com.pwnetics.languagemodel.lm.KneserNeyModFixModel2}.
+ *
+ * @author romanows
+ */
+public class ParallelNGramCount {
+
+	/** Number of tokens after which a chunk is cut at the next start-of-utterance token */
+	static final int CHUNK_TOKENS = 1 << 16;
+
+	/** Number of tokens at which a chunk is cut whether or not it has reached a start-of-utterance token */
+	static final int MAX_CHUNK_TOKENS = 2 * CHUNK_TOKENS;
+
+	/** Marks a start-of-utterance token in a chunk */
+	private static final int BEGIN = -1;
+
+	/** Highest order counted */
+	private final int order;
+
+	/** Number of worker threads */
+	private final int threads;
+
+	/** Assigns word ids */
+	private final Vocabulary vocabulary;
+
+	/** Counts of everything added so far; index 0 holds unigrams */
+	private final NGramCountTable [] totals;
+
+
+	/**
+	 * Constructor.
+	 * @param vocabulary collects the words of the counted ngrams
+	 * @param order highest order of ngrams to count, e.g. "3" for trigrams
+	 * @param threads number of threads to count with
+	 */
+	public ParallelNGramCount(Vocabulary vocabulary, int order, int threads) {
+		if(vocabulary == null || order < 1 || threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.vocabulary = vocabulary;
+		this.order = order;
+		this.threads = threads;
+		totals = newTables();
+	}
+
+
+	/**
+	 * Get the vocabulary built by this counter.
+	 * @return the vocabulary built by this counter
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+
+	/**
+	 * Count all ngrams of a tokenizer's tokens, as an {@link NGramEnumerator} given the same arguments would enumerate them.
+	 * @param tokenizer provides tokens for ngrams
+	 * @param beginUtterance this string will be treated as a beginning-of-utterance token, or null for none; see {@link NGramEnumerator}
+	 */
+	public void add(ITokenizer tokenizer, String beginUtterance) {
+		add(tokenizer, beginUtterance, true);
+	}
+
+
+	/**
+	 * Count all ngrams of a tokenizer's tokens, as an {@link NGramEnumerator} given the same arguments would enumerate them.
+	 * @param tokenizer provides tokens for ngrams
+	 * @param beginUtterance this string will be treated as a beginning-of-utterance token, or null for none; see {@link NGramEnumerator}
+	 * @param padUtterance true to pad the start of each utterance with the beginning-of-utterance token, false to count it as the utterance's first word
+	 */
+	public void add(ITokenizer tokenizer, String beginUtterance, boolean padUtterance) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// Each worker takes a set of tables from the pool for as long as it counts a chunk
+			final BlockingQueue<NGramCountTable []> pool = new ArrayBlockingQueue<NGramCountTable []>(threads);
+			for(int t=0; t<threads; t++) {
+				pool.add(newTables());
+			}
+			final Semaphore inFlight = new Semaphore(2 * threads);  // bounds the memory held by chunks waiting to be counted
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+			int beginId = BEGIN;
+			Chunk chunk = new Chunk(0, padUtterance);
+			for(String s : tokenizer) {
+				boolean begin = s.equals(beginUtterance);
+				if(begin) {
+					beginId = vocabulary.addId(beginUtterance);
+				}
+				if(chunk.length >= MAX_CHUNK_TOKENS || (begin && chunk.length >= CHUNK_TOKENS)) {
+					submit(chunk, pool, inFlight, executor, futures);
+					chunk = chunk.next();
+				}
+				chunk.ids[chunk.length++] = begin ? BEGIN : vocabulary.addId(s);
+				chunk.beginId = beginId;
+			}
+			submit(chunk, pool, inFlight, executor, futures);
+			for(Future<Void> future : futures) {
+				get(future);
+			}
+
+			merge(new ArrayList<NGramCountTable []>(pool), executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Get the count tables of every order.
+	 * The tables are those of this counter, not copies; they change if more tokens are added.
+	 * @return count table of each order, unigrams first
+	 */
+	public NGramCountTable [] getTables() {
+		return totals.clone();
+	}
+
+
+	/**
+	 * Get copies of the counts of every order as {@link ItemCounter}s.
+	 * @return counts of each order, unigrams first
+	 */
+	public List<ItemCounter<WordIdNGram>> getCounts() {
+		List<ItemCounter<WordIdNGram>> counts = new ArrayList<ItemCounter<WordIdNGram>>(order);
+		for(NGramCountTable table : totals) {
+			counts.add(table.toItemCounter());
+		}
+		return counts;
+	}
+
+
+	/**
+	 * Get the count of an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram
+	 * @return the count of the ngram, 0 if it has not been counted
+	 */
+	public long get(int [] ids, int start, int length) {
+		if(length < 1 || length > order) {
+			throw new IllegalArgumentException("ngram order " + length + " is not in [1," + order + "]");
+		}
+		return totals[length-1].get(ids, start);
+	}
+
+
+	/**
+	 * Get the number of distinct ngrams of an order.
+	 * @param n order of the ngrams
+	 * @return the number of distinct ngrams of the order
+	 */
+	public int size(int n) {
+		return totals[n-1].size();
+	}
+
+
+	/**
+	 * Create an empty table for each order.
+	 */
+	private NGramCountTable [] newTables() {
+		NGramCountTable [] tables = new NGramCountTable[order];
+		for(int n=1; n<=order; n++) {
+			tables[n-1] = new NGramCountTable(n);
+		}
+		return tables;
+	}
+
+
+	/**
+	 * Count a chunk on the executor.
+	 * Waits while too many chunks are already waiting, and rethrows the failure of any task that has finished.
+	 */
+	private void submit(final Chunk chunk, final BlockingQueue<NGramCountTable []> pool, final Semaphore inFlight, ExecutorService executor, List<Future<Void>> futures) {
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while counting ngrams", e);
+		}
+		futures.add(executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				try {
+					NGramCountTable [] tables = pool.take();
+					try {
+						count(chunk, tables);
+					} finally {
+						pool.add(tables);
+					}
+				} finally {
+					inFlight.release();
+				}
+				return null;
+			}
+		}));
+
+		for(Iterator<Future<Void>> it = futures.iterator(); it.hasNext(); ) {
+			Future<Void> future = it.next();
+			if(future.isDone()) {
+				get(future);
+				it.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Count the ngrams that end in a chunk, enumerating them as {@link NGramEnumerator#idIterator()} does.
+	 * @param chunk chunk of word ids
+	 * @param tables receives the counts
+	 */
+	private void count(Chunk chunk, NGramCountTable [] tables) {
+		int [] window = new int[order];
+		int windowSize = 0;
+		for(int i=0; i<chunk.length; i++) {
+			int id = chunk.ids[i];
+			if(id == BEGIN) {
+				windowSize = 0;
+				if(chunk.padUtterance) {
+					for(int k=0; k<order-1; k++) {
+						window[windowSize++] = chunk.beginId;
+					}
+					continue;
+				}
+				id = chunk.beginId;  // the start-of-utterance token is the utterance's first word
+			}
+
+			// Slide the window when it is full
+			if(windowSize == order) {
+				System.arraycopy(window, 1, window, 0, order-1);
+				windowSize--;
+			}
+			window[windowSize++] = id;
+
+			// Context tokens only fill the window; their ngrams belong to the previous chunk
+			if(i >= chunk.contextLength) {
+				for(int n=1; n<=windowSize; n++) {
+					tables[n-1].increment(window, windowSize - n, 1);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Add the workers' tables into the totals, one task per order.
+	 */
+	private void merge(final List<NGramCountTable []> workerTables, ExecutorService executor) {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(order);
+		for(int n=1; n<=order; n++) {
+			final int orderIndex = n - 1;
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(NGramCountTable [] tables : workerTables) {
+						totals[orderIndex].addAll(tables[orderIndex]);
+					}
+					return null;
+				}
+			}));
+		}
+		for(Future<Void> future : futures) {
+			get(future);
+		}
+	}
+
+
+	/**
+	 * Wait for a task, rethrowing its failure.
+	 */
+	private static void get(Future<Void> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while counting ngrams", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+
+	/**
+	 * A run of word ids, with {@link #BEGIN} marking start-of-utterance tokens.
+	 */
+	private class Chunk {
+
+		/** Word ids; room for a full chunk plus its context */
+		final int [] ids = new int[MAX_CHUNK_TOKENS + order];
+
+		/** Number of ids held */
+		int length;
+
+		/** Number of leading ids copied from the end of the previous chunk, to recreate its window */
+		final int contextLength;
+
+		/** Word id of the start-of-utterance token */
+		int beginId = BEGIN;
+
+		/** True if the window is padded at each start-of-utterance token, false if the token is counted as a word */
+		final boolean padUtterance;
+
+
+		Chunk(int contextLength, boolean padUtterance) {
+			this.contextLength = contextLength;
+			this.padUtterance = padUtterance;
+		}
+
+
+		/**
+		 * Start the chunk that follows this one, carrying over the ids that the first ngrams of the next chunk may need as history.
+		 */
+		Chunk next() {
+			int carry = Math.min(order - 1, length);
+			Chunk next = new Chunk(carry, padUtterance);
+			System.arraycopy(ids, length - carry, next.ids, 0, carry);
+			next.length = carry;
+			next.beginId = beginId;
+			return next;
+		}
+	}
+}
@@ -25,23 +25,36 @@ The views and conclusions contained in the software and documentation are those
 authors.
 */
 
-
 package com.pwnetics.languagemodel;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.pwnetics.languagemodel.lm.AbstractNGramLanguageModel;
+import com.pwnetics.languagemodel.lm.LanguageModelState;
+import com.pwnetics.languagemodel.lm.StatefulLanguageModel;
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
 
 
 /**
  * Calculates the perplexity of a language model with respect to some reference text.
  * The reference sentences are assumed to be independent.
+ *
+ * The sentences are scored in fixed-size chunks whose totals are added in order, so the score does not depend on how many threads are used.
  * @author romanows
  */
 public class PerplexityMetric {
 
+	/** Number of sentences scored together as one chunk */
+	private static final int SENTENCES_PER_CHUNK = 1024;
+
 	/**
 	 * Perplexity calculated over this data, a list of sentences which are themselves lists of tokens.
 	 * The first and last tokens must be the start of sentence tokens, according to {@link AbstractNGramLanguageModel#logProbability(List)}.
@@ -76,6 +89,27 @@ public class PerplexityMetric {
 	}
 
 
+	/**
+	 * Totals gathered over a chunk of sentences in a single pass.
+	 */
+	private static class Tally {
+		/** Sum of the log-probabilities of the scored tokens */
+		double logProb = 0.0;
+
+		/** Number of tokens counted towards perplexity: all but the first of each sentence, less the OOV words */
+		long tokens = 0;
+
+		/** Number of ngrams skipped because they contained OOV words */
+		int skippedOOVNGrams = 0;
+
+		void accumulate(Tally t) {
+			logProb += t.logProb;
+			tokens += t.tokens;
+			skippedOOVNGrams += t.skippedOOVNGrams;
+		}
+	}
+
+
 	/**
 	 * Constructor.
 	 * @param referenceSentenceList reference text for calculation; list of sentences which are themselves lists of tokens
@@ -94,21 +128,188 @@ public class PerplexityMetric {
 	 * Will "skip" any OOV words encountered, considering P(OOV) = 1, for the purposes of comparing perplexity.
 	 * Same behavior as SRILM, as described in their FAQ.
 	 *
+	 * Models that are also {@link StatefulLanguageModel}s are scored through their states, which does not allocate per token,
+	 * and their OOV words are counted in the same pass with {@link StatefulLanguageModel#isOOV(int)}.
+	 *
 	 * @param languageModel language model to score
 	 * @return perplexity of the language model on the reference sentences
 	 */
 	public Score score(AbstractNGramLanguageModel languageModel) {
+		Tally total = new Tally();
+		for(int chunk=0; chunk<chunks(); chunk++) {
+			total.accumulate(tally(languageModel, chunk));
+		}
+		return toScore(languageModel, total);
+	}
+
+
+	/**
+	 * Calculates perplexity as {@link #score(AbstractNGramLanguageModel)} does, scoring the chunks of sentences as tasks on the given executor.
+	 * The result is the same as when scoring on a single thread.
+	 * @param languageModel language model to score; must be safe to query from several threads at once
+	 * @param executor runs the scoring tasks; not shut down by this method
+	 * @return perplexity of the language model on the reference sentences
+	 */
+	public Score score(final AbstractNGramLanguageModel languageModel, ExecutorService executor) {
+		List<Future<Tally>> futures = new ArrayList<Future<Tally>>(chunks());
+		for(int chunk=0; chunk<chunks(); chunk++) {
+			final int c = chunk;
+			futures.add(executor.submit(new Callable<Tally>() {
+				@Override
+				public Tally call() {
+					return tally(languageModel, c);
+				}
+			}));
+		}
+
+		// Totals are added in chunk order, whichever task finishes first
+		Tally total = new Tally();
+		try {
+			for(Future<Tally> future : futures) {
+				total.accumulate(future.get());
+			}
+		} catch (InterruptedException e) {
+			for(Future<Tally> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			for(Future<Tally> future : futures) {
+				future.cancel(true);
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return toScore(languageModel, total);
+	}
+
+
+	/**
+	 * Calculates perplexity on a pool of threads created for this call.
+	 * @param languageModel language model to score; must be safe to query from several threads at once
+	 * @param threads number of threads to score with
+	 * @return perplexity of the language model on the reference sentences
+	 * @see #score(AbstractNGramLanguageModel, ExecutorService)
+	 */
+	public Score score(AbstractNGramLanguageModel languageModel, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("must score with at least one thread");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return score(languageModel, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * @return number of chunks that the reference sentences are split into
+	 */
+	private int chunks() {
+		return (referenceSentenceList.size() + SENTENCES_PER_CHUNK - 1) / SENTENCES_PER_CHUNK;
+	}
+
+
+	/**
+	 * Turn the totals over all sentences into a score.
+	 */
+	private static Score toScore(AbstractNGramLanguageModel languageModel, Tally total) {
 		Score s = new Score();
-		int N = 0;
-		for(List<String> sentence : referenceSentenceList) {
+		s.perplexity = languageModel.antilog(-total.logProb / total.tokens);  // Rewrite accumulating log-probability as perplexity
+		s.skippedOOVNGrams = total.skippedOOVNGrams;
+		return s;
+	}
+
+
+	/**
+	 * Score one chunk of the reference sentences.
+	 * @param languageModel language model to score
+	 * @param chunk index of the chunk
+	 * @return totals over the sentences of the chunk
+	 */
+	private Tally tally(AbstractNGramLanguageModel languageModel, int chunk) {
+		int from = chunk * SENTENCES_PER_CHUNK;
+		List<List<String>> sentences = referenceSentenceList.subList(from, Math.min(from + SENTENCES_PER_CHUNK, referenceSentenceList.size()));
+		if(languageModel instanceof StatefulLanguageModel) {
+			return tally((StatefulLanguageModel)languageModel, sentences);
+		}
+
+		Tally t = new Tally();
+		for(List<String> sentence : sentences) {
+			if(sentence.isEmpty()) {
+				continue;  // an empty sentence has no tokens to score, as in the stateful tally
+			}
+
 			// adding individual sentences assumes sentences in P(W) are are independent
-			s.accumulate(logProbability(languageModel, sentence));
+			logProbability(languageModel, sentence, t);
 
 			// We don't calculate the probability of the first, start-of-sentence, token
-			N += (sentence.size()-1) - languageModel.getOOV(sentence).size();
+			t.tokens += (sentence.size()-1) - languageModel.getOOV(sentence).size();
 		}
-		s.perplexity = languageModel.antilog(-s.perplexity / N);  // Rewrite accumulating log-probability as perplexity
-		return s;
+		return t;
+	}
+
+
+	/**
+	 * Score sentences with {@link StatefulLanguageModel#scoreNext(LanguageModelState, int, LanguageModelState)},
+	 * counting OOV words in the same pass.
+	 * Two states are allocated up front and reused for every token.
+	 * Words are fetched by index, so a sentence that is not a random-access list, like a LinkedList, is first copied into one.
+	 * @param languageModel language model to score
+	 * @param sentences sentences to score
+	 * @return totals over the sentences
+	 */
+	private static Tally tally(StatefulLanguageModel languageModel, List<List<String>> sentences) {
+		Vocabulary vocabulary = languageModel.getVocabulary();
+		LanguageModelState state = languageModel.newState();
+		LanguageModelState next = languageModel.newState();
+		int [] first = new int[1];
+
+		Tally t = new Tally();
+		for(List<String> sentence : sentences) {
+			int size = sentence.size();
+			if(size == 0) {
+				continue;
+			}
+			if(!(sentence instanceof RandomAccess)) {
+				sentence = new ArrayList<String>(sentence);
+			}
+
+			// We don't calculate the probability of the first, start-of-sentence, token, but it is counted as OOV like getOOV() does
+			t.tokens += size-1;
+			first[0] = vocabulary.getId(sentence.get(0));
+			if(languageModel.isOOV(first[0])) {
+				t.tokens--;
+			}
+			languageModel.setContext(state, first, 0, 1);
+
+			// Sum each sentence on its own, in the same order as logProbability(AbstractNGramLanguageModel, List, Tally)
+			double logProb = 0.0;
+			for(int i=1; i<size; i++) {
+				int id = vocabulary.getId(sentence.get(i));
+				if(languageModel.isOOV(id)) {
+					t.tokens--;
+				}
+				double temp = languageModel.scoreNext(state, id, next);
+				if(Double.isInfinite(temp)) {
+					temp = 0.0;  // log(P(OOV)) = 1
+					t.skippedOOVNGrams++;
+				}
+				logProb += temp;
+				LanguageModelState swap = state;
+				state = next;
+				next = swap;
+			}
+			t.logProb += logProb;
+		}
+		return t;
 	}
 
 
@@ -116,10 +317,10 @@ public class PerplexityMetric {
 	 * Calculate the log-probability of a sequence of words.
 	 * Takes P(OOV) = 1 which effectively ignores OOV words, so perplexity can be calculated over a word sequence that contains some OOV.
 	 * @param delimitedSentence sequence of words starting with a beginning-of-sentence delimiter token and an end-of-sentence delimiter token
-	 * @return not really the "score", but instead, the log-probability of the given sequence of words and number of ngrams skipped when computing OOV.
+	 * @param t accumulates the log-probability of the given sequence of words and number of ngrams skipped when computing OOV
 	 */
-	private Score logProbability(AbstractNGramLanguageModel languageModel, List<String> delimitedSentence) {
-		Score s = new Score();
+	private static void logProbability(AbstractNGramLanguageModel languageModel, List<String> delimitedSentence, Tally t) {
+		double logProb = 0.0;
 		LinkedList<String> src = new LinkedList<String>();
 
 		for(String n : delimitedSentence) {
@@ -131,11 +332,11 @@ public class PerplexityMetric {
 				double temp = languageModel.logProbability(AbstractNGram.factory(src));
 				if(Double.isInfinite(temp)) {
 					temp = 0.0;  // log(P(OOV)) = 1
-					s.skippedOOVNGrams++;
+					t.skippedOOVNGrams++;
 				}
-				s.perplexity += temp;
+				logProb += temp;
 			}
 		}
-		return s;
+		t.logProb += logProb;
 	}
 }
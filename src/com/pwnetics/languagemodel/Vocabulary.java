@@ -28,13 +28,17 @@ authors.
 
 package com.pwnetics.languagemodel;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.pwnetics.languagemodel.ngram.AbstractNGram;
+
 
 /**
  * A set of words to which new words can only be added.
@@ -42,19 +46,52 @@ import java.util.Set;
  * Maintains a canonical version of the words in a string pool, to minimize memory usage for repeatedly created words.
  * This may come in handy when scanning a large amount of text and creating ngrams; m word strings will only ever take up 1 string's worth of memory.
  *
+ * Each word is also assigned a dense integer id, starting at zero and incremented as words are added.
+ * Ngrams keyed by word ids (see {@link com.pwnetics.languagemodel.ngram.WordIdNGram}) hash and compare a few ints rather than walking the characters of every word String.
+ * Iteration returns words in id order.
+ *
  * {@link UnsupportedOperationException} is thrown for any set operations that attempt to change the state of the set.
  *
  * @author romanows
  */
 public class Vocabulary implements Set<String> {
 
-	/** Used to hold the canonical word string in the value position */
-	private final Map<String,String> wordPool;
+	/** Id returned for words that are not in the vocabulary */
+	public static final int UNKNOWN_ID = -1;
+
+	/** Maps each canonical word string to its id */
+	private final Map<String,Integer> wordToId;
+
+	/** Holds the canonical word string at the position of its id */
+	private final List<String> idToWord;
 
 
 	/** Constructor */
 	public Vocabulary() {
-		wordPool = new HashMap<String, String>();
+		wordToId = new HashMap<String, Integer>();
+		idToWord = new ArrayList<String>();
+	}
+
+
+	/**
+	 * Constructor.
+	 * Sizes the tables to hold the given number of words without growing.
+	 * @param expectedSize expected number of words
+	 */
+	public Vocabulary(int expectedSize) {
+		wordToId = new HashMap<String, Integer>((int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(expectedSize / 0.75) + 1));
+		idToWord = new ArrayList<String>(expectedSize);
+	}
+
+
+	/**
+	 * Roughly estimate the heap memory used by a vocabulary, assuming a 64-bit JVM with compressed references and words of about eight characters.
+	 * @param size number of words
+	 * @return estimated number of bytes
+	 */
+	public static long estimateBytes(int size) {
+		// Map entry, table slot, Integer, String and its characters, and list slot
+		return size * 128L;
 	}
 
 
@@ -64,7 +101,11 @@ public class Vocabulary implements Set<String> {
 	 * @return the canonical String object, or null if the vocabulary does not contain a canonical string for the requested string
 	 */
 	public String getCanonical(String s) {
-		return wordPool.get(s);
+		Integer id = wordToId.get(s);
+		if(id == null) {
+			return null;
+		}
+		return idToWord.get(id);
 	}
 
 	/**
@@ -73,55 +114,122 @@ public class Vocabulary implements Set<String> {
 	 * @return the canonical String object
 	 */
 	public String addCanonical(String s) {
-		String t = wordPool.get(s);
-		if(t != null) {
-			return t;
+		return idToWord.get(addId(s));
+	}
+
+
+	/**
+	 * Get the id of a word.
+	 * @param s any string
+	 * @return the id of the word, or {@link #UNKNOWN_ID} if the word is not in the vocabulary
+	 */
+	public int getId(String s) {
+		Integer id = wordToId.get(s);
+		if(id == null) {
+			return UNKNOWN_ID;
+		}
+		return id;
+	}
+
+
+	/**
+	 * Get the id of a word, adding the word to the vocabulary if it is not already present.
+	 * @param s any string
+	 * @return the id of the word
+	 */
+	public int addId(String s) {
+		Integer id = wordToId.get(s);
+		if(id != null) {
+			return id;
+		}
+		id = idToWord.size();
+		wordToId.put(s, id);
+		idToWord.add(s);
+		return id;
+	}
+
+
+	/**
+	 * Get the canonical word string for an id.
+	 * @param id word id, in [0,{@link #size()})
+	 * @return the canonical word string
+	 */
+	public String getWord(int id) {
+		return idToWord.get(id);
+	}
+
+
+	/**
+	 * Get the ids of the words in an ngram.
+	 * Words that are not in the vocabulary are given the id {@link #UNKNOWN_ID}.
+	 * @param ngram any ngram
+	 * @return array holding the id of each word in the ngram, in order
+	 */
+	public int[] getIds(AbstractNGram ngram) {
+		int [] ids = new int[ngram.size()];
+		for(int i=0; i<ids.length; i++) {
+			ids[i] = getId(ngram.get(i));
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Get the ids of a sequence of words.
+	 * Words that are not in the vocabulary are given the id {@link #UNKNOWN_ID}.
+	 * @param words any sequence of words
+	 * @return array holding the id of each word, in order
+	 */
+	public int[] getIds(List<String> words) {
+		int [] ids = new int[words.size()];
+		int i = 0;
+		for(String word : words) {
+			ids[i++] = getId(word);
 		}
-		wordPool.put(s, s);
-		return s;
+		return ids;
 	}
 
 	@Override
 	public int size() {
-		return wordPool.size();
+		return idToWord.size();
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return wordPool.isEmpty();
+		return idToWord.isEmpty();
 	}
 
 	@Override
 	public boolean contains(Object o) {
-		return wordPool.containsKey(o);
+		return wordToId.containsKey(o);
 	}
 
 	@Override
 	public boolean containsAll(Collection<?> c) {
-		return wordPool.keySet().containsAll(c);
+		return wordToId.keySet().containsAll(c);
 	}
 
 	@Override
 	public Iterator<String> iterator() {
-		return Collections.unmodifiableMap(wordPool).values().iterator();
+		return Collections.unmodifiableList(idToWord).iterator();
 	}
 
 	@Override
 	public Object[] toArray() {
-		return Collections.unmodifiableMap(wordPool).values().toArray();
+		return idToWord.toArray();
 	}
 
 	@Override
 	public <T> T[] toArray(T[] a) {
-		return Collections.unmodifiableMap(wordPool).values().toArray(a);
+		return idToWord.toArray(a);
 	}
 
 	@Override
 	public boolean add(String s) {
-		if(wordPool.containsKey(s)) {
+		if(wordToId.containsKey(s)) {
 			return false;
 		}
-		wordPool.put(s,s);
+		addId(s);
 		return true;
 	}
 
@@ -129,7 +237,7 @@ public class Vocabulary implements Set<String> {
 	public boolean addAll(Collection<? extends String> c) {
 		boolean changed = false;
 		for(String s : c) {
-			changed = changed || add(s);
+			changed = add(s) || changed;
 		}
 		return changed;
 	}
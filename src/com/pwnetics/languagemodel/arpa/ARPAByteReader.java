@@ -0,0 +1,1153 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+
+
+/**
+ * Reads the ngram sections of an ARPA file as bytes, from memory-mapped chunks of a file or from blocks of a stream, optionally on several threads.
+ *
+ * For a file, a first pass over its bytes finds the header and the byte offsets of the "\N-grams:" section headers, which are the only lines that start with a backslash.
+ * Each section is then cut into chunks that are mapped and parsed into per-chunk arrays of word ids, probabilities, and backoff weights.
+ * A gzip-compressed file, or a stream, is instead read once from start to end by a {@link BlockReader}, which inflates it on its own thread,
+ * and the runs of entries in each block are parsed like the chunks of a file.
+ * Parsing works on the mapped bytes: fields are byte ranges, numbers are parsed without creating Strings,
+ * and words are found by their bytes in a {@link ByteSliceVocabulary}, so a word's String is created only when the word is first seen.
+ *
+ * With more than one thread, chunks are parsed concurrently, with only a few chunks per thread in flight at a time, so memory use does not grow with the file.
+ * The chunks are merged into the storage builder in file order, and words that a chunk could not find are added to the vocabulary in file order while merging,
+ * so the word ids and ngrams are the same however many threads are used.
+ *
+ * @author romanows
+ */
+class ARPAByteReader {
+
+	/** Default number of bytes of ngram entries parsed by one task */
+	static final int DEFAULT_CHUNK_BYTES = 4 << 20;
+
+	/** Number of chunks per thread that may be parsed ahead of the merge */
+	private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+
+	/** Number of bytes read at a time when indexing the file, and mapped past the end of a chunk to take in the end of its last line */
+	private static final int READ_BYTES = 1 << 16;
+
+	/** Powers of ten that are exactly representable as doubles */
+	private static final double [] EXACT_POWERS_OF_TEN = new double[23];
+	static {
+		EXACT_POWERS_OF_TEN[0] = 1.0;
+		for(int i=1; i<EXACT_POWERS_OF_TEN.length; i++) {
+			EXACT_POWERS_OF_TEN[i] = EXACT_POWERS_OF_TEN[i-1] * 10.0;
+		}
+	}
+
+	/** Number of blocks of a stream that may be read ahead of the parser */
+	private static final int BLOCKS_AHEAD = 4;
+
+	/** First two bytes of a gzip stream */
+	private static final int GZIP_MAGIC_0 = 0x1f, GZIP_MAGIC_1 = 0x8b;
+
+	private static final Pattern splitNGramLenPattern = Pattern.compile("\\s+|=");
+
+
+	/** A run of ngram entries of one order, as parsed by one task */
+	private static class Chunk {
+		/** Mapped bytes of the chunk, which the unresolved words refer to */
+		ByteBuffer buffer;
+
+		/** Order of the entries */
+		int order;
+
+		/** Number of entries parsed */
+		int count = 0;
+
+		/** Word ids of the entries, order ids per entry; {@link Vocabulary#UNKNOWN_ID} where the word was not yet in the vocabulary */
+		int [] ids;
+
+		/** Log-probability of each entry */
+		double [] probs;
+
+		/** Log-backoff weight of each entry */
+		double [] backoffs;
+
+		/** Number of words that were not yet in the vocabulary */
+		int unresolvedCount = 0;
+
+		/** Indexes into {@link #ids} of the words that were not yet in the vocabulary, in file order */
+		int [] unresolvedIndexes = new int[16];
+
+		/** Index in {@link #buffer} of the first byte of each word that was not yet in the vocabulary */
+		int [] unresolvedStarts = new int[16];
+
+		/** Index in {@link #buffer} after the last byte of each word that was not yet in the vocabulary */
+		int [] unresolvedEnds = new int[16];
+
+		Chunk(ByteBuffer buffer, int order) {
+			this.buffer = buffer;
+			this.order = order;
+			ids = new int[16 * order];
+			probs = new double[16];
+			backoffs = new double[16];
+		}
+
+		/**
+		 * Make room for another entry.
+		 */
+		void ensureEntryCapacity() {
+			if(count == probs.length) {
+				int capacity = probs.length * 2;
+				int [] largerIds = new int[capacity * order];
+				System.arraycopy(ids, 0, largerIds, 0, count * order);
+				ids = largerIds;
+				double [] largerProbs = new double[capacity];
+				System.arraycopy(probs, 0, largerProbs, 0, count);
+				probs = largerProbs;
+				double [] largerBackoffs = new double[capacity];
+				System.arraycopy(backoffs, 0, largerBackoffs, 0, count);
+				backoffs = largerBackoffs;
+			}
+		}
+
+		/**
+		 * Record a word that was not yet in the vocabulary.
+		 */
+		void addUnresolved(int index, int start, int end) {
+			if(unresolvedCount == unresolvedIndexes.length) {
+				int capacity = unresolvedIndexes.length * 2;
+				int [] larger = new int[capacity];
+				System.arraycopy(unresolvedIndexes, 0, larger, 0, unresolvedCount);
+				unresolvedIndexes = larger;
+				larger = new int[capacity];
+				System.arraycopy(unresolvedStarts, 0, larger, 0, unresolvedCount);
+				unresolvedStarts = larger;
+				larger = new int[capacity];
+				System.arraycopy(unresolvedEnds, 0, larger, 0, unresolvedCount);
+				unresolvedEnds = larger;
+			}
+			unresolvedIndexes[unresolvedCount] = index;
+			unresolvedStarts[unresolvedCount] = start;
+			unresolvedEnds[unresolvedCount] = end;
+			unresolvedCount++;
+		}
+	}
+
+
+	/** File read as the ARPA language model file; null when reading a stream */
+	private final File modelFile;
+
+	/** Name of the model in error messages */
+	private final String name;
+
+	/** Number of threads that parse chunks */
+	private final int threads;
+
+	/** Nominal number of bytes of ngram entries parsed by one task */
+	private final int chunkBytes;
+
+	/** Charset used to decode the file, the platform default as used by a FileReader */
+	private final Charset charset = Charset.defaultCharset();
+
+	/** Guards {@link #words}; tasks look words up under the read lock while the merge adds new words under the write lock */
+	private final ReadWriteLock vocabularyLock = new ReentrantReadWriteLock();
+
+	/** Finds the ids of words by their bytes; created for each read */
+	private ByteSliceVocabulary words;
+
+	/** Vocabulary assigned the ids of the model's words by the last read */
+	private Vocabulary vocabulary;
+
+	/** Whether the vocabulary and word table of a read are kept for the reads after it; see {@link #keepVocabulary()} */
+	private boolean keepVocabulary = false;
+
+	/** Whether the read in progress looks its words up in the kept word table of an earlier read */
+	private boolean sharedVocabulary = false;
+
+
+	/**
+	 * Constructor for reading a file, which may be gzip-compressed.
+	 * @param modelFile ARPA language model file to read
+	 * @param threads number of threads that parse chunks; with one thread, chunks are parsed on the calling thread
+	 * @param chunkBytes nominal number of bytes of ngram entries parsed by one task
+	 */
+	ARPAByteReader(File modelFile, int threads, int chunkBytes) {
+		this(modelFile, modelFile.getPath(), threads, chunkBytes);
+	}
+
+
+	/**
+	 * Constructor for reading streams with {@link #read(InputStream, int, BackoffStorageType, Set)}.
+	 * @param name name of the model in error messages
+	 * @param threads number of threads that parse blocks; with one thread, blocks are parsed on the calling thread
+	 * @param chunkBytes nominal number of bytes in a block of the stream
+	 */
+	ARPAByteReader(String name, int threads, int chunkBytes) {
+		this(null, name, threads, chunkBytes);
+	}
+
+
+	private ARPAByteReader(File modelFile, String name, int threads, int chunkBytes) {
+		if(threads < 1 || chunkBytes < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.modelFile = modelFile;
+		this.name = name;
+		this.threads = threads;
+		this.chunkBytes = chunkBytes;
+	}
+
+
+	/**
+	 * Keep the vocabulary and word table of the next read, so that the reads after it share them.
+	 * A later read looks every word up in the kept table, so its word ids are those of the first read by construction.
+	 * It fails if the file holds a word that the first read did not add, and so never changes the vocabulary, which may be in use meanwhile.
+	 * Reads of a reader that keeps its vocabulary must keep every ngram.
+	 */
+	void keepVocabulary() {
+		keepVocabulary = true;
+	}
+
+
+	/**
+	 * Read only the "\data\" header of the ARPA file.
+	 * @param readDepth do not count model information of order above this quantity; a value less than one counts all model information
+	 * @return number of ngrams declared for each order up to the read depth
+	 * @throws IOException on problems reading or parsing the header
+	 */
+	int [] readDeclaredCounts(int readDepth) throws IOException {
+		InputStream in = decompress(new FileInputStream(modelFile));
+		try {
+			Map<Integer, Integer> ngramLenMap = new HashMap<Integer, Integer>();
+			int maxDepth = index(Channels.newChannel(in), ngramLenMap, new HashMap<Integer, long []>(), true);
+			return declaredCounts(ngramLenMap, maxDepth, readDepth);
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Read the ARPA file into a storage.
+	 * The vocabulary and every per-order structure are sized from the counts declared in the header.
+	 * @param readDepth do not read model information of order above this quantity; a value less than one will read all model information
+	 * @param storageType how the language model will store its ngrams
+	 * @param limit words to keep; ngrams holding any other word are dropped, and the other words are not added to the vocabulary; null to keep every ngram
+	 * @return storage holding the ngrams of the file; its word ids are those of {@link #getVocabulary()}
+	 * @throws IOException on problems reading or parsing the file
+	 */
+	BackoffStorage read(int readDepth, BackoffStorageType storageType, Set<String> limit) throws IOException {
+		return read(readDepth, storageType, limit, null);
+	}
+
+
+	/**
+	 * Read more orders of the ARPA file into a storage that extends one returned by an earlier read of this reader, which must keep its vocabulary.
+	 * The ngrams below the earlier storage's highest order are copied from it rather than parsed again.
+	 * Its highest order is parsed again along with the orders above it, since a storage does not hold the backoff weights of its highest order.
+	 * Copying is exact for every storage type: a quantized order is quantized again to the same codebook.
+	 * @param lower storage returned by an earlier read of this reader
+	 * @param readDepth do not read model information of order above this quantity; a value less than one will read all model information
+	 * @param storageType how the language model will store its ngrams; the type of the earlier storage
+	 * @return storage holding the ngrams of the file; its word ids are those of {@link #getVocabulary()}
+	 * @throws IOException on problems reading or parsing the file
+	 */
+	BackoffStorage readAbove(BackoffStorage lower, int readDepth, BackoffStorageType storageType) throws IOException {
+		if(!keepVocabulary || words == null) {
+			throw new IllegalStateException("only a reader that kept the vocabulary of an earlier read can extend its storage");
+		}
+		return read(readDepth, storageType, null, lower);
+	}
+
+
+	/**
+	 * Read the ARPA file into a storage, copying the orders below the highest order of a lower storage from it, if there is one.
+	 */
+	private BackoffStorage read(int readDepth, BackoffStorageType storageType, Set<String> limit, BackoffStorage lower) throws IOException {
+		if(isGzip(modelFile)) {
+			InputStream in = decompress(new FileInputStream(modelFile));
+			try {
+				return readStream(in, readDepth, storageType, limit, lower);
+			} finally {
+				in.close();
+			}
+		}
+
+		FileInputStream fis = new FileInputStream(modelFile);
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			FileChannel channel = fis.getChannel();
+
+			// Find the ngram length declarations and the byte range of each section
+			Map<Integer, Integer> ngramLenMap = new HashMap<Integer, Integer>();
+			Map<Integer, long []> orderToRange = new HashMap<Integer, long []>();
+			int maxDepth = index(channel, ngramLenMap, orderToRange, false);
+			int [] orderCounts = declaredCounts(ngramLenMap, maxDepth, readDepth);
+			readDepth = orderCounts.length;
+			for(int i=1; i<=maxDepth; i++) {
+				if(!orderToRange.containsKey(i)) {
+					throw new IOException("Corrupt Language Model " + name + ": reached end of file without reading all required information");
+				}
+			}
+			Merger merger = new Merger(executor, newBuilder(orderCounts, storageType, limit), readDepth);
+			try {
+				for(int order=merger.copyBelow(lower); order<=readDepth; order++) {
+					long [] range = orderToRange.get(order);
+					for(long start=range[0]; start<range[1]; start+=chunkBytes) {
+						long end = Math.min(start + chunkBytes, range[1]);
+						merger.add(newParseTask(channel, order, readDepth, range, start, end));
+					}
+				}
+				merger.finish();
+			} finally {
+				merger.cancel();
+			}
+			return merger.build(orderCounts);
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			fis.close();
+			if(!keepVocabulary) {
+				words = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Read an ARPA model from a stream into a storage; a gzip-compressed stream is inflated.
+	 * The stream is read on a separate thread, up to the end of the last section that is read, and is not closed.
+	 * @param in stream holding an ARPA model
+	 * @param readDepth do not read model information of order above this quantity; a value less than one will read all model information
+	 * @param storageType how the language model will store its ngrams
+	 * @param limit words to keep; ngrams holding any other word are dropped, and the other words are not added to the vocabulary; null to keep every ngram
+	 * @return storage holding the ngrams of the stream; its word ids are those of {@link #getVocabulary()}
+	 * @throws IOException on problems reading or parsing the stream
+	 */
+	BackoffStorage read(InputStream in, int readDepth, BackoffStorageType storageType, Set<String> limit) throws IOException {
+		return readStream(decompress(in), readDepth, storageType, limit, null);
+	}
+
+
+	/**
+	 * Read an ARPA model from an uncompressed stream, in blocks read ahead on a separate thread.
+	 * Lines of the header and lines that start with a backslash are interpreted as they are reached; the runs of entries between them are parsed like the chunks of a file.
+	 * Reading stops at the header of the first section above the read depth.
+	 * The runs of entries of the orders copied from a lower storage are skipped.
+	 */
+	private BackoffStorage readStream(InputStream in, int readDepth, BackoffStorageType storageType, Set<String> limit, BackoffStorage lower) throws IOException {
+		BlockReader blocks = new BlockReader(in, chunkBytes, BLOCKS_AHEAD);
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		Merger merger = null;
+		try {
+			Map<Integer, Integer> ngramLenMap = new HashMap<Integer, Integer>();
+			Index index = new Index(ngramLenMap, new HashMap<Integer, long []>());
+			LineBytes line = new LineBytes();
+			int [] orderCounts = null;
+			int firstOrder = 1;
+			long offset = 0;
+			ByteBuffer block;
+			reading:
+			while(!index.seenEnd && (block = blocks.next()) != null) {
+				int length = block.limit();
+				int position = 0;
+				while(position < length) {
+					if(index.order > 0 && block.get(position) != '\\') {
+						// A run of entries, up to the next line that starts with a backslash
+						int runEnd = position;
+						do {
+							while(runEnd < length && block.get(runEnd) != '\n') {
+								runEnd++;
+							}
+							runEnd++;
+						} while(runEnd < length && block.get(runEnd) != '\\');
+						runEnd = Math.min(runEnd, length);
+						if(index.order >= firstOrder) {
+							merger.add(newParseTask(block, position, runEnd, offset, index.order, readDepth));
+						}
+						position = runEnd;
+						continue;
+					}
+
+					int lineEnd = position;
+					while(lineEnd < length && block.get(lineEnd) != '\n') {
+						lineEnd++;
+					}
+					if(block.get(position) == '\\' || index.inHeader()) {
+						line.clear();
+						for(int i=position; i<lineEnd; i++) {
+							line.append(block.get(i));
+						}
+						index.line(line.toString(charset), offset + position, offset + lineEnd + 1);
+					}
+					position = lineEnd + 1;
+					if(index.seenEnd) {
+						break reading;
+					}
+
+					if(orderCounts == null && index.order > 0) {
+						// The header has been read
+						orderCounts = declaredCounts(ngramLenMap, index.maxDepth, readDepth);
+						readDepth = orderCounts.length;
+						merger = new Merger(executor, newBuilder(orderCounts, storageType, limit), readDepth);
+						firstOrder = merger.copyBelow(lower);
+					}
+					if(orderCounts != null && index.order > readDepth) {
+						break reading;
+					}
+				}
+				offset += length;
+			}
+
+			if(orderCounts == null || (!index.seenEnd && index.order <= readDepth)) {
+				throw new IOException("Corrupt Language Model " + name + ": reached end of file without reading all required information");
+			}
+			merger.finish();
+			return merger.build(orderCounts);
+		} finally {
+			if(merger != null) {
+				merger.cancel();
+			}
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			blocks.close();
+			if(!keepVocabulary) {
+				words = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Create the vocabulary and word table of a read, sized from the declared counts, unless an earlier read's are kept, and the builder that the entries are merged into.
+	 * A limited read stages the kept ngrams, so that the storage is sized to them rather than to the declared counts.
+	 */
+	private BackoffStorageBuilder newBuilder(int [] orderCounts, BackoffStorageType storageType, Set<String> limit) {
+		if(keepVocabulary && limit != null) {
+			throw new IllegalStateException("a reader that keeps its vocabulary must keep every ngram");
+		}
+		sharedVocabulary = words != null;
+		if(!sharedVocabulary) {
+			vocabulary = new Vocabulary(limit == null ? orderCounts[0] : Math.min(orderCounts[0], limit.size()));
+			words = new ByteSliceVocabulary(vocabulary, charset, orderCounts[0], limit);
+		}
+		if(limit == null) {
+			return storageType.newBuilder(orderCounts[0], orderCounts);
+		}
+		return new StagingBuilder(storageType, vocabulary, orderCounts.length);
+	}
+
+
+	/**
+	 * Whether a file starts with the gzip magic number.
+	 */
+	private static boolean isGzip(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read() == GZIP_MAGIC_0 && in.read() == GZIP_MAGIC_1;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Wrap a stream to inflate it if it starts with the gzip magic number.
+	 * @param in stream that may be gzip-compressed
+	 * @return uncompressed stream; closing it closes the given stream
+	 */
+	private static InputStream decompress(InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		byte [] magic = new byte[2];
+		int n = 0;
+		int read;
+		while(n < magic.length && (read = pushback.read(magic, n, magic.length - n)) >= 0) {
+			n += read;
+		}
+		pushback.unread(magic, 0, n);
+		if(n == magic.length && (magic[0] & 0xff) == GZIP_MAGIC_0 && (magic[1] & 0xff) == GZIP_MAGIC_1) {
+			return new GZIPInputStream(pushback, READ_BYTES);
+		}
+		return pushback;
+	}
+
+
+	/**
+	 * Get the vocabulary assigned the ids of the model's words by the last read.
+	 * @return vocabulary of the last read, or null before the first read
+	 */
+	Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+
+	/**
+	 * Get the number of ngrams declared for each order that is read.
+	 * @param ngramLenMap number of ngrams declared for each order
+	 * @param maxDepth highest order declared
+	 * @param readDepth do not count model information of order above this quantity; a value less than one counts all model information
+	 * @return number of ngrams declared for each order up to the read depth
+	 * @throws IOException if the declaration of an order is missing
+	 */
+	private int [] declaredCounts(Map<Integer, Integer> ngramLenMap, int maxDepth, int readDepth) throws IOException {
+		readDepth = readDepth < 1 ? maxDepth : Math.min(readDepth, maxDepth);
+		if(readDepth < 1) {
+			throw new IOException("Corrupt Language Model " + name + ": no ngram length declarations");
+		}
+		int [] orderCounts = new int[readDepth];
+		for(int i=1; i<=readDepth; i++) {
+			if(!ngramLenMap.containsKey(i)) {
+				throw new IOException("Corrupt Language Model " + name + ": missing ngram length declaration for order " + i);
+			}
+			orderCounts[i-1] = ngramLenMap.get(i);
+		}
+		return orderCounts;
+	}
+
+
+	/**
+	 * Scan the file for the ngram length declarations and the section headers.
+	 * Only lines of the header and lines that start with a backslash are decoded; other lines are skipped over byte by byte.
+	 * @param channel channel of the model, read from its current position
+	 * @param ngramLenMap filled with the number of ngrams declared for each order
+	 * @param orderToRange filled with the byte offsets of the first entry of each section and of the end of the section
+	 * @param headerOnly stop at the first section header, leaving the section ranges unfilled
+	 * @return highest order declared
+	 * @throws IOException on problems reading or parsing the file
+	 */
+	private int index(ReadableByteChannel channel, Map<Integer, Integer> ngramLenMap, Map<Integer, long []> orderToRange, boolean headerOnly) throws IOException {
+		Index index = new Index(ngramLenMap, orderToRange);
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+		LineBytes line = new LineBytes();
+		boolean atLineStart = true;
+		boolean gathering = false;
+		long position = 0;
+		long lineStart = 0;
+		int n;
+		while(!index.isDone(headerOnly) && (n = channel.read(buffer)) >= 0) {
+			byte [] bytes = buffer.array();
+			for(int i=0; i<n && !index.isDone(headerOnly); i++) {
+				byte b = bytes[i];
+				if(atLineStart) {
+					atLineStart = false;
+					lineStart = position + i;
+					gathering = b == '\\' || index.inHeader();
+					line.clear();
+				}
+				if(b == '\n') {
+					atLineStart = true;
+					if(gathering) {
+						index.line(line.toString(charset), lineStart, position + i + 1);
+					}
+				} else if(gathering) {
+					line.append(b);
+				}
+			}
+			position += n;
+			buffer.clear();
+		}
+		if(!index.isDone(headerOnly) && !atLineStart && gathering) {
+			index.line(line.toString(charset), lineStart, position);
+		}
+
+		if(!index.isDone(headerOnly)) {
+			throw new IOException("Corrupt Language Model " + name + ": reached end of file without reading all required information");
+		}
+		return index.maxDepth;
+	}
+
+
+	/**
+	 * Interprets the lines found while indexing the file.
+	 */
+	private class Index {
+		private final Map<Integer, Integer> ngramLenMap;
+		private final Map<Integer, long []> orderToRange;
+
+		/** Whether the "\data\" line has been seen */
+		boolean inData = false;
+
+		/** Whether the "\end\" line has been seen */
+		boolean seenEnd = false;
+
+		/** Highest order declared */
+		int maxDepth = 0;
+
+		/** Order of the section being read, or zero before the first section */
+		int order = 0;
+
+		Index(Map<Integer, Integer> ngramLenMap, Map<Integer, long []> orderToRange) {
+			this.ngramLenMap = ngramLenMap;
+			this.orderToRange = orderToRange;
+		}
+
+		/**
+		 * @return whether the lines being read are the ngram length declarations
+		 */
+		boolean inHeader() {
+			return inData && order == 0;
+		}
+
+		/**
+		 * @param headerOnly whether only the header is wanted
+		 * @return whether all wanted lines have been read
+		 */
+		boolean isDone(boolean headerOnly) {
+			return seenEnd || (headerOnly && order > 0);
+		}
+
+		/**
+		 * Interpret a line of the header or a line that starts with a backslash.
+		 * @param s the line, without its line terminator
+		 * @param lineStart byte offset of the start of the line
+		 * @param nextLineStart byte offset of the start of the following line
+		 */
+		void line(String s, long lineStart, long nextLineStart) throws IOException {
+			if(s.equals("\\data\\")) {
+				inData = true;
+			} else if(inHeader() && s.startsWith("ngram")) {
+				String [] tok = splitNGramLenPattern.split(s);
+				if(tok.length != 3) {
+					throw new IOException("Corrupt Language Model " + name + " at byte " + lineStart + ": invalid ngram length declaration");
+				}
+				try {
+					int depth = Integer.parseInt(tok[1]);
+					maxDepth = Math.max(maxDepth, depth);
+					ngramLenMap.put(depth, Integer.parseInt(tok[2]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Corrupt Language Model " + name + " at byte " + lineStart + ": problem parsing ngram section length", e);
+				}
+			} else if(inData && s.endsWith("-grams:")) {
+				if(order > 0) {
+					orderToRange.get(order)[1] = lineStart;
+				}
+				try {
+					order = Integer.parseInt(s.substring(1).split("-")[0]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Corrupt Language Model " + name + " at byte " + lineStart + ": problem parsing ngram section header", e);
+				}
+				orderToRange.put(order, new long [] {nextLineStart, nextLineStart});
+			} else if(order > 0 && s.equals("\\end\\")) {
+				orderToRange.get(order)[1] = lineStart;
+				seenEnd = true;
+			} else if(order > 0) {
+				throw new IOException("Corrupt Language Model " + name + " at byte " + lineStart + ": unexpected information in ngrams section");
+			}
+		}
+	}
+
+
+	/**
+	 * Create a task that parses the entries whose lines start in a range of bytes of a section.
+	 */
+	private Callable<Chunk> newParseTask(final FileChannel channel, final int order, final int readDepth, final long [] section, final long start, final long end) {
+		return new Callable<Chunk>() {
+			@Override
+			public Chunk call() throws IOException {
+				return parse(channel, order, readDepth, section, start, end);
+			}
+		};
+	}
+
+
+	/**
+	 * Create a task that parses a run of entry lines of a block of a stream.
+	 */
+	private Callable<Chunk> newParseTask(final ByteBuffer block, final int start, final int end, final long blockOffset, final int order, final int readDepth) {
+		return new Callable<Chunk>() {
+			@Override
+			public Chunk call() throws IOException {
+				return parseLines(block, start, end, blockOffset, order, readDepth);
+			}
+		};
+	}
+
+
+	/**
+	 * Whether a byte separates the fields of an entry; the same characters as the regex "\\s", less the line feed that ends the entry.
+	 */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == 0x0B || b == '\f';
+	}
+
+
+	/**
+	 * Parse the entries whose lines start in a range of bytes of a section.
+	 * The line running over the end of the range is read to its end; a line running into the start of the range belongs to the previous range.
+	 * @param channel channel of the model file
+	 * @param order order of the section's ngrams
+	 * @param readDepth highest order being read
+	 * @param section byte offsets of the first entry of the section and of the end of the section
+	 * @param start offset of the first byte of the range
+	 * @param end offset after the last byte of the range
+	 * @return the parsed entries
+	 * @throws IOException on problems reading or parsing the file
+	 */
+	private Chunk parse(FileChannel channel, int order, int readDepth, long [] section, long start, long end) throws IOException {
+		// Map from the byte before the range, to see whether the range starts on a line, and on to the end of the line that runs over the end of the range
+		long from = start > section[0] ? start - 1 : start;
+		long mapEnd = Math.min(end + READ_BYTES, section[1]);
+		ByteBuffer buffer;
+		int length;
+		while(true) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, mapEnd - from);
+			length = (int)(end - from) - 1;
+			while(length < buffer.limit() && buffer.get(length) != '\n') {
+				length++;
+			}
+			if(length < buffer.limit() || mapEnd == section[1]) {
+				break;
+			}
+			mapEnd = Math.min(mapEnd + (mapEnd - end), section[1]);
+		}
+		length = Math.min(length + 1, buffer.limit());
+
+		int position = 0;
+		if(from < start) {
+			while(position < length && buffer.get(position) != '\n') {
+				position++;
+			}
+			position = Math.min(position + 1, length);
+		}
+		if(from + position >= end) {
+			// No line starts in the range
+			position = length;
+		}
+		return parseLines(buffer, position, length, from, order, readDepth);
+	}
+
+
+	/**
+	 * Parse the entry lines in a range of a buffer.
+	 * @param buffer holds the lines; kept by the chunk to resolve its new words
+	 * @param position index of the start of the first line
+	 * @param length index after the end of the last line
+	 * @param from offset in the model of the start of the buffer, for error messages
+	 * @param order order of the section's ngrams
+	 * @param readDepth highest order being read
+	 * @return the parsed entries
+	 * @throws IOException on problems parsing the entries
+	 */
+	private Chunk parseLines(ByteBuffer buffer, int position, int length, long from, int order, int readDepth) throws IOException {
+		Chunk chunk = new Chunk(buffer, order);
+		int [] fieldStarts = new int[order + 3];
+		int [] fieldEnds = new int[order + 3];
+		vocabularyLock.readLock().lock();
+		try {
+			while(position < length) {
+				int lineStart = position;
+
+				// Find the whitespace-separated fields of the line
+				int fields = 0;
+				while(position < length && buffer.get(position) != '\n') {
+					byte b = buffer.get(position);
+					if(isSpace(b)) {
+						position++;
+						continue;
+					}
+					if(fields == fieldStarts.length) {
+						fields++;
+						break;
+					}
+					fieldStarts[fields] = position;
+					while(position < length && !isSpace(b) && b != '\n') {
+						position++;
+						b = position < length ? buffer.get(position) : 0;
+					}
+					fieldEnds[fields] = position;
+					fields++;
+				}
+				while(position < length && buffer.get(position) != '\n') {
+					position++;
+				}
+				position++;
+
+				if(fields == 0) {
+					continue;
+				}
+				if(!(fields == (2 + order) || fields == (1 + order))) {
+					throw new IOException("Corrupt Language Model " + name + " at byte " + (from + lineStart) + ": ngram entry has incorrect number of items (maybe incorrect ngram length in header or ngram entry contains extra information after words and backoff weights?)");
+				}
+
+				chunk.ensureEntryCapacity();
+				int base = chunk.count * order;
+				for(int i=1; i<=order; i++) {
+					int id = words.getId(buffer, fieldStarts[i], fieldEnds[i]);
+					if(id == Vocabulary.UNKNOWN_ID) {
+						chunk.addUnresolved(base + i - 1, fieldStarts[i], fieldEnds[i]);
+					}
+					chunk.ids[base + i - 1] = id;
+				}
+
+				try {
+					chunk.probs[chunk.count] = parseDouble(buffer, fieldStarts[0], fieldEnds[0]);
+					if(order < readDepth) {
+						if(fields == (2 + order)) {
+							double log10Backoff = parseDouble(buffer, fieldStarts[fields-1], fieldEnds[fields-1]);
+							chunk.backoffs[chunk.count] = log10Backoff == ARPAModelLoader.FILE_LOG_ZERO ? ARPAModelLoader.LOG_ZERO : log10Backoff;
+						} else {
+							// Absence of a backoff prob where there should be a backoff prob we'll just set it as zero likelihood
+							chunk.backoffs[chunk.count] = ARPAModelLoader.LOG_ZERO;
+						}
+					} else {
+						chunk.backoffs[chunk.count] = Double.NaN;
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("Corrupt Language Model " + name + " at byte " + (from + lineStart) + ": problem parsing ngram entry", e);
+				}
+				chunk.count++;
+			}
+		} finally {
+			vocabularyLock.readLock().unlock();
+		}
+		return chunk;
+	}
+
+
+	/**
+	 * Parse a decimal number from a range of ASCII bytes, giving the same value as {@link Double#parseDouble(String)}.
+	 * Numbers with at most 15 significant digits and a small exponent, like those written in ARPA files, are parsed without allocating:
+	 * the digits and the power of ten are both exact doubles, so one multiplication or division rounds correctly.
+	 * Other numbers are handed to {@link Double#parseDouble(String)}.
+	 * @param buffer holds the number
+	 * @param start index of the first byte of the number
+	 * @param end index after the last byte of the number
+	 * @return the parsed number
+	 * @throws NumberFormatException if the bytes are not a number
+	 */
+	static double parseDouble(ByteBuffer buffer, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if(i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+
+		long digits = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		for(; i<end; i++) {
+			byte b = buffer.get(i);
+			if(b >= '0' && b <= '9') {
+				seenDigit = true;
+				if(digits != 0 || b != '0') {
+					if(++significantDigits > 15) {
+						return parseDoubleString(buffer, start, end);
+					}
+					digits = digits * 10 + (b - '0');
+				}
+				if(seenPoint) {
+					exponent--;
+				}
+			} else if(b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+		}
+		if(!seenDigit) {
+			return parseDoubleString(buffer, start, end);
+		}
+
+		if(i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if(i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+				negativeExponent = buffer.get(i) == '-';
+				i++;
+			}
+			int e = 0;
+			int exponentStart = i;
+			for(; i<end && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++) {
+				if(e > 1000) {
+					return parseDoubleString(buffer, start, end);
+				}
+				e = e * 10 + (buffer.get(i) - '0');
+			}
+			if(i == exponentStart) {
+				return parseDoubleString(buffer, start, end);
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if(i != end) {
+			return parseDoubleString(buffer, start, end);
+		}
+
+		double value;
+		if(digits == 0) {
+			value = 0.0;
+		} else if(exponent >= 0 && exponent < EXACT_POWERS_OF_TEN.length) {
+			value = digits * EXACT_POWERS_OF_TEN[exponent];
+		} else if(exponent < 0 && -exponent < EXACT_POWERS_OF_TEN.length) {
+			value = digits / EXACT_POWERS_OF_TEN[-exponent];
+		} else {
+			return parseDoubleString(buffer, start, end);
+		}
+		return negative ? -value : value;
+	}
+
+
+	/**
+	 * Parse a range of ASCII bytes with {@link Double#parseDouble(String)}.
+	 */
+	private static double parseDoubleString(ByteBuffer buffer, int start, int end) {
+		char [] chars = new char[end - start];
+		for(int i=start; i<end; i++) {
+			chars[i-start] = (char)(buffer.get(i) & 0xff);
+		}
+		return Double.parseDouble(new String(chars));
+	}
+
+
+	/**
+	 * Wait for a parsing task.
+	 * @throws IOException if the task failed
+	 */
+	private Chunk get(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while reading " + name, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			} else if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+
+	/**
+	 * Run a parsing task on the calling thread.
+	 */
+	private static Chunk call(Callable<Chunk> task) throws IOException {
+		try {
+			return task.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+
+	/**
+	 * Merges parsed chunks into the storage builder in the order that their tasks are added.
+	 * Without an executor, each task runs on the calling thread as it is added;
+	 * with one, only a few tasks per thread are parsed ahead of the merge.
+	 */
+	private class Merger {
+		private final ExecutorService executor;
+		private final BackoffStorageBuilder builder;
+		private final LinkedList<Future<Chunk>> inFlight = new LinkedList<Future<Chunk>>();
+
+		/** Buffer for the word ids of an entry of each order */
+		private final int [][] orderToIds;
+
+		/** Number of entries merged of each order */
+		private final int [] orderToCount;
+
+		Merger(ExecutorService executor, BackoffStorageBuilder builder, int readDepth) {
+			this.executor = executor;
+			this.builder = builder;
+			orderToIds = new int[readDepth][];
+			for(int i=0; i<readDepth; i++) {
+				orderToIds[i] = new int[i+1];
+			}
+			orderToCount = new int[readDepth];
+		}
+
+		/**
+		 * Parse a chunk now, or submit it and merge the oldest chunk in flight if too many are.
+		 */
+		void add(Callable<Chunk> task) throws IOException {
+			if(executor == null) {
+				merge(call(task));
+				return;
+			}
+			if(inFlight.size() >= CHUNKS_IN_FLIGHT_PER_THREAD * threads) {
+				merge(get(inFlight.removeFirst()));
+			}
+			inFlight.add(executor.submit(task));
+		}
+
+		/**
+		 * Merge the chunks still in flight.
+		 */
+		void finish() throws IOException {
+			while(!inFlight.isEmpty()) {
+				merge(get(inFlight.removeFirst()));
+			}
+		}
+
+		/**
+		 * Cancel the chunks still in flight after a failure; does nothing after {@link #finish()}.
+		 */
+		void cancel() {
+			for(Future<Chunk> future : inFlight) {
+				future.cancel(true);
+			}
+			inFlight.clear();
+		}
+
+		/**
+		 * Copy the ngrams below the highest order of a lower storage into the storage builder, counting them as merged entries.
+		 * @param lower storage sharing the word ids of this read; null to copy nothing
+		 * @return lowest order left to parse
+		 */
+		int copyBelow(BackoffStorage lower) {
+			if(lower == null) {
+				return 1;
+			}
+			final int firstOrder = lower.order();
+			lower.copyTo(new BackoffEntrySink() {
+				@Override
+				public void add(int [] ids, double logProbability, double logBackoff) {
+					if(ids.length < firstOrder) {
+						builder.add(ids, logProbability, logBackoff);
+						orderToCount[ids.length-1]++;
+					}
+				}
+			});
+			return firstOrder;
+		}
+
+		/**
+		 * Check the number of entries merged against the declared counts and build the storage.
+		 */
+		BackoffStorage build(int [] orderCounts) throws IOException {
+			for(int order=1; order<=orderCounts.length; order++) {
+				if(orderToCount[order-1] != orderCounts[order-1]) {
+					throw new IOException("Corrupt Language Model " + name + ": " + order + "-grams section holds " + orderToCount[order-1] + " entries but " + orderCounts[order-1] + " were declared");
+				}
+			}
+			return builder.build();
+		}
+
+		/**
+		 * Add a parsed chunk's entries to the storage builder, first adding the words that were not yet in the vocabulary.
+		 * Entries holding a word outside of the limiting set are dropped, but are still counted against the declared counts.
+		 * @throws IOException if a read that shares an earlier read's vocabulary finds a word that is not in it
+		 */
+		private void merge(Chunk chunk) throws IOException {
+			if(chunk.unresolvedCount > 0 && sharedVocabulary) {
+				throw new IOException("Corrupt Language Model " + name + ": " + chunk.order + "-grams section holds a word that is not in the vocabulary read before");
+			}
+			if(chunk.unresolvedCount > 0) {
+				vocabularyLock.writeLock().lock();
+				try {
+					for(int i=0; i<chunk.unresolvedCount; i++) {
+						chunk.ids[chunk.unresolvedIndexes[i]] = words.addId(chunk.buffer, chunk.unresolvedStarts[i], chunk.unresolvedEnds[i]);
+					}
+				} finally {
+					vocabularyLock.writeLock().unlock();
+				}
+			}
+
+			int order = chunk.order;
+			int [] ids = orderToIds[order-1];
+			entries:
+			for(int e=0; e<chunk.count; e++) {
+				System.arraycopy(chunk.ids, e * order, ids, 0, order);
+				for(int id : ids) {
+					if(id == ByteSliceVocabulary.EXCLUDED_ID) {
+						continue entries;
+					}
+				}
+				builder.add(ids, chunk.probs[e], chunk.backoffs[e]);
+			}
+			orderToCount[order-1] += chunk.count;
+		}
+	}
+
+
+	/**
+	 * Growable buffer of the bytes of one line.
+	 */
+	private static class LineBytes {
+		private byte [] bytes = new byte[256];
+		private int length = 0;
+
+		void clear() {
+			length = 0;
+		}
+
+		void append(byte b) {
+			if(length == bytes.length) {
+				byte [] larger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, larger, 0, length);
+				bytes = larger;
+			}
+			bytes[length++] = b;
+		}
+
+		String toString(Charset charset) {
+			int end = length > 0 && bytes[length-1] == '\r' ? length-1 : length;
+			return new String(bytes, 0, end, charset);
+		}
+	}
+}
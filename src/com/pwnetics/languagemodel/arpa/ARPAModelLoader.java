@@ -28,21 +28,21 @@ authors.
 
 package com.pwnetics.languagemodel.arpa;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.pwnetics.languagemodel.Vocabulary;
 import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
-import com.pwnetics.languagemodel.lm.NGramProbability;
-import com.pwnetics.languagemodel.lm.NGramProbabilityBackoff;
-import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+import com.pwnetics.languagemodel.lm.storage.LazyBackoffStorage;
 
 
 /**
@@ -52,40 +52,27 @@ import com.pwnetics.languagemodel.ngram.AbstractNGram;
  *
  * Notable differences from the Sphinx 4 ARPA model loader:
  * <li> does not lowercase all n-gram words
- * <li> does not warn or otherwise restrict vocabulary to some predefined vocabulary
+ * <li> does not warn or otherwise restrict vocabulary to some predefined vocabulary, unless asked to limit the vocabulary as with SRILM's "-limit-vocab"
  * <li> reads a log probability of "-99" in a model file as "log(0)"
  *
+ * Model files and streams that are gzip-compressed are detected and inflated while they are read.
+ *
  * @author romanows
  */
 public class ARPAModelLoader {
 	/*
 	 * The loader code was copied from the SphinxDissect project, which is a refactored version of Sphinx 4.
-	 * The ARPA loader code had been refactored, and this is a further refactoring.
-	 *
-	 * Decided to break it up into sections rather than running everything in one big loop.
-	 * This should technically make it cleaner, although this appears to be arguable.
-	 *
-	 * Decided to use an enum to represent parser state.
+	 * The line-by-line reader has since been replaced by ARPAByteReader, which parses the bytes of the file or stream without decoding it into Strings.
 	 */
 
 	/** Value in ARPA file that represents the quantity "log(0)" */
-	private static final double FILE_LOG_ZERO = -99.0;
+	static final double FILE_LOG_ZERO = -99.0;
 
 	/** Value in languge model that represents the quantity "log(0)" */
 	public static final double LOG_ZERO = Double.NEGATIVE_INFINITY;
 
-    private static final Pattern splitNGramLenPattern = Pattern.compile("\\s+|=");
-    private static final Pattern whitespacePattern = Pattern.compile("\\s+");
-
-	private static enum FileParsingState {
-		READING_NGRAMS,
-		LOOKING_FOR_NEXT_NGRAMS,
-		AFTER_NGRAMS,
-		AFTER_END
-	};
-
 
-	/** File read as the ARPA language model file */
+	/** File read as the ARPA language model file; null when read from a stream */
 	private final File modelFile;
 
 	/** Language model created from the ARPA file */
@@ -94,6 +81,9 @@ public class ARPAModelLoader {
 	/** Vocabulary created when creating the language model */
 	private final Vocabulary vocabulary;
 
+	/** Load of the whole model running in the background; null when the model was loaded all at once */
+	private final FutureTask<Void> background;
+
 
 	/**
 	 * Load an ARPA format backoff language model file.
@@ -121,169 +111,300 @@ public class ARPAModelLoader {
 	 * @throws IllegalArgumentException on problems reading or parsing the file
 	 */
 	public ARPAModelLoader(File modelFile, int readDepth) {
+		this(modelFile, readDepth, BackoffStorageType.HASH_MAP);
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model file.
+	 * See class javadoc for more details.
+	 *
+	 * @param modelFile ARPA language model file to read and parse
+	 * @param readDepth do not read model information of order above this quantity; a value less than zero will read all model information.
+	 * This is useful when using a higher-order model as a lower-order model.
+	 * E.g., given an ARPA trigram model, setting readDepth = 2 will load a bigram BackoffLanguageModel.
+	 * @param storageType how the language model will store its ngrams
+	 *
+	 * @throws IllegalArgumentException on problems reading or parsing the file
+	 */
+	public ARPAModelLoader(File modelFile, int readDepth, BackoffStorageType storageType) {
+		this(modelFile, readDepth, storageType, 1);
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model file.
+	 * See class javadoc for more details.
+	 *
+	 * With more than one thread, chunks of every section are parsed concurrently and merged in file order.
+	 * The model and vocabulary are the same as those read on a single thread.
+	 *
+	 * @param modelFile ARPA language model file to read and parse
+	 * @param readDepth do not read model information of order above this quantity; a value less than zero will read all model information.
+	 * This is useful when using a higher-order model as a lower-order model.
+	 * E.g., given an ARPA trigram model, setting readDepth = 2 will load a bigram BackoffLanguageModel.
+	 * @param storageType how the language model will store its ngrams
+	 * @param threads number of threads that parse the file; one parses it on the calling thread
+	 *
+	 * @throws IllegalArgumentException on problems reading or parsing the file
+	 */
+	public ARPAModelLoader(File modelFile, int readDepth, BackoffStorageType storageType, int threads) {
+		this(modelFile, readDepth, storageType, threads, ARPAByteReader.DEFAULT_CHUNK_BYTES, null);
+	}
+
+
+	/**
+	 * Load the part of an ARPA format backoff language model file that covers a limited vocabulary, like SRILM's "-limit-vocab".
+	 * See class javadoc for more details.
+	 *
+	 * Ngrams holding a word outside of the limiting vocabulary are dropped, and the vocabulary of the loaded model holds only the limiting words that are in the file.
+	 * The probabilities and backoff weights of the ngrams that are kept are those of the file, so any ngram made of limiting words scores exactly as it does in the whole model:
+	 * backing off from such an ngram only visits ngrams made of its own words.
+	 * The limiting vocabulary should hold the sentence boundary tokens used by the model, like "&lt;s&gt;" and "&lt;/s&gt;".
+	 *
+	 * @param modelFile ARPA language model file to read and parse
+	 * @param readDepth do not read model information of order above this quantity; a value less than zero will read all model information.
+	 * @param storageType how the language model will store its ngrams
+	 * @param threads number of threads that parse the file; one parses it on the calling thread
+	 * @param limitVocabulary words to keep, e.g. a {@link Vocabulary}; null keeps every ngram
+	 *
+	 * @throws IllegalArgumentException on problems reading or parsing the file
+	 */
+	public ARPAModelLoader(File modelFile, int readDepth, BackoffStorageType storageType, int threads, Set<String> limitVocabulary) {
+		this(modelFile, readDepth, storageType, threads, ARPAByteReader.DEFAULT_CHUNK_BYTES, limitVocabulary);
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model file.
+	 * @param chunkBytes nominal number of bytes of ngram entries parsed by one task when reading with more than one thread
+	 * @param limitVocabulary words to keep; null to keep every ngram
+	 * @see #ARPAModelLoader(File, int, BackoffStorageType, int, Set)
+	 */
+	ARPAModelLoader(File modelFile, int readDepth, BackoffStorageType storageType, int threads, int chunkBytes, Set<String> limitVocabulary) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("must read with at least one thread");
+		}
 		this.modelFile = modelFile;
-		vocabulary = new Vocabulary();
+		background = null;
+		try {
+			ARPAByteReader reader = new ARPAByteReader(modelFile, threads, chunkBytes);
+			BackoffStorage storage = reader.read(readDepth, storageType, limitVocabulary);
+			vocabulary = reader.getVocabulary();
+			backoffLanguageModel = new BackoffLanguageModel(10.0, vocabulary, storage);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
 
-		String line;
-        int lineNumber = 0;
-        FileParsingState state = null;
-        int order = 0;
-        int orderCount = -1;
-        int count = 0;
-        int maxDepth = 0;
-        boolean [] orderSeen = null;
 
-    	Map<Integer, Integer> ngramLenMap = new HashMap<Integer, Integer>();
+	/**
+	 * Load the lower orders of an ARPA format backoff language model file now, and the whole model on a background thread.
+	 * See class javadoc for more details.
+	 *
+	 * The language model is ready to answer as soon as the orders up to immediateDepth are loaded.
+	 * Until the whole model has loaded, it has the order of the whole model but answers as the model truncated to the loaded orders,
+	 * backing off through them as a model loaded with a readDepth of immediateDepth would; see {@link LazyBackoffStorage}.
+	 * The whole model is then swapped in. The background read looks its words up in the word table of the first read, so it shares the vocabulary and word ids of the lower orders by construction,
+	 * and fails, leaving the lower orders in place, if the file holds a word that is not among its unigrams.
+	 * The background read copies the orders below immediateDepth from the lower orders rather than parsing them again,
+	 * but parses the immediateDepth order a second time, since the lower orders do not hold its backoff weights.
+	 * While the whole model loads, both it and the lower orders are held in memory; the lower orders are released once the whole model is swapped in.
+	 *
+	 * @param modelFile ARPA language model file to read and parse
+	 * @param readDepth do not read model information of order above this quantity; a value less than zero will read all model information.
+	 * @param storageType how the language model will store its ngrams
+	 * @param threads number of threads that parse the file, both now and in the background
+	 * @param immediateDepth number of orders loaded before this method returns, e.g. 2 for the unigrams and bigrams
+	 *
+	 * @return loader whose language model answers with the orders loaded so far
+	 * @throws IllegalArgumentException on problems reading or parsing the lower orders of the file
+	 * @see #awaitFullyLoaded()
+	 */
+	public static ARPAModelLoader loadInBackground(File modelFile, int readDepth, BackoffStorageType storageType, int threads, int immediateDepth) {
+		return new ARPAModelLoader(modelFile, readDepth, storageType, threads, immediateDepth);
+	}
+
 
-        BufferedReader br = null;
+	/**
+	 * Load the lower orders of an ARPA format backoff language model file now, and the whole model on a background thread.
+	 * @see #loadInBackground(File, int, BackoffStorageType, int, int)
+	 */
+	private ARPAModelLoader(File modelFile, int readDepth, final BackoffStorageType storageType, int threads, int immediateDepth) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("must read with at least one thread");
+		}
+		if(immediateDepth < 1) {
+			throw new IllegalArgumentException("must load at least the unigrams immediately");
+		}
+		this.modelFile = modelFile;
 		try {
-			br = new BufferedReader(new FileReader(modelFile));
-
-			// Scan for the start of the data section
-	        while((line = br.readLine()) != null) {
-	        	lineNumber++;
-	    		if(line.equals("\\data\\")) {
-	    			break;
-	    		}
-	        }
-
-	        // Scan for ngram section lengths
-	        while((line = br.readLine()) != null) {
-	        	lineNumber++;
-	            if(line.startsWith("ngram")) {
-	            	String [] tok = splitNGramLenPattern.split(line);
-	            	if(tok.length != 3) {
-	            		throw new IOException("Corrupt Language Model " + modelFile.getPath() + " at line " + lineNumber + ": invalid ngram length declaration");
-	            	}
-
-	            	try {
-	            		int depth = Integer.parseInt(tok[1]);
-	            		int len = Integer.parseInt(tok[2]);
-	                	if(depth > maxDepth) {
-	                		maxDepth = depth;
-	                	}
-	                	ngramLenMap.put(depth, len);
-	            	} catch (NumberFormatException e) {
-	            		throw new IOException("Corrupt Language Model " + modelFile.getPath() + " at line " + lineNumber + ": problem parsing ngram section length", e);
-	            	}
-	            } else if(line.endsWith("-grams:")) {
-	            	// Read order information and maintain that state
-	            	readDepth = readDepth < 1 ? maxDepth : Math.min(readDepth, maxDepth);
-	    			order = Integer.parseInt(line.substring(1).split("-")[0]);
-	    			orderCount = ngramLenMap.get(order);
-	    			orderSeen = new boolean[maxDepth];
-	    			orderSeen[order-1] = true;
-	    			state = FileParsingState.READING_NGRAMS;
-	    			break;
-	            }
-	        }
-
-	        // These maps hold the ngram-probability-backoff tuples from the ARPA model file
-	    	Map<AbstractNGram, NGramProbability> highOrderNGrams = new HashMap<AbstractNGram, NGramProbability>();
-	    	List<Map<AbstractNGram, NGramProbabilityBackoff>> lowerOrderToNGrams = null;
-	    	if(readDepth > 1) {
-	    		lowerOrderToNGrams = new ArrayList<Map<AbstractNGram, NGramProbabilityBackoff>>();
-				for(int i=1; i<readDepth; i++) {
-					lowerOrderToNGrams.add(new HashMap<AbstractNGram, NGramProbabilityBackoff>());
+			final ARPAByteReader reader = new ARPAByteReader(modelFile, threads, ARPAByteReader.DEFAULT_CHUNK_BYTES);
+			final int order = reader.readDeclaredCounts(readDepth).length;
+			reader.keepVocabulary();
+			BackoffStorage storage = reader.read(Math.min(immediateDepth, order), storageType, null);
+			vocabulary = reader.getVocabulary();
+			if(storage.order() == order) {
+				background = null;
+				backoffLanguageModel = new BackoffLanguageModel(10.0, vocabulary, storage);
+				return;
+			}
+
+			final LazyBackoffStorage lazy = new LazyBackoffStorage(order, storage);
+			backoffLanguageModel = new BackoffLanguageModel(10.0, vocabulary, lazy);
+			background = new FutureTask<Void>(new Callable<Void>() {
+				/** Lower orders, dropped once the whole model is built from them so that only the lazy storage still refers to them */
+				private BackoffStorage lower = lazy.getLoaded();
+
+				@Override
+				public Void call() throws IOException {
+					BackoffStorage whole = reader.readAbove(lower, order, storageType);
+					lower = null;
+					lazy.replace(whole);
+					return null;
 				}
-	    	}
-
-	        // Left above state having read a "X-grams" section header, onto reading the counts and future "X-grams" sections
-	        while((line = br.readLine()) != null && !state.equals(FileParsingState.AFTER_NGRAMS)) {
-	        	lineNumber++;
-	        	if(state.equals(FileParsingState.LOOKING_FOR_NEXT_NGRAMS)) {
-	    			if(line.endsWith("-grams:")) {
-	    				state = FileParsingState.READING_NGRAMS;
-
-	                	// Read order information and maintain that state
-	        			order = Integer.parseInt(line.substring(1).split("-")[0]);
-	        			orderCount = ngramLenMap.get(order);
-	        			orderSeen[order-1] = true;
-	        			count = 0;
-	    			} else if(!line.trim().isEmpty()) {
-	    				throw new IOException("Corrupt Language Model " + modelFile.getPath() + " at line " + lineNumber + ": unexpected information in ngrams section (maybe incorrect ngram length in header?)");
-	    			}
-	        	} else {
-	        		// Parse the ngram line
-	        		String [] tok = whitespacePattern.split(line);
-	        		if(!(tok.length == (2 + order) || tok.length == (1 + order))) {
-	        			throw new IOException("Corrupt Language Model " + modelFile.getPath() + " at line " + lineNumber + ": ngram entry has incorrect number of items (maybe incorrect ngram length in header or ngram entry contains extra information after words and backoff weights?)");
-	        		}
-
-	        		// Ignore ngrams of order above our readDepth
-	        		if(order <= readDepth) {
-		        		// Gather the words into an ngram
-		        		String [] words = new String[order];
-		        		for(int i=1; i<=order; i++) {
-		        			words[i-1] = vocabulary.addCanonical(tok[i]);
-		        		}
-		        		AbstractNGram ngram = AbstractNGram.factory(words);
-
-		        		// Store the ngram and associated probs/backoffs
-		        		double log10Prob = Double.parseDouble(tok[0]);
-		        		if(order < readDepth) {
-		        			double log10Backoff;
-		        			if(tok.length == (2 + order)) {
-		        				log10Backoff = Double.parseDouble(tok[tok.length-1]);
-			        			if(log10Backoff == FILE_LOG_ZERO) {
-			        				log10Backoff = LOG_ZERO;
-			        			}
-		        			} else {
-		        				// Absence of a backoff prob where there should be a backoff prob we'll just set it as zero likelihood
-		        				log10Backoff = LOG_ZERO;
-		        			}
-		        			lowerOrderToNGrams.get(order-1).put(ngram, new NGramProbabilityBackoff(log10Prob, log10Backoff));
-		        		} else {
-		        			highOrderNGrams.put(ngram, new NGramProbability(log10Prob));
-		        		}
-	        		}
-	                count++;
-
-	                if(count >= orderCount) {
-	                	boolean ngramsRemain = false;
-	                	for(boolean b : orderSeen) {
-	                		if(!b) {
-	                			ngramsRemain = true;
-	                			break;
-	                		}
-	                	}
-	                	if(ngramsRemain) {
-	                		state = FileParsingState.LOOKING_FOR_NEXT_NGRAMS;
-	                	} else {
-	                		state = FileParsingState.AFTER_NGRAMS;
-	                	}
-	                }
-	            }
-	        }
-
-	    	// Search for end marker of ARPA file
-	        while((line = br.readLine()) != null && !state.equals(FileParsingState.AFTER_END)) {
-	        	lineNumber++;
-	    		if("\\end\\".equals(line)) {
-	    			state = FileParsingState.AFTER_END;
-	    		}
-	        }
-
-	        if(!state.equals(FileParsingState.AFTER_END)) {
-				throw new IOException("Corrupt Language Model " + modelFile.getPath() + " at line " + lineNumber + ": reached end of file without reading all required information");
-	        }
-
-	        backoffLanguageModel = new BackoffLanguageModel(10.0, highOrderNGrams, lowerOrderToNGrams);
+			});
 		} catch (IOException e) {
 			throw new IllegalArgumentException(e);
-		} finally {
-			try {
-				br.close();
-			} catch (IOException e) {
-				throw new IllegalArgumentException(e);
-			}
+		}
+		Thread thread = new Thread(background, "ARPA background loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model from a stream.
+	 * See class javadoc for more details.
+	 *
+	 * A gzip-compressed stream is inflated.
+	 * The stream is read on a separate thread a few blocks ahead of the parser, so that reading and inflating overlap parsing.
+	 * Reading stops at the end of the last section that is loaded, and the stream is not closed.
+	 *
+	 * @param in stream holding an ARPA language model
+	 * @param readDepth do not read model information of order above this quantity; a value less than zero will read all model information.
+	 * @param storageType how the language model will store its ngrams
+	 * @param threads number of threads that parse the stream's blocks; one parses them on the calling thread
+	 *
+	 * @throws IllegalArgumentException on problems reading or parsing the stream
+	 */
+	public ARPAModelLoader(InputStream in, int readDepth, BackoffStorageType storageType, int threads) {
+		this(in, readDepth, storageType, threads, ARPAByteReader.DEFAULT_CHUNK_BYTES, null);
+	}
+
+
+	/**
+	 * Load the part of an ARPA format backoff language model from a stream that covers a limited vocabulary.
+	 * @see #ARPAModelLoader(InputStream, int, BackoffStorageType, int)
+	 * @see #ARPAModelLoader(File, int, BackoffStorageType, int, Set)
+	 */
+	public ARPAModelLoader(InputStream in, int readDepth, BackoffStorageType storageType, int threads, Set<String> limitVocabulary) {
+		this(in, readDepth, storageType, threads, ARPAByteReader.DEFAULT_CHUNK_BYTES, limitVocabulary);
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model from a channel, read from its current position.
+	 * The channel is not closed.
+	 * @see #ARPAModelLoader(InputStream, int, BackoffStorageType, int)
+	 */
+	public ARPAModelLoader(ReadableByteChannel channel, int readDepth, BackoffStorageType storageType, int threads) {
+		this(Channels.newInputStream(channel), readDepth, storageType, threads);
+	}
+
+
+	/**
+	 * Load an ARPA format backoff language model from a stream.
+	 * @param blockBytes nominal number of bytes in a block of the stream
+	 * @param limitVocabulary words to keep; null to keep every ngram
+	 * @see #ARPAModelLoader(InputStream, int, BackoffStorageType, int, Set)
+	 */
+	ARPAModelLoader(InputStream in, int readDepth, BackoffStorageType storageType, int threads, int blockBytes, Set<String> limitVocabulary) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("must read with at least one thread");
+		}
+		modelFile = null;
+		background = null;
+		try {
+			ARPAByteReader reader = new ARPAByteReader("stream", threads, blockBytes);
+			BackoffStorage storage = reader.read(in, readDepth, storageType, limitVocabulary);
+			vocabulary = reader.getVocabulary();
+			backoffLanguageModel = new BackoffLanguageModel(10.0, vocabulary, storage);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	/**
+	 * Roughly estimate the peak heap memory used to load an ARPA format backoff language model file.
+	 * Only the "\data\" header of the file is read, so a model that will not fit can be refused before spending the time to parse it.
+	 * The estimate covers the vocabulary and the storage, but not the few chunks of entries being parsed at once.
+	 *
+	 * @param modelFile ARPA language model file
+	 * @param readDepth do not count model information of order above this quantity; a value less than zero counts all model information
+	 * @param storageType how the language model would store its ngrams
+	 * @return estimated number of bytes
+	 * @throws IllegalArgumentException on problems reading or parsing the header
+	 * @see BackoffStorageType#estimateBytes(int, int[])
+	 */
+	public static long estimateBytes(File modelFile, int readDepth, BackoffStorageType storageType) {
+		int [] orderCounts;
+		try {
+			orderCounts = new ARPAByteReader(modelFile, 1, ARPAByteReader.DEFAULT_CHUNK_BYTES).readDeclaredCounts(readDepth);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+		int vocabularySize = orderCounts[0];
+		return Vocabulary.estimateBytes(vocabularySize) + ByteSliceVocabulary.estimateBytes(vocabularySize) + storageType.estimateBytes(vocabularySize, orderCounts);
+	}
+
+
+	/**
+	 * Whether the whole model has been loaded.
+	 * @return false while a background load of the higher orders is running or if it failed, otherwise true
+	 * @see #loadInBackground(File, int, BackoffStorageType, int, int)
+	 */
+	public boolean isFullyLoaded() {
+		if(background == null) {
+			return true;
+		}
+		if(!background.isDone()) {
+			return false;
+		}
+		try {
+			background.get();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Wait for the whole model to be loaded; returns immediately if the model was loaded all at once.
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IllegalArgumentException on problems reading or parsing the higher orders of the file; the language model keeps answering with its lower orders
+	 * @see #loadInBackground(File, int, BackoffStorageType, int, int)
+	 */
+	public void awaitFullyLoaded() throws InterruptedException {
+		if(background == null) {
+			return;
+		}
+		try {
+			background.get();
+		} catch (ExecutionException e) {
+			throw new IllegalArgumentException(e.getCause());
 		}
 	}
 
 
 	/**
 	 * Get the ARPA language model file used to instantiate this object.
-	 * @return the ARPA language model file used to instantiate this object
+	 * @return the ARPA language model file used to instantiate this object, or null if it was loaded from a stream
 	 */
 	public File getModelFile() {
 		return modelFile;
@@ -0,0 +1,410 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+import com.pwnetics.languagemodel.lm.KneserNeyModFixModel2;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+
+
+/**
+ * Writes a backoff language model in the ARPA format that {@link ARPAModelLoader} reads.
+ *
+ * Entries are formatted into a large buffer and written out order by order as they arrive, so a model is written without being copied.
+ * A trained {@link KneserNeyModFixModel2} is written straight from its estimator, without first building the backoff model in memory.
+ *
+ * Values are written as base-10 logarithms, with "log(0)" written as "-99", using as many digits as it takes to read back the value the model holds.
+ * Backoff weights are left off highest-order ngrams and off ngrams held without a backoff weight, which {@link ARPAModelLoader} reads back as "log(0)".
+ * Model files whose names end in ".gz" are gzip-compressed.
+ *
+ * @author romanows
+ */
+public class ARPAModelWriter {
+
+	/** Size of the buffer that entries are formatted into */
+	static final int BUFFER_BYTES = 1 << 20;
+
+
+	/**
+	 * Not instantiated.
+	 */
+	private ARPAModelWriter() {
+	}
+
+
+	/**
+	 * Write a backoff language model to an ARPA file.
+	 * @param lm language model to write
+	 * @param modelFile file to create or overwrite
+	 * @throws IllegalArgumentException on problems writing the file
+	 */
+	public static void write(BackoffLanguageModel lm, File modelFile) {
+		WritableByteChannel channel = open(modelFile);
+		try {
+			write(lm, channel);
+		} finally {
+			close(channel);
+		}
+	}
+
+
+	/**
+	 * Write a backoff language model in the ARPA format.
+	 * @param lm language model to write
+	 * @param channel destination; not closed
+	 * @throws IllegalArgumentException on problems writing
+	 */
+	public static void write(BackoffLanguageModel lm, WritableByteChannel channel) {
+		BackoffStorage storage = lm.getStorage();
+		int [] orderCounts = new int[storage.order()];
+		for(int n=1; n<=storage.order(); n++) {
+			orderCounts[n-1] = storage.size(n);
+		}
+		EntryWriter writer = new EntryWriter(channel, lm.getVocabulary(), orderCounts, Math.log10(lm.logBase()));
+		storage.copyTo(writer);
+		writer.finish();
+	}
+
+
+	/**
+	 * Write the backoff language model equivalent to a Kneser-Ney model to an ARPA file.
+	 * @param lm language model whose backoff equivalent is written
+	 * @param modelFile file to create or overwrite
+	 * @throws IllegalArgumentException on problems writing the file
+	 * @see KneserNeyModFixModel2#calcBackoff(BackoffEntrySink)
+	 */
+	public static void write(KneserNeyModFixModel2 lm, File modelFile) {
+		write(lm, modelFile, 1);
+	}
+
+
+	/**
+	 * Write the backoff language model equivalent to a Kneser-Ney model to an ARPA file, estimating ngrams with several threads.
+	 * @param lm language model whose backoff equivalent is written
+	 * @param modelFile file to create or overwrite
+	 * @param threads number of threads that estimate ngrams; the file written is the same for any number
+	 * @throws IllegalArgumentException on problems writing the file
+	 * @see KneserNeyModFixModel2#calcBackoff(BackoffEntrySink, int)
+	 */
+	public static void write(KneserNeyModFixModel2 lm, File modelFile, int threads) {
+		WritableByteChannel channel = open(modelFile);
+		try {
+			write(lm, channel, threads);
+		} finally {
+			close(channel);
+		}
+	}
+
+
+	/**
+	 * Write the backoff language model equivalent to a Kneser-Ney model in the ARPA format.
+	 * @param lm language model whose backoff equivalent is written
+	 * @param channel destination; not closed
+	 * @throws IllegalArgumentException on problems writing
+	 * @see KneserNeyModFixModel2#calcBackoff(BackoffEntrySink)
+	 */
+	public static void write(KneserNeyModFixModel2 lm, WritableByteChannel channel) {
+		write(lm, channel, 1);
+	}
+
+
+	/**
+	 * Write the backoff language model equivalent to a Kneser-Ney model in the ARPA format, estimating ngrams with several threads.
+	 * @param lm language model whose backoff equivalent is written
+	 * @param channel destination; not closed
+	 * @param threads number of threads that estimate ngrams; the bytes written are the same for any number
+	 * @throws IllegalArgumentException on problems writing
+	 * @see KneserNeyModFixModel2#calcBackoff(BackoffEntrySink, int)
+	 */
+	public static void write(KneserNeyModFixModel2 lm, WritableByteChannel channel, int threads) {
+		EntryWriter writer = new EntryWriter(channel, lm.getVocabulary(), lm.orderCounts(), 1.0);
+		lm.calcBackoff(writer, threads);
+		writer.finish();
+	}
+
+
+	/**
+	 * Open a model file for writing, gzip-compressing it if its name ends in ".gz".
+	 * @param modelFile file to create or overwrite
+	 * @return channel writing the file
+	 * @throws IllegalArgumentException on problems opening the file
+	 */
+	private static WritableByteChannel open(File modelFile) {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(modelFile);
+			if(modelFile.getName().endsWith(".gz")) {
+				return Channels.newChannel(new GZIPOutputStream(out, BUFFER_BYTES));
+			}
+			return out.getChannel();
+		} catch (IOException e) {
+			close(out);
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	/**
+	 * Close a stream or channel.
+	 * @param closeable stream or channel to close; may be null
+	 * @throws IllegalArgumentException on problems closing
+	 */
+	private static void close(Closeable closeable) {
+		try {
+			if(closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	/**
+	 * Formats the ngrams it is given as ARPA entries, writing each order's section as its ngrams arrive.
+	 * Ngrams must arrive as {@link BackoffStorage#copyTo(BackoffEntrySink)} adds them, all of one order before any of the next,
+	 * and there must be as many of each order as declared in the header.
+	 * Nothing is built; {@link #finish()} completes the file.
+	 */
+	private static class EntryWriter implements BackoffEntrySink {
+
+		/** Destination */
+		private final WritableByteChannel channel;
+
+		/** Number of ngrams of each order declared in the header */
+		private final int [] orderCounts;
+
+		/** Encoded bytes of each word, indexed by word id */
+		private final byte [][] words;
+
+		/** Multiplier converting the given values to base-10 logarithms */
+		private final double toLog10;
+
+		/** Entries not yet written */
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+		/** Order of the section being written, 0 before the first section */
+		private int order;
+
+		/** Number of ngrams written of the current order */
+		private int written;
+
+
+		/**
+		 * Constructor.
+		 * Writes the header.
+		 * @param channel destination
+		 * @param vocabulary words of the ngram word ids
+		 * @param orderCounts number of ngrams of each order, unigrams first
+		 * @param toLog10 multiplier converting the given values to base-10 logarithms
+		 */
+		EntryWriter(WritableByteChannel channel, Vocabulary vocabulary, int [] orderCounts, double toLog10) {
+			this.channel = channel;
+			this.orderCounts = orderCounts;
+			this.toLog10 = toLog10;
+
+			// Encoded as ARPAByteReader decodes
+			Charset charset = Charset.defaultCharset();
+			words = new byte[vocabulary.size()][];
+			for(int id=0; id<words.length; id++) {
+				words[id] = vocabulary.getWord(id).getBytes(charset);
+			}
+
+			put("\n\\data\\\n");
+			for(int n=1; n<=orderCounts.length; n++) {
+				put("ngram " + n + "=" + orderCounts[n-1] + "\n");
+			}
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffEntrySink#add(int[], double, double)
+		 */
+		@Override
+		public void add(int [] ids, double logProbability, double logBackoff) {
+			if(ids.length < order || ids.length > orderCounts.length) {
+				throw new IllegalArgumentException("ngram of order " + ids.length + " added while writing the " + order + "-grams of a model of order " + orderCounts.length);
+			}
+			while(order < ids.length) {
+				nextSection();
+			}
+			if(++written > orderCounts[order-1]) {
+				throw new IllegalArgumentException("more " + order + "-grams added than the " + orderCounts[order-1] + " declared");
+			}
+
+			putValue(logProbability * toLog10);
+			for(int i=0; i<ids.length; i++) {
+				put(i == 0 ? (byte) '\t' : (byte) ' ');
+				put(words[ids[i]]);
+			}
+			double log10Backoff = logBackoff * toLog10;
+			if(order < orderCounts.length && !Double.isNaN(log10Backoff) && !Double.isInfinite(log10Backoff)) {
+				put((byte) '\t');
+				putValue(log10Backoff);
+			}
+			put((byte) '\n');
+		}
+
+
+		/**
+		 * Write the sections of any remaining orders and the end marker, and flush.
+		 * @throws IllegalArgumentException if fewer ngrams were added than declared, or on problems writing
+		 */
+		void finish() {
+			while(order < orderCounts.length) {
+				nextSection();
+			}
+			checkWritten();
+			put("\n\\end\\\n");
+			flush();
+		}
+
+
+		/**
+		 * Start the section of the next order.
+		 */
+		private void nextSection() {
+			if(order > 0) {
+				checkWritten();
+			}
+			order++;
+			written = 0;
+			put("\n\\" + order + "-grams:\n");
+		}
+
+
+		/**
+		 * Check that as many ngrams of the current order were added as declared.
+		 * @throws IllegalArgumentException if fewer were added
+		 */
+		private void checkWritten() {
+			if(written != orderCounts[order-1]) {
+				throw new IllegalArgumentException(written + " " + order + "-grams added but " + orderCounts[order-1] + " declared");
+			}
+		}
+
+
+		/**
+		 * Format a base-10 logarithm with the fewest digits that read back as the same value.
+		 * Values that are exactly floats, as held by the storages with float values, are formatted as floats.
+		 * @param log10Value value to format
+		 */
+		private void putValue(double log10Value) {
+			if(log10Value == ARPAModelLoader.LOG_ZERO) {
+				put("-99");
+			} else if((float) log10Value == log10Value) {
+				put(Float.toString((float) log10Value));
+			} else {
+				put(Double.toString(log10Value));
+			}
+		}
+
+
+		/**
+		 * Append ASCII text.
+		 * @param s text to append
+		 */
+		private void put(String s) {
+			if(buffer.remaining() < s.length()) {
+				flush();
+			}
+			for(int i=0; i<s.length(); i++) {
+				buffer.put((byte) s.charAt(i));
+			}
+		}
+
+
+		/**
+		 * Append bytes, writing them directly if they do not fit in the buffer.
+		 * @param bytes bytes to append
+		 */
+		private void put(byte [] bytes) {
+			if(buffer.remaining() < bytes.length) {
+				flush();
+				if(buffer.remaining() < bytes.length) {
+					write(ByteBuffer.wrap(bytes));
+					return;
+				}
+			}
+			buffer.put(bytes);
+		}
+
+
+		/**
+		 * Append a byte.
+		 * @param b byte to append
+		 */
+		private void put(byte b) {
+			if(!buffer.hasRemaining()) {
+				flush();
+			}
+			buffer.put(b);
+		}
+
+
+		/**
+		 * Write out and clear the buffer.
+		 */
+		private void flush() {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+		}
+
+
+		/**
+		 * Write out the remainder of a buffer.
+		 * @param src bytes to write
+		 * @throws IllegalArgumentException on problems writing
+		 */
+		private void write(ByteBuffer src) {
+			try {
+				while(src.hasRemaining()) {
+					channel.write(src);
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+}
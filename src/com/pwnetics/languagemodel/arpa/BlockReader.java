@@ -0,0 +1,213 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reads a stream on its own thread into blocks of bytes that end on line boundaries.
+ *
+ * The reading thread runs ahead of the consumer by a bounded number of blocks, so a decompressing stream inflates while the consumer parses the blocks before it.
+ * Each block is a new buffer that holds whole lines; the partial line at the end of a read is carried over to the start of the next block,
+ * and a block is grown when a single line does not fit in it.
+ * The stream is not closed.
+ *
+ * @author romanows
+ */
+class BlockReader {
+
+	/** Handed to the consumer after the last block */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/** Stream being read */
+	private final InputStream in;
+
+	/** Nominal number of bytes in a block */
+	private final int blockBytes;
+
+	/** Blocks read ahead of the consumer */
+	private final BlockingQueue<ByteBuffer> queue;
+
+	/** Thread that reads the stream */
+	private final Thread thread;
+
+	/** Set by the consumer to stop the reading thread early */
+	private volatile boolean stopped = false;
+
+	/** Problem that stopped the reading thread, handed to the consumer after the blocks read before it */
+	private volatile Throwable failure = null;
+
+	/** Whether the consumer has taken the last block */
+	private boolean finished = false;
+
+
+	/**
+	 * Constructor.
+	 * Starts the reading thread.
+	 * @param in stream to read; not closed
+	 * @param blockBytes nominal number of bytes in a block
+	 * @param blocksAhead number of blocks that may be read ahead of the consumer
+	 */
+	BlockReader(InputStream in, int blockBytes, int blocksAhead) {
+		if(blockBytes < 1 || blocksAhead < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.in = in;
+		this.blockBytes = blockBytes;
+		queue = new ArrayBlockingQueue<ByteBuffer>(blocksAhead);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					readBlocks();
+				} catch (Throwable t) {
+					failure = t;
+				} finally {
+					put(END);
+				}
+			}
+		}, "ARPA block reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Read the stream into blocks until its end, or until stopped.
+	 */
+	private void readBlocks() throws IOException {
+		byte [] bytes = new byte[blockBytes];
+		int length = 0;
+		while(!stopped) {
+			if(length == bytes.length) {
+				// A line longer than a block
+				byte [] larger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, larger, 0, length);
+				bytes = larger;
+			}
+			int n = in.read(bytes, length, bytes.length - length);
+			if(n < 0) {
+				if(length > 0) {
+					put(ByteBuffer.wrap(bytes, 0, length).slice());
+				}
+				return;
+			}
+			length += n;
+			if(length < bytes.length) {
+				continue;
+			}
+
+			int lineEnd = length;
+			while(lineEnd > 0 && bytes[lineEnd-1] != '\n') {
+				lineEnd--;
+			}
+			if(lineEnd == 0) {
+				continue;
+			}
+			byte [] next = new byte[Math.max(blockBytes, 2 * (length - lineEnd))];
+			System.arraycopy(bytes, lineEnd, next, 0, length - lineEnd);
+			put(ByteBuffer.wrap(bytes, 0, lineEnd).slice());
+			length -= lineEnd;
+			bytes = next;
+		}
+	}
+
+
+	/**
+	 * Hand a block to the consumer, waiting for room unless stopped.
+	 */
+	private void put(ByteBuffer block) {
+		try {
+			while(!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+				if(stopped) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Get the next block, waiting for it to be read.
+	 * @return buffer holding whole lines, positioned at zero; null after the last block
+	 * @throws IOException if reading the stream failed
+	 */
+	ByteBuffer next() throws IOException {
+		if(finished) {
+			return null;
+		}
+		ByteBuffer block;
+		try {
+			block = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while reading", e);
+		}
+		if(block != END) {
+			return block;
+		}
+
+		finished = true;
+		Throwable t = failure;
+		if(t instanceof IOException) {
+			throw (IOException)t;
+		} else if(t instanceof RuntimeException) {
+			throw (RuntimeException)t;
+		} else if(t instanceof Error) {
+			throw (Error)t;
+		} else if(t != null) {
+			throw new IOException(t);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Stop the reading thread, discarding the blocks it has read ahead, and wait for it to finish its current read.
+	 */
+	void close() {
+		stopped = true;
+		queue.clear();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		queue.clear();
+	}
+}
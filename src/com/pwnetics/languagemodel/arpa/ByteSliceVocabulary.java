@@ -0,0 +1,244 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+import com.pwnetics.languagemodel.Vocabulary;
+
+
+/**
+ * Finds the ids of words given as ranges of bytes, so that a parser does not have to decode every word of a file into a String.
+ *
+ * This is an open-addressing hash table from the encoded bytes of a word to the id assigned by a {@link Vocabulary}.
+ * A word's String is created only when the word is first added, and is added to the vocabulary at the same time.
+ * When the table is limited to a set of words, a word outside of the set is remembered with the id {@link #EXCLUDED_ID} and is not added to the vocabulary.
+ * Lookups may run concurrently with each other, but not with {@link #addId(ByteBuffer, int, int)}.
+ *
+ * @author romanows
+ */
+class ByteSliceVocabulary {
+
+	/** Id of a word outside of the set of words that the table is limited to */
+	static final int EXCLUDED_ID = -2;
+
+	/** Vocabulary that assigns the word ids */
+	private final Vocabulary vocabulary;
+
+	/** Charset that the bytes of the words are decoded with */
+	private final Charset charset;
+
+	/** Words that may be added to the vocabulary; null to add every word */
+	private final Set<String> limit;
+
+	/** Holds the bytes of every added word, one after another */
+	private byte [] arena;
+
+	/** Number of bytes used in {@link #arena} */
+	private int arenaLength = 0;
+
+	/** Word id of each slot, or {@link Vocabulary#UNKNOWN_ID} for an empty slot; the length is a power of two */
+	private int [] slotIds;
+
+	/** Index in {@link #arena} of the bytes of each slot's word */
+	private int [] slotStarts;
+
+	/** Number of bytes of each slot's word */
+	private int [] slotLengths;
+
+	/** Number of slots in use */
+	private int size = 0;
+
+
+	/**
+	 * Constructor.
+	 * @param vocabulary assigns the word ids; words already in it are found once they have been added through this table
+	 * @param charset charset that the bytes of the words are decoded with
+	 * @param expectedSize expected number of words; the table is sized to hold them without rehashing
+	 * @param limit words that may be added to the vocabulary; null to add every word
+	 */
+	ByteSliceVocabulary(Vocabulary vocabulary, Charset charset, int expectedSize, Set<String> limit) {
+		this.vocabulary = vocabulary;
+		this.charset = charset;
+		this.limit = limit;
+		allocate(slots(expectedSize));
+		arena = new byte[(int) Math.min(1 << 30, Math.max(1 << 12, expectedSize * 8L))];
+	}
+
+
+	/**
+	 * Get the number of slots that hold a number of words while at most half full.
+	 * @param size number of words
+	 * @return power of two number of slots
+	 */
+	private static int slots(int size) {
+		int slots = 1 << 10;
+		while(slots < (1 << 30) && slots / 2 <= size) {
+			slots <<= 1;
+		}
+		return slots;
+	}
+
+
+	/**
+	 * Estimate the heap memory used by a table, assuming words of about eight bytes.
+	 * @param size number of words
+	 * @return estimated number of bytes
+	 */
+	static long estimateBytes(int size) {
+		return slots(size) * 12L + size * 8L;
+	}
+
+
+	private void allocate(int slots) {
+		slotIds = new int[slots];
+		slotStarts = new int[slots];
+		slotLengths = new int[slots];
+		for(int i=0; i<slots; i++) {
+			slotIds[i] = Vocabulary.UNKNOWN_ID;
+		}
+	}
+
+
+	private static int hash(ByteBuffer buffer, int start, int end) {
+		int h = 0x811c9dc5;
+		for(int i=start; i<end; i++) {
+			h = (h ^ buffer.get(i)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+
+	private static int hash(byte [] bytes, int start, int end) {
+		int h = 0x811c9dc5;
+		for(int i=start; i<end; i++) {
+			h = (h ^ bytes[i]) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+
+	/**
+	 * Find the slot holding a word, or the empty slot where it would go.
+	 */
+	private int slot(ByteBuffer buffer, int start, int end) {
+		int length = end - start;
+		int mask = slotIds.length - 1;
+		int slot = hash(buffer, start, end) & mask;
+		while(slotIds[slot] != Vocabulary.UNKNOWN_ID) {
+			if(slotLengths[slot] == length) {
+				int s = slotStarts[slot];
+				int i = 0;
+				while(i < length && arena[s+i] == buffer.get(start+i)) {
+					i++;
+				}
+				if(i == length) {
+					return slot;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+
+	/**
+	 * Get the id of a word.
+	 * @param buffer holds the bytes of the word
+	 * @param start index in the buffer of the first byte of the word
+	 * @param end index in the buffer after the last byte of the word
+	 * @return the id of the word, {@link #EXCLUDED_ID} if the word was added but is outside of the limiting set, or {@link Vocabulary#UNKNOWN_ID} if the word has not been added
+	 */
+	int getId(ByteBuffer buffer, int start, int end) {
+		return slotIds[slot(buffer, start, end)];
+	}
+
+
+	/**
+	 * Get the id of a word, adding the word to this table and to the vocabulary if it is not already present.
+	 * @param buffer holds the bytes of the word
+	 * @param start index in the buffer of the first byte of the word
+	 * @param end index in the buffer after the last byte of the word
+	 * @return the id of the word, or {@link #EXCLUDED_ID} if the word is outside of the limiting set
+	 */
+	int addId(ByteBuffer buffer, int start, int end) {
+		int slot = slot(buffer, start, end);
+		if(slotIds[slot] != Vocabulary.UNKNOWN_ID) {
+			return slotIds[slot];
+		}
+
+		int length = end - start;
+		if(arenaLength + length > arena.length) {
+			byte [] larger = new byte[Math.max(arena.length * 2, arenaLength + length)];
+			System.arraycopy(arena, 0, larger, 0, arenaLength);
+			arena = larger;
+		}
+		for(int i=0; i<length; i++) {
+			arena[arenaLength+i] = buffer.get(start+i);
+		}
+		String word = new String(arena, arenaLength, length, charset);
+		int id = limit == null || limit.contains(word) ? vocabulary.addId(word) : EXCLUDED_ID;
+		slotIds[slot] = id;
+		slotStarts[slot] = arenaLength;
+		slotLengths[slot] = length;
+		arenaLength += length;
+
+		size++;
+		if(size * 2 > slotIds.length) {
+			rehash();
+		}
+		return id;
+	}
+
+
+	/**
+	 * Double the number of slots.
+	 */
+	private void rehash() {
+		int [] ids = slotIds;
+		int [] starts = slotStarts;
+		int [] lengths = slotLengths;
+		allocate(ids.length * 2);
+		int mask = slotIds.length - 1;
+		for(int i=0; i<ids.length; i++) {
+			if(ids[i] != Vocabulary.UNKNOWN_ID) {
+				int slot = hash(arena, starts[i], starts[i] + lengths[i]) & mask;
+				while(slotIds[slot] != Vocabulary.UNKNOWN_ID) {
+					slot = (slot + 1) & mask;
+				}
+				slotIds[slot] = ids[i];
+				slotStarts[slot] = starts[i];
+				slotLengths[slot] = lengths[i];
+			}
+		}
+	}
+}
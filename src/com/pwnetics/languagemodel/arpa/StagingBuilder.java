@@ -0,0 +1,133 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import java.util.Arrays;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+
+
+/**
+ * Holds the ngrams added to it in growable arrays, and builds a storage sized to exactly those ngrams and to the final size of a vocabulary.
+ *
+ * Used when the ngrams that will be kept are not known until they have been read, as when a load is limited to a set of words,
+ * so that storages that allocate their tables up front are not sized for the ngrams that are dropped.
+ *
+ * @author romanows
+ */
+class StagingBuilder implements BackoffStorageBuilder {
+
+	/** Type of the storage built */
+	private final BackoffStorageType storageType;
+
+	/** Vocabulary whose size, when built, bounds the word ids */
+	private final Vocabulary vocabulary;
+
+	/** Word ids of the staged ngrams of each order, n ids per ngram */
+	private final int [][] ids;
+
+	/** Log-probabilities of the staged ngrams of each order */
+	private final double [][] probabilities;
+
+	/** Log-backoff weights of the staged ngrams of each order */
+	private final double [][] backoffs;
+
+	/** Number of ngrams staged of each order */
+	private final int [] sizes;
+
+
+	/**
+	 * Constructor.
+	 * @param storageType type of the storage built
+	 * @param vocabulary vocabulary whose size, when built, bounds the word ids
+	 * @param order model order
+	 */
+	StagingBuilder(BackoffStorageType storageType, Vocabulary vocabulary, int order) {
+		this.storageType = storageType;
+		this.vocabulary = vocabulary;
+		ids = new int[order][];
+		probabilities = new double[order][];
+		backoffs = new double[order][];
+		sizes = new int[order];
+		for(int i=0; i<order; i++) {
+			ids[i] = new int[16 * (i+1)];
+			probabilities[i] = new double[16];
+			backoffs[i] = new double[16];
+		}
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#add(int[], double, double)
+	 */
+	@Override
+	public void add(int [] ngram, double logProbability, double logBackoff) {
+		int n = ngram.length;
+		int i = n-1;
+		int size = sizes[i];
+		if(size == probabilities[i].length) {
+			int capacity = size * 2;
+			ids[i] = Arrays.copyOf(ids[i], capacity * n);
+			probabilities[i] = Arrays.copyOf(probabilities[i], capacity);
+			backoffs[i] = Arrays.copyOf(backoffs[i], capacity);
+		}
+		System.arraycopy(ngram, 0, ids[i], size * n, n);
+		probabilities[i][size] = logProbability;
+		backoffs[i][size] = logBackoff;
+		sizes[i]++;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#build()
+	 */
+	@Override
+	public BackoffStorage build() {
+		int order = sizes.length;
+		BackoffStorageBuilder builder = storageType.newBuilder(vocabulary.size(), sizes.clone());
+		for(int i=0; i<order; i++) {
+			int n = i+1;
+			int [] ngram = new int[n];
+			for(int j=0; j<sizes[i]; j++) {
+				System.arraycopy(ids[i], j * n, ngram, 0, n);
+				builder.add(ngram, probabilities[i][j], backoffs[i][j]);
+			}
+			ids[i] = null;
+			probabilities[i] = null;
+			backoffs[i] = null;
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+import com.pwnetics.languagemodel.lm.storage.TrieBackoffStorage;
+
+
+/**
+ * Opens a backoff language model file written by {@link BinaryModelWriter}.
+ *
+ * Only the vocabulary is read into the heap.
+ * The ngrams are memory-mapped read-only, so opening a model takes about as long as reading its vocabulary, pages are read from disk as queries touch them,
+ * and processes that open the same file share its pages in the operating system's page cache.
+ *
+ * @author romanows
+ */
+public class BinaryModelLoader {
+
+	/** File opened as the binary language model file */
+	private final File modelFile;
+
+	/** Language model backed by the mapped file */
+	private final BackoffLanguageModel backoffLanguageModel;
+
+	/** Vocabulary read from the file */
+	private final Vocabulary vocabulary;
+
+
+	/**
+	 * Open a binary language model file.
+	 * @param modelFile binary language model file written by {@link BinaryModelWriter}
+	 * @throws IllegalArgumentException on problems reading the file, or if it is not a binary model file of a supported version
+	 */
+	public BinaryModelLoader(File modelFile) {
+		this.modelFile = modelFile;
+		vocabulary = new Vocabulary();
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(modelFile, "r");
+			FileChannel channel = raf.getChannel();
+
+			int headerBytes = BinaryModelWriter.MAGIC.length + 4 + 8 + 4;
+			if(channel.size() < headerBytes) {
+				throw new IOException("not a binary language model file: " + modelFile);
+			}
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, headerBytes).order(BinaryModelWriter.BYTE_ORDER);
+			byte [] magic = new byte[BinaryModelWriter.MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, BinaryModelWriter.MAGIC)) {
+				throw new IOException("not a binary language model file: " + modelFile);
+			}
+			int version = header.getInt();
+			if(version != BinaryModelWriter.VERSION) {
+				throw new IOException("unsupported binary language model version " + version + " in " + modelFile);
+			}
+			double logBase = header.getDouble();
+			int vocabularySize = header.getInt();
+
+			// Read the vocabulary through a window of the file that slides forward as words are decoded
+			long position = headerBytes;
+			ByteBuffer window = ByteBuffer.allocate(1 << 16).order(BinaryModelWriter.BYTE_ORDER);
+			window.limit(0);
+			for(int id=0; id<vocabularySize; id++) {
+				position = fill(channel, window, position, 4);
+				int length = window.getInt();
+				if(length < 0) {
+					throw new IOException("malformed vocabulary in " + modelFile);
+				}
+				if(window.capacity() < length) {
+					ByteBuffer larger = ByteBuffer.allocate(length).order(BinaryModelWriter.BYTE_ORDER);
+					larger.put(window);
+					larger.flip();
+					window = larger;
+				}
+				position = fill(channel, window, position, length);
+				String word = new String(window.array(), window.arrayOffset() + window.position(), length, BinaryModelWriter.UTF8);
+				window.position(window.position() + length);
+				if(vocabulary.addId(word) != id) {
+					throw new IOException("duplicate vocabulary word in " + modelFile);
+				}
+			}
+			position -= window.remaining();
+			position = (position + 3) & ~3L;
+
+			backoffLanguageModel = new BackoffLanguageModel(logBase, vocabulary, TrieBackoffStorage.map(channel, position));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			try {
+				if(raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Make sure a window holds at least the given number of unread bytes, reading more of the file into it if needed.
+	 * @param channel channel of the file
+	 * @param window buffer whose unread bytes are between its position and limit
+	 * @param position offset in the file of the first byte not yet read into the window
+	 * @param bytes number of unread bytes needed, at most the window capacity
+	 * @return offset in the file of the first byte not yet read into the window
+	 * @throws IOException on problems reading, or if the file ends first
+	 */
+	private static long fill(FileChannel channel, ByteBuffer window, long position, int bytes) throws IOException {
+		if(window.remaining() >= bytes) {
+			return position;
+		}
+		window.compact();
+		while(window.position() < bytes) {
+			int read = channel.read(window, position);
+			if(read < 0) {
+				throw new IOException("binary language model file is truncated");
+			}
+			position += read;
+		}
+		window.flip();
+		return position;
+	}
+
+
+	/**
+	 * Get the binary language model file used to instantiate this object.
+	 * @return the binary language model file used to instantiate this object
+	 */
+	public File getModelFile() {
+		return modelFile;
+	}
+
+
+	/**
+	 * Get the language model backed by the binary language model file.
+	 * @return the language model backed by the binary language model file
+	 */
+	public BackoffLanguageModel getLanguageModel() {
+		return backoffLanguageModel;
+	}
+
+
+	/**
+	 * Get the vocabulary read from the binary language model file.
+	 * @return the vocabulary read from the binary language model file
+	 */
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+}
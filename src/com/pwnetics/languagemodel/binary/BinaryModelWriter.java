@@ -0,0 +1,184 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.binary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+import com.pwnetics.languagemodel.lm.storage.TrieBackoffStorage;
+
+
+/**
+ * Writes a backoff language model in a compiled binary format that {@link BinaryModelLoader} opens by memory-mapping.
+ *
+ * The format is little-endian:
+ * <pre>
+ * 8 bytes   {@link #MAGIC}
+ * 4 bytes   format version, {@link #VERSION}
+ * 8 bytes   log base of the model's values
+ * 4 bytes   vocabulary size
+ *           each word in id order, as a 4-byte length followed by that many bytes of UTF-8
+ *           zero padding to a multiple of 4 bytes
+ *           the ngrams, as written by {@link TrieBackoffStorage#write(java.nio.channels.WritableByteChannel)}
+ * </pre>
+ *
+ * Values are stored as the trie holds them, as floats or as quantized codes; see {@link TrieBackoffStorage}.
+ *
+ * @author romanows
+ */
+public class BinaryModelWriter {
+
+	/** First bytes of a binary model file */
+	static final byte [] MAGIC = {'P', 'W', 'N', 'L', 'M', 'B', 'I', 'N'};
+
+	/** Version of the format written; incremented whenever the layout changes */
+	static final int VERSION = 2;
+
+	/** Byte order of the file */
+	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** Encoding of vocabulary words */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	/**
+	 * Not instantiated.
+	 */
+	private BinaryModelWriter() {
+	}
+
+
+	/**
+	 * Write a backoff language model to a binary model file.
+	 * Models not held in a {@link TrieBackoffStorage} are copied into one first.
+	 * @param lm language model to write
+	 * @param modelFile file to create or overwrite
+	 * @throws IllegalArgumentException on problems writing the file
+	 */
+	public static void write(BackoffLanguageModel lm, File modelFile) {
+		Vocabulary vocabulary = lm.getVocabulary();
+		BackoffStorage storage = lm.getStorage();
+		if(!(storage instanceof TrieBackoffStorage)) {
+			storage = BackoffStorageType.SORTED_TRIE.copy(storage, vocabulary.size());
+		}
+
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(modelFile);
+			FileChannel channel = out.getChannel();
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(BYTE_ORDER);
+			buffer.put(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putDouble(lm.logBase());
+			buffer.putInt(vocabulary.size());
+			long written = 0;
+			for(int id=0; id<vocabulary.size(); id++) {
+				byte [] word = vocabulary.getWord(id).getBytes(UTF8);
+				if(buffer.remaining() < 4 + word.length) {
+					written += flush(channel, buffer);
+					if(buffer.capacity() < 4 + word.length) {
+						buffer = ByteBuffer.allocate(4 + word.length).order(BYTE_ORDER);
+					}
+				}
+				buffer.putInt(word.length);
+				buffer.put(word);
+			}
+			while((written + buffer.position()) % 4 != 0) {
+				buffer.put((byte) 0);
+			}
+			flush(channel, buffer);
+
+			((TrieBackoffStorage) storage).write(channel);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			try {
+				if(out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Write out and clear a buffer.
+	 * @param channel destination
+	 * @param buffer buffer whose contents, up to its position, are written
+	 * @return number of bytes written
+	 * @throws IOException on problems writing
+	 */
+	private static int flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		int bytes = buffer.remaining();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		return bytes;
+	}
+
+
+	/**
+	 * Compile an ARPA format language model into a binary model file.
+	 * @param args the ARPA file to read, the binary model file to write, and optionally 8 or 16 to quantize values to that many bits
+	 */
+	public static void main(String [] args) {
+		if(args.length != 2 && args.length != 3) {
+			System.err.println("usage: BinaryModelWriter model.arpa model.bin [8|16]");
+			System.exit(1);
+		}
+		BackoffStorageType storageType = BackoffStorageType.SORTED_TRIE;
+		if(args.length == 3) {
+			if(args[2].equals("8")) {
+				storageType = BackoffStorageType.QUANTIZED_TRIE_8;
+			} else if(args[2].equals("16")) {
+				storageType = BackoffStorageType.QUANTIZED_TRIE_16;
+			} else {
+				System.err.println("quantization must be 8 or 16 bits");
+				System.exit(1);
+			}
+		}
+		ARPAModelLoader aml = new ARPAModelLoader(new File(args[0]), -1, storageType);
+		write(aml.getLanguageModel(), new File(args[1]));
+	}
+}
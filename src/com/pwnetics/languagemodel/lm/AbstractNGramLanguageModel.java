@@ -29,9 +29,13 @@ authors.
 package com.pwnetics.languagemodel.lm;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
 
@@ -42,6 +46,9 @@ import com.pwnetics.languagemodel.ngram.AbstractNGram;
  */
 public abstract class AbstractNGramLanguageModel {
 
+	/** Number of tasks per available processor that a batch of sentences is split into, so that uneven tasks balance out */
+	private static final int BATCH_TASKS_PER_PROCESSOR = 4;
+
 	/** Maximum ngram size that the model contains */
 	protected final int order;
 
@@ -72,23 +79,95 @@ public abstract class AbstractNGramLanguageModel {
 
 	/**
 	 * Calculate the log-probability of a sequence of words.
+	 * Each ngram of the sliding window is built from a view of the sentence, so a view and an ngram are allocated per word;
+	 * models that can score word ids in place override this.
+	 * The views are indexed, so a sentence that is not a random-access list, like a LinkedList, is first copied into one.
 	 * @param delimitedSentence sequence of words starting with a beginning-of-sentence delimiter token and an end-of-sentence delimiter token
 	 * @return log-probability of the given sequence of words
 	 */
 	public double logProbability(List<String> delimitedSentence) {
+		if(!(delimitedSentence instanceof RandomAccess)) {
+			delimitedSentence = new ArrayList<String>(delimitedSentence);
+		}
 		double logProb = 0.0;
-		LinkedList<String> src = new LinkedList<String>();
+		for(int i=1; i<delimitedSentence.size(); i++) {
+			int start = Math.max(0, i - order + 1);
+			logProb += logProbability(AbstractNGram.factory(delimitedSentence.subList(start, i + 1)));
+		}
+		return logProb;
+	}
+
 
-		for(String n : delimitedSentence) {
-			src.addLast(n);
-			if(src.size() > 1) {
-				if(src.size() > order) {
-					src.removeFirst();
+	/**
+	 * Calculate the log-probabilities of many sentences, scoring contiguous runs of sentences as tasks on the given executor.
+	 * Models must be safe to query from several threads at once, which is true of the models in this package.
+	 * @param delimitedSentences sentences, each starting with a beginning-of-sentence delimiter token and ending with an end-of-sentence delimiter token
+	 * @param executor runs the scoring tasks; not shut down by this method
+	 * @return log-probability of each sentence, in the order of the given sentences
+	 */
+	public double [] logProbabilities(List<List<String>> delimitedSentences, ExecutorService executor) {
+		if(!(delimitedSentences instanceof RandomAccess)) {
+			delimitedSentences = new ArrayList<List<String>>(delimitedSentences);
+		}
+		final List<List<String>> sentences = delimitedSentences;
+		final double [] logProbs = new double[delimitedSentences.size()];
+		int tasks = Math.min(logProbs.length, BATCH_TASKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+		for(int t=0; t<tasks; t++) {
+			final int from = (int)((long)logProbs.length * t / tasks);
+			final int to = (int)((long)logProbs.length * (t+1) / tasks);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=from; i<to; i++) {
+						logProbs[i] = logProbability(sentences.get(i));
+					}
 				}
-				logProb += logProbability(AbstractNGram.factory(src));
+			}));
+		}
+
+		try {
+			for(Future<?> future : futures) {
+				future.get();
 			}
+		} catch (InterruptedException e) {
+			for(Future<?> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			for(Future<?> future : futures) {
+				future.cancel(true);
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return logProbs;
+	}
+
+
+	/**
+	 * Calculate the log-probabilities of many sentences on a pool of threads created for this call.
+	 * @param delimitedSentences sentences, each starting with a beginning-of-sentence delimiter token and ending with an end-of-sentence delimiter token
+	 * @param threads number of threads to score with
+	 * @return log-probability of each sentence, in the order of the given sentences
+	 * @see #logProbabilities(List, ExecutorService)
+	 */
+	public double [] logProbabilities(List<List<String>> delimitedSentences, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("must score with at least one thread");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return logProbabilities(delimitedSentences, executor);
+		} finally {
+			executor.shutdownNow();
 		}
-		return logProb;
 	}
 
 
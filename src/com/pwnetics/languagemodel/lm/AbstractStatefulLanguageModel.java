@@ -0,0 +1,139 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+package com.pwnetics.languagemodel.lm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.pwnetics.languagemodel.Vocabulary;
+
+
+/**
+ * A language model that implements {@link StatefulLanguageModel} and scores whole sentences through its own states.
+ * @author romanows
+ */
+public abstract class AbstractStatefulLanguageModel extends AbstractNGramLanguageModel implements StatefulLanguageModel {
+
+	/** Per-thread pair of states reused by {@link #logProbability(List)}, so that scoring a sentence does not allocate */
+	private final ThreadLocal<LanguageModelState []> sentenceStates = new ThreadLocal<LanguageModelState []>() {
+		@Override
+		protected LanguageModelState [] initialValue() {
+			return new LanguageModelState [] {new LanguageModelState(order), new LanguageModelState(order)};
+		}
+	};
+
+	/** Whether each word id is OOV, built on first use by {@link #isOOV(int)}; models do not change after construction */
+	private volatile boolean [] oovIds;
+
+
+	/**
+	 * Constructor.
+	 * @param order Maximum ngram size that the model contains
+	 * @param logBase base of the logarithms used to represent probabilities
+	 */
+	public AbstractStatefulLanguageModel(int order, double logBase) {
+		super(order, logBase);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#getVocabulary()
+	 */
+	@Override
+	public abstract Vocabulary getVocabulary();
+
+
+	/**
+	 * Calculate the log-probability of a unigram of a word id, as {@link #isOOV(int)} needs it.
+	 * @param ids array holding the word id
+	 * @param start index of the word id
+	 * @return log-probability of the unigram; infinite if the word is OOV
+	 */
+	protected abstract double unigramLogProbability(int [] ids, int start);
+
+
+	/**
+	 * Whether a word is out of the model's vocabulary.
+	 * The answers for all the words in the vocabulary are looked up once, on first use.
+	 * Ids the vocabulary assigns after that do not belong to any word of the model, so they are OOV.
+	 * @param wordId word id; {@link Vocabulary#UNKNOWN_ID} is always OOV
+	 * @return true if the word is OOV
+	 */
+	@Override
+	public boolean isOOV(int wordId) {
+		boolean [] oov = oovIds;
+		if(oov == null) {
+			// Threads racing to get here build identical tables
+			oov = new boolean[getVocabulary().size()];
+			int [] unigram = new int[1];
+			for(int id=0; id<oov.length; id++) {
+				unigram[0] = id;
+				oov[id] = Double.isInfinite(unigramLogProbability(unigram, 0));
+			}
+			oovIds = oov;
+		}
+		return wordId < 0 || wordId >= oov.length || oov[wordId];
+	}
+
+
+	/**
+	 * Calculate the log-probability of a sequence of words.
+	 * The words are scored one at a time with {@link #scoreNext(LanguageModelState, int, LanguageModelState)},
+	 * alternating between two per-thread states that serve as the ring buffer of the sliding ngram window, so that nothing is allocated.
+	 * Words are fetched by index, so a sentence that is not a random-access list, like a LinkedList, is first copied into one.
+	 * @param delimitedSentence sequence of words starting with a beginning-of-sentence delimiter token and an end-of-sentence delimiter token
+	 * @return log-probability of the given sequence of words
+	 */
+	@Override
+	public double logProbability(List<String> delimitedSentence) {
+		int size = delimitedSentence.size();
+		if(size == 0) {
+			return 0.0;
+		}
+		if(!(delimitedSentence instanceof RandomAccess)) {
+			delimitedSentence = new ArrayList<String>(delimitedSentence);
+		}
+		Vocabulary vocabulary = getVocabulary();
+		LanguageModelState [] states = sentenceStates.get();
+		LanguageModelState state = states[0];
+		LanguageModelState next = states[1];
+		state.words[0] = vocabulary.getId(delimitedSentence.get(0));
+		setContext(state, state.words, 0, 1);
+
+		double logProb = 0.0;
+		for(int i=1; i<size; i++) {
+			logProb += scoreNext(state, vocabulary.getId(delimitedSentence.get(i)), next);
+			LanguageModelState temp = state;
+			state = next;
+			next = temp;
+		}
+		return logProb;
+	}
+}
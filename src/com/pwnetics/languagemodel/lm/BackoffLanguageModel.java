@@ -30,60 +30,115 @@ package com.pwnetics.languagemodel.lm;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
 
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.HashMapBackoffStorage;
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
 
 
 /**
  * Compute probabilities for a ngram backoff language model.
+ *
+ * Ngrams are stored by the ids the model's {@link Vocabulary} assigns to their words.
+ * Queries made with String-based {@link AbstractNGram}s look up each word's id once and then work entirely with ints.
+ *
+ * The ngram probabilities and backoff weights are held in a {@link BackoffStorage}; see {@link com.pwnetics.languagemodel.lm.storage.BackoffStorageType} for the choices.
+ *
+ * As a {@link StatefulLanguageModel}, the model caches the backoff weights of each context's suffixes in the {@link LanguageModelState},
+ * so scoring a word looks up only ngrams that end in that word, plus the backoff weights of the new context's suffixes that are held.
+ *
  * @author romanows
  */
-public class BackoffLanguageModel extends AbstractNGramLanguageModel {
-	/** Highest-order ngrams and their probability estimates */
-	protected final Map<AbstractNGram, NGramProbability> highOrderNGrams;
+public class BackoffLanguageModel extends AbstractStatefulLanguageModel {
+	/** Assigns the word ids used to key the ngram storage */
+	protected final Vocabulary vocabulary;
 
-	/** lower-order ngrams and their associated probability and backoff weights or null if model order is 1 and there is no low order ngram information; e.g., lowerOrderToNGrams.get(0) contains the unigram information in a trigram model. */
-	protected final List<Map<AbstractNGram, NGramProbabilityBackoff>> lowerOrderToNGrams;
+	/** Holds the ngram probabilities and backoff weights */
+	protected final BackoffStorage storage;
 
 
 	/**
 	 * Constructor.
+	 * Builds a vocabulary from the words in the given ngrams and re-keys the ngrams by word id.
 	 * @param logBase base used for the logarithms
 	 * @param highOrderNGrams highest-order ngrams and their probability estimates
 	 * @param lowerOrderToNGrams lower-order ngrams and their associated probability and backoff weights or null if model order is 1 and there is no low order ngram information; e.g., lowerOrderToNGrams.get(0) contains the unigram information in a trigram model.
 	 */
 	public BackoffLanguageModel(double logBase, Map<AbstractNGram, NGramProbability> highOrderNGrams, List<Map<AbstractNGram, NGramProbabilityBackoff>> lowerOrderToNGrams) {
-		super(lowerOrderToNGrams == null ? 1 : lowerOrderToNGrams.size()+1, logBase);
-		this.highOrderNGrams = highOrderNGrams;
+		super(lowerOrderToNGrams == null || lowerOrderToNGrams.isEmpty() ? 1 : lowerOrderToNGrams.size()+1, logBase);
+		vocabulary = new Vocabulary();
+		List<Map<WordIdNGram, NGramProbabilityBackoff>> idLowerOrderToNGrams = null;
 		if(order > 1) {
-			this.lowerOrderToNGrams = lowerOrderToNGrams;
-		} else {
-			this.lowerOrderToNGrams = null;
+			// Lower orders first, so that word ids follow the unigram order
+			idLowerOrderToNGrams = new ArrayList<Map<WordIdNGram, NGramProbabilityBackoff>>();
+			for(Map<AbstractNGram, NGramProbabilityBackoff> ngramMap : lowerOrderToNGrams) {
+				idLowerOrderToNGrams.add(toWordIdKeys(vocabulary, ngramMap));
+			}
 		}
+		storage = new HashMapBackoffStorage(toWordIdKeys(vocabulary, highOrderNGrams), idLowerOrderToNGrams);
+	}
+
+
+	/**
+	 * Constructor.
+	 * @param logBase base used for the logarithms
+	 * @param vocabulary assigned the word ids of the given ngrams
+	 * @param highOrderNGrams highest-order ngrams and their probability estimates
+	 * @param lowerOrderToNGrams lower-order ngrams and their associated probability and backoff weights or null if model order is 1 and there is no low order ngram information; e.g., lowerOrderToNGrams.get(0) contains the unigram information in a trigram model.
+	 */
+	public BackoffLanguageModel(double logBase, Vocabulary vocabulary, Map<WordIdNGram, NGramProbability> highOrderNGrams, List<Map<WordIdNGram, NGramProbabilityBackoff>> lowerOrderToNGrams) {
+		this(logBase, vocabulary, new HashMapBackoffStorage(highOrderNGrams, lowerOrderToNGrams));
+	}
+
+
+	/**
+	 * Constructor.
+	 * @param logBase base used for the logarithms
+	 * @param vocabulary assigned the word ids of the stored ngrams
+	 * @param storage ngram probabilities and backoff weights
+	 */
+	public BackoffLanguageModel(double logBase, Vocabulary vocabulary, BackoffStorage storage) {
+		super(storage.order(), logBase);
+		this.vocabulary = vocabulary;
+		this.storage = storage;
 	}
 
 
 	/**
 	 * Constructor.
-	 * Used by extending classes that will fill-in model parameters.
+	 * Used by extending classes that will fill-in model parameters through the maps of a {@link HashMapBackoffStorage}.
 	 * @param order model order
 	 * @param logBase base used for the logarithms
 	 */
 	protected BackoffLanguageModel(int order, double logBase) {
 		super(order, logBase);
-		highOrderNGrams = new HashMap<AbstractNGram, NGramProbability>();
-		if(order > 1) {
-			lowerOrderToNGrams = new ArrayList<Map<AbstractNGram, NGramProbabilityBackoff>>();
-			for(int i=1; i<order; i++) {
-				lowerOrderToNGrams.add(new HashMap<AbstractNGram, NGramProbabilityBackoff>());
+		vocabulary = new Vocabulary();
+		storage = new HashMapBackoffStorage(order);
+	}
+
+
+	/**
+	 * Re-key a map of ngrams by word id, adding the ngram words to the given vocabulary.
+	 * @param vocabulary assigns the word ids
+	 * @param ngramMap ngrams to re-key
+	 * @return map holding the same values as the given map, keyed by word id
+	 */
+	private static <V> Map<WordIdNGram, V> toWordIdKeys(Vocabulary vocabulary, Map<AbstractNGram, V> ngramMap) {
+		Map<WordIdNGram, V> idMap = new HashMap<WordIdNGram, V>();
+		for(Entry<AbstractNGram, V> e : ngramMap.entrySet()) {
+			AbstractNGram ngram = e.getKey();
+			int [] ids = new int[ngram.size()];
+			for(int i=0; i<ids.length; i++) {
+				ids[i] = vocabulary.addId(ngram.get(i));
 			}
-		} else {
-			lowerOrderToNGrams = null;
+			idMap.put(new WordIdNGram(ids), e.getValue());
 		}
+		return idMap;
 	}
 
 
@@ -92,18 +147,17 @@ public class BackoffLanguageModel extends AbstractNGramLanguageModel {
 	 * @see com.pwnetics.languagemodel.lm.AbstractNGramLanguageModel#getVocabulary()
 	 */
 	@Override
-	public Set<String> getVocabulary() {
-		Set<AbstractNGram> unigramSet;
-		if(lowerOrderToNGrams != null) {
-			unigramSet = lowerOrderToNGrams.get(0).keySet();
-		} else {
-			unigramSet = highOrderNGrams.keySet();
-		}
-		Set<String> wordSet = new HashSet<String>();
-		for(AbstractNGram u : unigramSet) {
-			wordSet.add(u.getFirst());
-		}
-		return wordSet;
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+
+	/**
+	 * Get the storage holding the ngram probabilities and backoff weights.
+	 * @return the storage holding the ngram probabilities and backoff weights
+	 */
+	public BackoffStorage getStorage() {
+		return storage;
 	}
 
 
@@ -113,38 +167,163 @@ public class BackoffLanguageModel extends AbstractNGramLanguageModel {
 	 */
 	@Override
 	public double logProbability(AbstractNGram ngram) {
-		if(ngram.size() > order) {
+		int [] ids = vocabulary.getIds(ngram);
+		return logProbability(ids, 0, ids.length);
+	}
+
+
+	/**
+	 * Calculate the log-probability of an ngram of word ids.
+	 * Ids that are not in this model's vocabulary, like {@link Vocabulary#UNKNOWN_ID}, are treated as OOV words.
+	 * @param ngram ngram whose log-probability is desired
+	 * @return log-probability of given ngram
+	 */
+	public double logProbability(WordIdNGram ngram) {
+		return logProbability(ngram.toArray(), 0, ngram.size());
+	}
+
+
+	/**
+	 * Calculate the log-probability of an ngram of word ids.
+	 * Ids that are not in this model's vocabulary, like {@link Vocabulary#UNKNOWN_ID}, are treated as OOV words.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram
+	 * @return log-probability of given ngram
+	 */
+	public double logProbability(int [] ids, int start, int length) {
+		if(length > order) {
 			throw new IllegalArgumentException("ngram order exceeds model order");
 		}
 
-		if(ngram.size() < 1) {
+		if(length < 1) {
 			throw new IllegalArgumentException("must supply ngram of positive valued order");
 		}
 
 		// See if the given ngram is in our model
-		if(ngram.size() == order) {
-			NGramProbability logProb = highOrderNGrams.get(ngram);
-			if(logProb != null) {
-				return logProb.probability;
-			}
-		} else if(order > 1) {
-			NGramProbability logProb = lowerOrderToNGrams.get(ngram.size()-1).get(ngram);
-			if(logProb != null) {
-				return logProb.probability;
-			}
+		double logProb = storage.probability(ids, start, length);
+		if(logProb != BackoffStorage.NOT_HELD) {
+			return logProb;
 		}
 
 		// No sense in backoff from a unigram
-		if(ngram.size() < 2) {
+		if(length < 2) {
 			return Double.NEGATIVE_INFINITY;
 		}
 
 		// Try the backoff version of the ngram
-		NGramProbabilityBackoff historyPb = lowerOrderToNGrams.get(ngram.size()-2).get(ngram.history());
-		if(historyPb != null && historyPb.backoff != Double.NEGATIVE_INFINITY) {
-			return historyPb.backoff + logProbability(ngram.backoff());
+		double historyBackoff = storage.backoff(ids, start, length-1);
+		if(!Double.isNaN(historyBackoff) && !Double.isInfinite(historyBackoff)) {
+			return historyBackoff + logProbability(ids, start+1, length-1);
+		}
+		return logProbability(ids, start+1, length-1);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.AbstractStatefulLanguageModel#unigramLogProbability(int[], int)
+	 */
+	@Override
+	protected double unigramLogProbability(int [] ids, int start) {
+		return logProbability(ids, start, 1);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#newState(int[])
+	 */
+	@Override
+	public LanguageModelState newState(int... contextIds) {
+		LanguageModelState state = new LanguageModelState(order);
+		setContext(state, contextIds, 0, contextIds.length);
+		return state;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#setContext(com.pwnetics.languagemodel.lm.LanguageModelState, int[], int, int)
+	 */
+	@Override
+	public void setContext(LanguageModelState state, int [] contextIds, int start, int length) {
+		if(state.words.length != order) {
+			throw new IllegalArgumentException("state belongs to a model of a different order");
+		}
+		int kept = Math.min(length, order-1);
+		System.arraycopy(contextIds, start + length - kept, state.words, 0, kept);
+		state.length = kept;
+		state.model = this;
+		cacheContextBackoffs(state, kept);
+	}
+
+
+	/**
+	 * Store the log-backoff weights of the shortest suffixes of a state's context in the state.
+	 * Weights of longer suffixes are set to zero, which is right when the caller knows those suffixes are not held.
+	 * @param state state whose context words are filled in
+	 * @param maxLength length of the longest suffix to look up
+	 */
+	private void cacheContextBackoffs(LanguageModelState state, int maxLength) {
+		int length = state.length;
+		for(int m=1; m<=length; m++) {
+			double backoff = 0.0;
+			if(m <= maxLength) {
+				backoff = storage.backoff(state.words, length-m, m);
+				if(Double.isNaN(backoff) || Double.isInfinite(backoff)) {
+					backoff = 0.0;
+				}
+			}
+			state.contextBackoffs[m-1] = backoff;
+		}
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#scoreNext(com.pwnetics.languagemodel.lm.LanguageModelState, int, com.pwnetics.languagemodel.lm.LanguageModelState)
+	 */
+	@Override
+	public double scoreNext(LanguageModelState state, int wordId, LanguageModelState next) {
+		if(next.words.length != order || state.words.length != order) {
+			throw new IllegalArgumentException("state belongs to a model of a different order");
+		}
+		if(state.model != this) {
+			throw new IllegalArgumentException("state was not filled in by this model");
 		}
-		return logProbability(ngram.backoff());
+
+		// Append the word to the context in the next state's array
+		int total = state.length + 1;
+		int [] ids = next.words;
+		if(next != state) {
+			System.arraycopy(state.words, 0, ids, 0, state.length);
+		}
+		ids[total-1] = wordId;
+
+		// Longest held ngram ending in the word, searching from the longest as logProbability(int[],int,int) does
+		double logProb = Double.NEGATIVE_INFINITY;
+		int matched;
+		for(matched=total; matched>=1; matched--) {
+			double p = storage.probability(ids, total-matched, matched);
+			if(p != BackoffStorage.NOT_HELD) {
+				logProb = p;
+				break;
+			}
+		}
+
+		// Back off through the context suffixes that are longer than the match; an OOV word stays at log(0)
+		for(int m=Math.max(matched, 1); m<total; m++) {
+			logProb += state.contextBackoffs[m-1];
+		}
+
+		// Keep the last order-1 words; suffixes longer than the match are not held, so they have no backoff weights
+		int length = Math.min(total, order-1);
+		System.arraycopy(ids, total-length, ids, 0, length);
+		next.length = length;
+		next.model = this;
+		cacheContextBackoffs(next, matched);
+		return logProb;
 	}
 
 
@@ -153,9 +332,9 @@ public class BackoffLanguageModel extends AbstractNGramLanguageModel {
 	 * @return number of ngram/prob/backoff(optional) parameters in this model
 	 */
 	public int size() {
-		int size = highOrderNGrams.size();
-		for(Map<AbstractNGram, NGramProbabilityBackoff> orderData : lowerOrderToNGrams) {
-			size += orderData.size();
+		int size = 0;
+		for(int n=1; n<=order; n++) {
+			size += storage.size(n);
 		}
 		return size;
 	}
@@ -29,17 +29,28 @@ authors.
 package com.pwnetics.languagemodel.lm;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.NGramCount;
+import com.pwnetics.languagemodel.NGramCountTable;
+import com.pwnetics.languagemodel.NGramEnumerator;
+import com.pwnetics.languagemodel.ParallelNGramCount;
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.ngram.NGramKeyPacker;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.ITokenizer;
 
 
 /**
@@ -50,15 +61,26 @@ import com.pwnetics.languagemodel.ngram.AbstractNGram;
  * optimize the lambda interpolation weights on a held-out dataset.  Rather, it calculates them according
  * to what they theoretically should be.
  *
+ * Counts are held in {@link NGramCountTable}s keyed by packed word ids (see {@link Vocabulary}), so the many count and history lookups made while
+ * estimating a probability hash and compare longs rather than word Strings, and a count takes a fraction of the memory of an {@link ItemCounter} entry.
+ * Counts given as {@link ItemCounter}s are copied into tables.
+ *
+ * The discounts and the per-history statistics are computed once by the constructor and are not modified afterwards,
+ * so queries only read shared state and any number of threads may query a model at once without locking.
+ * Count tables are read, not copied, and must not be modified while the model is in use.
+ *
  * @author romanows
  */
-public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
+public class KneserNeyModFixModel2 extends AbstractStatefulLanguageModel {
 
-	/** NGram counts used to estimate smoothed KN probabilities */
-	private List<ItemCounter<AbstractNGram>> orderToNGramCounter;
+	/** Assigns the word ids used to key the ngram counts */
+	private final Vocabulary vocabulary;
+
+	/** NGram counts used to estimate smoothed KN probabilities; index 0 holds the unigram counts */
+	private final NGramCountTable [] orderToNGramCounts;
 
 	/** Number of unigrams in training data */
-	private int sumUnigrams;
+	private final long sumUnigrams;
 
 	/** D_n(1); the discount D for ngram of order n that appears 1 time in the training data */
 	private final double [] d1;
@@ -69,37 +91,55 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	/** D_n(3+); the discount D for ngram of order n that appears 3+ times in the training data */
 	private final double [] d3p;
 
-	/** Maps histories to ngrams that have those histories.  Speed up finding ngrams with common histories */
-	private Map<AbstractNGram,List<AbstractNGram>> historyToNGramMap;
+	/** Assigns ids to the histories of the counted ngrams above the unigrams */
+	private final NGramIndex histories;
 
-	/** Caches the most recently used constants for ngram histories.  Significant speed up. */
-	private LinkedHashMap<AbstractNGram, CachedIntermediateValues> historyToIntermediateValueCache;
+	/** Denominator for the first and gamma terms in the KN equation, the total count of the ngrams that extend each history; indexed by history id */
+	private final long [] historyDen;
 
+	/** Number of unique words that appear [once, twice, three-or-more-times] after each history in the training data; three entries per history id */
+	private final int [] historyNc;
+
+	/** Per-thread array that the word ids of a queried ngram are copied into, so that estimating it does not allocate */
+	private final ThreadLocal<int []> probeIds = new ThreadLocal<int []>() {
+		@Override
+		protected int [] initialValue() {
+			return new int[order];
+		}
+	};
 
-	/** Container for caching KN constants in {@link KneserNeyModFixModel2#historyToIntermediateValueCache} */
-	private static class CachedIntermediateValues {
-		/** Number of unique words that appear [once, twice, three-or-more-times] after the history in the training data */
-		public int [] Nc;
 
-		/** Denominator for the first and gamma terms in the KN equation */
-		public int den;
+	/**
+	 * Constructor.
+	 * Builds a vocabulary from the unigram counts and copies the counts into tables keyed by word id.
+	 * @param order model order
+	 * @param logBase base of logarithm in which probabilities are reported
+	 * @param orderToNGramCounter ngram order to counts of ngrams; the raw data for log probability estimates
+	 */
+	public KneserNeyModFixModel2(int order, double logBase, List<ItemCounter<AbstractNGram>> orderToNGramCounter) {
+		this(order, logBase, new Vocabulary(), orderToNGramCounter);
 	}
 
 
-	/** Standard implementation of a LRU cache */
-	private static class ConstantCacheQueue<K, V> extends LinkedHashMap<K, V> {
-		private static final long serialVersionUID = 1L;
-		private final int maxEntries;
+	/**
+	 * Constructor.
+	 * Adds the words of the given ngrams to the vocabulary and copies the counts into tables keyed by word id.
+	 */
+	private KneserNeyModFixModel2(int order, double logBase, Vocabulary vocabulary, List<ItemCounter<AbstractNGram>> orderToNGramCounter) {
+		this(order, logBase, toTables(order, vocabulary, orderToNGramCounter), vocabulary);
+	}
 
-		public ConstantCacheQueue(int maxEntries) {
-			super(maxEntries, 0.75f, true);
-			this.maxEntries = maxEntries;
-		}
 
-		@Override
-		protected boolean removeEldestEntry(java.util.Map.Entry<K, V> eldest) {
-			return size() > maxEntries;
-		}
+	/**
+	 * Constructor.
+	 * Copies the counts into tables.
+	 * @param order model order
+	 * @param logBase base of logarithm in which probabilities are reported
+	 * @param orderToNGramCounter ngram order to counts of ngrams, keyed by word id; the raw data for log probability estimates
+	 * @param vocabulary assigned the word ids of the counted ngrams
+	 */
+	public KneserNeyModFixModel2(int order, double logBase, List<ItemCounter<WordIdNGram>> orderToNGramCounter, Vocabulary vocabulary) {
+		this(order, logBase, toTables(order, orderToNGramCounter, vocabulary.size()), vocabulary);
 	}
 
 
@@ -107,47 +147,155 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	 * Constructor.
 	 * @param order model order
 	 * @param logBase base of logarithm in which probabilities are reported
-	 * @param orderToNGramCounter ngram order to counts of ngrams; the raw data for log probability estimates
+	 * @param orderToNGramCounts ngram order to counts of ngrams, unigrams first; the raw data for log probability estimates
+	 * @param vocabulary assigned the word ids of the counted ngrams
 	 */
-	public KneserNeyModFixModel2(int order, double logBase, List<ItemCounter<AbstractNGram>> orderToNGramCounter) {
+	public KneserNeyModFixModel2(int order, double logBase, NGramCountTable [] orderToNGramCounts, Vocabulary vocabulary) {
 		super(order, logBase);
-		if(order > orderToNGramCounter.size()) {
+		if(order > orderToNGramCounts.length) {
 			throw new IllegalArgumentException("requested language model order is too large for supplied ngram counts");
 		}
-		this.orderToNGramCounter = orderToNGramCounter;
-		sumUnigrams = (int) orderToNGramCounter.get(0).sum();
-		historyToIntermediateValueCache = new ConstantCacheQueue<AbstractNGram, KneserNeyModFixModel2.CachedIntermediateValues>((int)Math.pow(2,14));
+		for(int i=0; i<order; i++) {
+			if(orderToNGramCounts[i].order() != i+1) {
+				throw new IllegalArgumentException("counts of order " + orderToNGramCounts[i].order() + " supplied in place of order " + (i+1));
+			}
+		}
+		this.vocabulary = vocabulary;
+		this.orderToNGramCounts = orderToNGramCounts;
+		sumUnigrams = orderToNGramCounts[0].sum();
 
 		// Calculate D's
 		d1 = new double[order];
 		d2 = new double[order];
 		d3p = new double[order];
-		for(int i=0; i<orderToNGramCounter.size(); i++) {
-			ItemCounter<Integer> countOfCounts = orderToNGramCounter.get(i).countOfCounts();
-			int n1 = countOfCounts.get(1);
-			int n2 = countOfCounts.get(2);
-			int n3 = countOfCounts.get(3);
-			int n4 = countOfCounts.get(4);
+		for(int i=0; i<order; i++) {
+			long [] countOfCounts = orderToNGramCounts[i].countOfCounts(4);
+			long n1 = countOfCounts[1];
+			long n2 = countOfCounts[2];
+			long n3 = countOfCounts[3];
+			long n4 = countOfCounts[4];
 
 			d1[i] = 1.0 - ((2.0 * n1 * n2) / ((n1+2.0*n2) * n1));
 			d2[i] = 2.0 - ((3.0 * n1 * n3) / ((n1+2.0*n2) * n2));
 			d3p[i] = 3.0 - ((4.0 * n1 * n4) / ((n1+2.0*n2) * n3));
 		}
 
-		// Calculate history map
-		historyToNGramMap = new HashMap<AbstractNGram, List<AbstractNGram>>();
-		for(int i=1; i<orderToNGramCounter.size(); i++) {
+		// Calculate the denominator and Nc's of every history in one pass over the counts
+		int higherOrderCount = 0;
+		for(int i=1; i<order; i++) {
+			higherOrderCount += orderToNGramCounts[i].size();
+		}
+		int bitsPerWord = 1;
+		for(int i=0; i<order; i++) {
+			bitsPerWord = Math.max(bitsPerWord, orderToNGramCounts[i].packer().bitsPerWord());
+		}
+		histories = new NGramIndex(Math.max(1, order-1), bitsPerWord, higherOrderCount / 2);
+		long [] den = new long[0];
+		int [] nc = new int[0];
+		for(int i=1; i<order; i++) {
+			int [] ids = new int[i+1];
+			WordIdNGram history = new WordIdNGram(ids, 0, i);
+			for(NGramCountTable.Cursor c = orderToNGramCounts[i].cursor(); c.next(); ) {
+				c.ids(ids, 0);
+				int h = histories.add(history);
+				if(h >= den.length) {
+					den = Arrays.copyOf(den, Math.max(16, 2 * h));
+					nc = Arrays.copyOf(nc, 3 * den.length);
+				}
+				long count = c.count();
+				den[h] += count;
+				if(count > 0) {
+					nc[3*h + (int) Math.min(count, 3) - 1]++;
+				}
+			}
+		}
+		historyDen = den;
+		historyNc = nc;
+	}
+
+
+	/**
+	 * Train a model on a stream of tokens.
+	 * The tokens are enumerated into one count table per order as they are read, so the corpus is never held in memory;
+	 * memory depends only on the number of distinct ngrams.
+	 * Each utterance begins with the start-of-utterance token, counted as a word, and no ngram spans two utterances, as SRILM counts sentences;
+	 * see {@link NGramEnumerator}.
+	 * @param order model order
+	 * @param logBase base of logarithm in which probabilities are reported
+	 * @param tokenizer provides the training tokens, e.g. a {@link com.pwnetics.languagemodel.tokenizer.UtteranceTokenizer}
+	 * @param beginUtterance start-of-utterance token, e.g. "&lt;s&gt;", or null if the tokens are not split into utterances
+	 * @return model estimated from the counts of the tokens' ngrams
+	 */
+	public static KneserNeyModFixModel2 train(int order, double logBase, ITokenizer tokenizer, String beginUtterance) {
+		Vocabulary vocabulary = new Vocabulary();
+		NGramCount counts = new NGramCount();
+		counts.add(new NGramEnumerator(vocabulary, tokenizer, order, beginUtterance, false));
+		return new KneserNeyModFixModel2(order, logBase, counts.getTables(), vocabulary);
+	}
+
+
+	/**
+	 * Train a model on a stream of tokens as {@link #train(int, double, ITokenizer, String)} does, counting the ngrams with several threads.
+	 * @param order model order
+	 * @param logBase base of logarithm in which probabilities are reported
+	 * @param tokenizer provides the training tokens
+	 * @param beginUtterance start-of-utterance token, or null if the tokens are not split into utterances
+	 * @param threads number of threads to count with
+	 * @return model estimated from the counts of the tokens' ngrams; the same for any number of threads
+	 * @see ParallelNGramCount
+	 */
+	public static KneserNeyModFixModel2 train(int order, double logBase, ITokenizer tokenizer, String beginUtterance, int threads) {
+		ParallelNGramCount counts = new ParallelNGramCount(new Vocabulary(), order, threads);
+		counts.add(tokenizer, beginUtterance, false);
+		return new KneserNeyModFixModel2(order, logBase, counts.getTables(), counts.getVocabulary());
+	}
+
+
+	/**
+	 * Copy String-keyed ngram counts into tables keyed by word id, adding the ngram words to the given vocabulary.
+	 * Unigrams are copied first, so that word ids follow the unigram order.
+	 * @param order model order; counts above this order are not copied
+	 * @param vocabulary assigns the word ids
+	 * @param orderToNGramCounter ngram order to counts of ngrams
+	 * @return ngram order to counts of ngrams, keyed by word id
+	 */
+	private static NGramCountTable [] toTables(int order, Vocabulary vocabulary, List<ItemCounter<AbstractNGram>> orderToNGramCounter) {
+		NGramCountTable [] tables = new NGramCountTable[Math.min(order, orderToNGramCounter.size())];
+		for(int i=0; i<tables.length; i++) {
 			ItemCounter<AbstractNGram> ngramCounter = orderToNGramCounter.get(i);
+			tables[i] = new NGramCountTable(i+1, NGramKeyPacker.bitsPerWord(vocabulary.size()), ngramCounter.size());
+			int [] ids = new int[i+1];
 			for(AbstractNGram ngram : ngramCounter.getItems()) {
-				AbstractNGram history = ngram.history();
-				List<AbstractNGram> ngramList = historyToNGramMap.get(history);
-				if(ngramList == null) {
-					ngramList = new ArrayList<AbstractNGram>();
-					historyToNGramMap.put(history, ngramList);
+				for(int j=0; j<ids.length; j++) {
+					ids[j] = vocabulary.addId(ngram.get(j));
 				}
-				ngramList.add(ngram);
+				tables[i].increment(ids, 0, ngramCounter.get(ngram));
 			}
 		}
+		return tables;
+	}
+
+
+	/**
+	 * Copy ngram counts keyed by word id into tables.
+	 * @param order model order; counts above this order are not copied
+	 * @param orderToNGramCounter ngram order to counts of ngrams, keyed by word id
+	 * @param vocabularySize number of words in the vocabulary that assigned the word ids
+	 * @return ngram order to counts of ngrams
+	 */
+	private static NGramCountTable [] toTables(int order, List<ItemCounter<WordIdNGram>> orderToNGramCounter, int vocabularySize) {
+		NGramCountTable [] tables = new NGramCountTable[Math.min(order, orderToNGramCounter.size())];
+		for(int i=0; i<tables.length; i++) {
+			ItemCounter<WordIdNGram> ngramCounter = orderToNGramCounter.get(i);
+			tables[i] = new NGramCountTable(i+1, NGramKeyPacker.bitsPerWord(vocabularySize), ngramCounter.size());
+			for(WordIdNGram ngram : ngramCounter.getItems()) {
+				if(ngram.size() != i+1) {
+					throw new IllegalArgumentException("ngram " + ngram + " counted with the ngrams of order " + (i+1));
+				}
+				tables[i].increment(ngram.toArray(), 0, ngramCounter.get(ngram));
+			}
+		}
+		return tables;
 	}
 
 
@@ -157,8 +305,8 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	 * @param c number of times the ngram appears in the training data
 	 * @return Kneser-Ney absolute discounting factor
 	 */
-	private double getD(int n, int c) {
-		switch (c) {
+	private double getD(int n, long c) {
+		switch ((int) Math.min(c, 3)) {
 		case 0:
 			return 0.0;
 		case 1:
@@ -173,16 +321,38 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 
 	/**
 	 * Calculate the gamma normalization factor.
-	 * @param history history of the ngram whose second KN term is being calculated
-	 * @param den denominator of the gamma factor
-	 * @param Nc number of unique words that appear [once, twice, three-or-more-times] after the history in the training data
+	 * @param n order of the ngram whose second KN term is being calculated
+	 * @param h id of the ngram's history
 	 * @return the gamma normalization factor
 	 */
-	private double calcGamma(AbstractNGram history, int den, int [] Nc) {
-		double gamma = getD(history.size()+1, 1) * Nc[0];
-		gamma += getD(history.size()+1, 2) * Nc[1];
-		gamma += getD(history.size()+1, 3) * Nc[2];
-		return gamma / den;
+	private double calcGamma(int n, int h) {
+		double gamma = getD(n, 1) * historyNc[3*h];
+		gamma += getD(n, 2) * historyNc[3*h + 1];
+		gamma += getD(n, 3) * historyNc[3*h + 2];
+		return gamma / historyDen[h];
+	}
+
+
+	/**
+	 * Get the denominator of a history, the total count of the ngrams that extend it.
+	 * @param history history of a counted ngram above the unigrams
+	 * @return the denominator, or 0 if no counted ngram extends the history
+	 */
+	long historyDen(WordIdNGram history) {
+		int h = histories.indexOf(history);
+		return h < 0 ? 0 : historyDen[h];
+	}
+
+
+	/**
+	 * Get the number of unique words that appear a number of times after a history.
+	 * @param history history of a counted ngram above the unigrams
+	 * @param c 1, 2, or 3 for three-or-more times
+	 * @return the number of words, or 0 if no counted ngram extends the history
+	 */
+	int historyNc(WordIdNGram history, int c) {
+		int h = histories.indexOf(history);
+		return h < 0 ? 0 : historyNc[3*h + c - 1];
 	}
 
 
@@ -192,13 +362,13 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	 * @param den denominator of the first term
 	 * @return the first term in the KN equation
 	 */
-	private Double calcNGramProbability(AbstractNGram ngram, int den) {
+	private double calcNGramProbability(WordIdNGram ngram, long den) {
 		if(ngram.size() == 1) {
-			Integer count = orderToNGramCounter.get(0).get(ngram);
+			long count = orderToNGramCounts[0].get(ngram);
 			return count / (double) sumUnigrams;
 		}
 
-		Integer count = orderToNGramCounter.get(ngram.size()-1).get(ngram);
+		long count = orderToNGramCounts[ngram.size()-1].get(ngram);
 		if(count == 0) {
 			return 0.0;
 		}
@@ -206,55 +376,44 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	}
 
 
-	private CachedIntermediateValues getIntermediateValues(AbstractNGram history) {
-		CachedIntermediateValues cc = historyToIntermediateValueCache.get(history);
-		if(cc == null) {
-			// Calculate denominator and Nc's
-			cc = new CachedIntermediateValues();
-			cc.den = 0;
-			cc.Nc = new int[3];
-			if(historyToNGramMap.containsKey(history)) {
-				ItemCounter<AbstractNGram> ngramCounter = orderToNGramCounter.get(history.size());
-				for(AbstractNGram ng : historyToNGramMap.get(history)) {
-					cc.den += ngramCounter.get(ng);
-					switch (ngramCounter.get(ng)) {
-					case 0:
-						break;
-					case 1:
-						cc.Nc[0]++;
-						break;
-					case 2:
-						cc.Nc[1]++;
-						break;
-					default:
-						cc.Nc[2]++;
-						break;
-					}
-				}
+	/**
+	 * Perform Chen and Goodman's recursive interpolation calculation of kneser-ney-mod.
+	 * The recursion is unrolled from the unigram up, which gives the same sums, and the ngram's suffixes are looked up in place so that nothing is allocated.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram, at most the model order
+	 * @return the estimated/smoothed ngram probability
+	 */
+	private double recurseNGramProbability(int [] ids, int start, int length) {
+		int end = start + length;
+		double prob = orderToNGramCounts[0].get(ids, end-1) / (double) sumUnigrams;
+		for(int n=2; n<=length; n++) {
+			int h = histories.indexOf(ids, end-n, n-1);
+			if(h >= 0) {
+				long count = orderToNGramCounts[n-1].get(ids, end-n);
+				double first = count == 0 ? 0.0 : (count - getD(n, count)) / historyDen[h];
+				prob = first + calcGamma(n, h) * prob;
 			}
-			historyToIntermediateValueCache.put(history, cc);
 		}
-		return cc;
+		return prob;
 	}
 
 
 	/**
 	 * Perform Chen and Goodman's recursive interpolation calculation of kneser-ney-mod.
-	 * @param ngram
+	 * @param ngram ngram of at most the model order
 	 * @return the estimated/smoothed ngram probability
+	 * @see #recurseNGramProbability(int[], int, int)
 	 */
-	private Double recurseNGramProbability(AbstractNGram ngram) {
-		if(ngram.size() == 1) {
-			return calcNGramProbability(ngram, 0);  // the den is not used in this case
+	private double recurseNGramProbability(WordIdNGram ngram) {
+		if(ngram.size() > order) {
+			throw new IllegalArgumentException("ngram of order " + ngram.size() + " queried in a model of order " + order);
 		}
-
-		AbstractNGram history = ngram.history();
-		if(historyToNGramMap.containsKey(history)) {
-			CachedIntermediateValues cc = getIntermediateValues(history);
-			return calcNGramProbability(ngram,cc.den) + calcGamma(history, cc.den, cc.Nc)*recurseNGramProbability(ngram.backoff());
-		} else {
-			return recurseNGramProbability(ngram.backoff());
+		int [] ids = probeIds.get();
+		for(int i=0; i<ngram.size(); i++) {
+			ids[i] = ngram.get(i);
 		}
+		return recurseNGramProbability(ids, 0, ngram.size());
 	}
 
 
@@ -263,12 +422,8 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	 * @see com.pwnetics.languagemodel.lm.AbstractNGramLanguageModel#getVocabulary()
 	 */
 	@Override
-	public Set<String> getVocabulary() {
-		Set<String> wordSet = new HashSet<String>();
-		for(AbstractNGram u : orderToNGramCounter.get(0).getItems()) {
-			wordSet.add(u.getFirst());
-		}
-		return wordSet;
+	public Vocabulary getVocabulary() {
+		return vocabulary;
 	}
 
 
@@ -278,134 +433,445 @@ public class KneserNeyModFixModel2 extends AbstractNGramLanguageModel {
 	 */
 	@Override
 	public double logProbability(AbstractNGram ngram) {
+		if(ngram.size() > order) {
+			throw new IllegalArgumentException("ngram of order " + ngram.size() + " queried in a model of order " + order);
+		}
+		int [] ids = probeIds.get();
+		for(int i=0; i<ngram.size(); i++) {
+			ids[i] = vocabulary.getId(ngram.get(i));
+		}
+		return log(recurseNGramProbability(ids, 0, ngram.size()));
+	}
+
+
+	/**
+	 * Calculate the log-probability of an ngram of word ids.
+	 * Ids that are not in this model's vocabulary, like {@link Vocabulary#UNKNOWN_ID}, are treated as OOV words.
+	 * @param ngram ngram whose log-probability is desired
+	 * @return log-probability of given ngram
+	 */
+	public double logProbability(WordIdNGram ngram) {
 		return log(recurseNGramProbability(ngram));
 	}
 
 
-	public BackoffLanguageModel calcBackoff() {
-		// Unigrams backoffs are the same as the interpolated version
-		if(order == 1) {
-			Map<AbstractNGram, NGramProbability> highOrderNGrams = new HashMap<AbstractNGram, NGramProbability>();
-			for(AbstractNGram ngram : orderToNGramCounter.get(0).getItems()) {
-				highOrderNGrams.put(ngram, new NGramProbability(log(calcNGramProbability(ngram, 0))));  // the den is not used in this case
-			}
-			return new BackoffLanguageModel(logBase, highOrderNGrams, null);
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.AbstractStatefulLanguageModel#unigramLogProbability(int[], int)
+	 */
+	@Override
+	protected double unigramLogProbability(int [] ids, int start) {
+		return log(recurseNGramProbability(ids, start, 1));
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#newState(int[])
+	 */
+	@Override
+	public LanguageModelState newState(int... contextIds) {
+		LanguageModelState state = new LanguageModelState(order);
+		setContext(state, contextIds, 0, contextIds.length);
+		return state;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#setContext(com.pwnetics.languagemodel.lm.LanguageModelState, int[], int, int)
+	 */
+	@Override
+	public void setContext(LanguageModelState state, int [] contextIds, int start, int length) {
+		if(state.words.length != order) {
+			throw new IllegalArgumentException("state belongs to a model of a different order");
 		}
+		int kept = Math.min(length, order-1);
+		System.arraycopy(contextIds, start + length - kept, state.words, 0, kept);
+		state.length = kept;
+		state.model = this;
+		cacheContextHistories(state);
+	}
 
-		// Higher order backoff models share the same probabilities where there are counts in our model
-		List<Map<AbstractNGram, NGramProbabilityBackoff>> lowerOrderToNGrams = new ArrayList<Map<AbstractNGram,NGramProbabilityBackoff>>();
-		for(int i=0; i<order-1; i++) {
-			Map<AbstractNGram, NGramProbabilityBackoff> ngramToPB = new HashMap<AbstractNGram, NGramProbabilityBackoff>();
-			for(AbstractNGram ngram : orderToNGramCounter.get(i).getItems()) {
-				ngramToPB.put(ngram, new NGramProbabilityBackoff(recurseNGramProbability(ngram)));
-			}
-			lowerOrderToNGrams.add(ngramToPB);
+
+	/**
+	 * Store the history id and gamma of each suffix of a state's context in the state.
+	 * @param state state whose context words are filled in
+	 */
+	private void cacheContextHistories(LanguageModelState state) {
+		int length = state.length;
+		for(int k=1; k<=length; k++) {
+			int h = histories.indexOf(state.words, length-k, k);
+			state.contextHistories[k-1] = h;
+			state.contextBackoffs[k-1] = h < 0 ? 0.0 : calcGamma(k+1, h);
 		}
+	}
+
 
-		Map<AbstractNGram, NGramProbability> highOrderNGrams = new HashMap<AbstractNGram, NGramProbability>();
-		for(AbstractNGram ngram : orderToNGramCounter.get(order-1).getItems()) {
-			highOrderNGrams.put(ngram, new NGramProbability(recurseNGramProbability(ngram)));
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.StatefulLanguageModel#scoreNext(com.pwnetics.languagemodel.lm.LanguageModelState, int, com.pwnetics.languagemodel.lm.LanguageModelState)
+	 */
+	@Override
+	public double scoreNext(LanguageModelState state, int wordId, LanguageModelState next) {
+		if(next.words.length != order || state.words.length != order) {
+			throw new IllegalArgumentException("state belongs to a model of a different order");
+		}
+		if(state.model != this) {
+			throw new IllegalArgumentException("state was not filled in by this model");
 		}
 
-		// Calculate backoff weights
-		for(int i=1; i<order-1; i++) {
-			for(AbstractNGram ngram : orderToNGramCounter.get(i).getItems()) {
-				AbstractNGram history = ngram.history();
-				NGramProbabilityBackoff ngpb = lowerOrderToNGrams.get(i-1).get(history);
-				if(!Double.isNaN(ngpb.backoff)) {
-					continue;
-				}
+		// Append the word to the context in the next state's array
+		int total = state.length + 1;
+		int [] ids = next.words;
+		if(next != state) {
+			System.arraycopy(state.words, 0, ids, 0, state.length);
+		}
+		ids[total-1] = wordId;
+
+		// Interpolate from the unigram up, as recurseNGramProbability(int[], int, int) does, with the histories and gammas cached in the state
+		double prob = orderToNGramCounts[0].get(ids, total-1) / (double) sumUnigrams;
+		for(int n=2; n<=total; n++) {
+			int h = state.contextHistories[n-2];
+			if(h >= 0) {
+				long count = orderToNGramCounts[n-1].get(ids, total-n);
+				double first = count == 0 ? 0.0 : (count - getD(n, count)) / historyDen[h];
+				prob = first + state.contextBackoffs[n-2] * prob;
+			}
+		}
 
-				double probLeftover = 1.0;
-				for(AbstractNGram ngramWithHistory : historyToNGramMap.get(history)) {
-					probLeftover -= lowerOrderToNGrams.get(i).get(ngramWithHistory).probability;
-				}
+		// Keep the last order-1 words
+		int length = Math.min(total, order-1);
+		System.arraycopy(ids, total-length, ids, 0, length);
+		next.length = length;
+		next.model = this;
+		cacheContextHistories(next);
+		return log(prob);
+	}
+
+
+	/**
+	 * Convert this model into a backoff model held in a {@link com.pwnetics.languagemodel.lm.storage.HashMapBackoffStorage}.
+	 * @return backoff model equivalent to this model
+	 */
+	public BackoffLanguageModel calcBackoff() {
+		return calcBackoff(BackoffStorageType.HASH_MAP);
+	}
 
-				double probToDistribute = 0.0;
-				List<AbstractNGram> expandHistory = historyToNGramMap.get(history);
-				Collection<AbstractNGram> unigrams = lowerOrderToNGrams.get(0).keySet();
-				// Add up all in the expandHistoryBackoff that don't have the same word in the last word as anything in expandHistory
-				for(AbstractNGram unigram : unigrams) {
-					boolean toAdd = true;
-					for(AbstractNGram expandHistoryNGram : expandHistory) {
-						if(unigram.getLast().equals(expandHistoryNGram.getLast())) {
-							toAdd = false;
-							break;
-						}
-					}
-					if(toAdd) {
-						if(history.size() == 1) {
-							probToDistribute += recurseNGramProbability(unigram);
-						} else {
-							probToDistribute += recurseNGramProbability(history.backoff().add(unigram.getFirst()));
-						}
-					}
-				}
 
-				if(probToDistribute == 0.0) {
-					ngpb.backoff = 0.0;
-				} else {
-					ngpb.backoff = probLeftover/probToDistribute;
+	/**
+	 * Convert this model into a backoff model held in the given type of storage.
+	 * The ngrams are added to the storage's builder as they are estimated; see {@link #calcBackoff(BackoffEntrySink)}.
+	 * @param storageType type of storage for the backoff model
+	 * @return backoff model equivalent to this model
+	 */
+	public BackoffLanguageModel calcBackoff(BackoffStorageType storageType) {
+		return calcBackoff(storageType, 1);
+	}
+
+
+	/**
+	 * Convert this model into a backoff model held in the given type of storage, estimating ngrams with several threads.
+	 * @param storageType type of storage for the backoff model
+	 * @param threads number of threads that estimate ngrams
+	 * @return backoff model equivalent to this model; identical for any number of threads
+	 * @see #calcBackoff(BackoffEntrySink, int)
+	 */
+	public BackoffLanguageModel calcBackoff(BackoffStorageType storageType, int threads) {
+		BackoffStorageBuilder builder = storageType.newBuilder(vocabulary.size(), orderCounts());
+		calcBackoff(builder, threads);
+		return new BackoffLanguageModel(10.0, vocabulary, builder.build());
+	}
+
+
+	/**
+	 * Estimate the backoff model equivalent to this model, adding each ngram to a sink as soon as its values are known.
+	 * Nothing is collected along the way, so a sink that writes its ngrams out, like {@link com.pwnetics.languagemodel.arpa.ARPAModelWriter}, exports the model without holding it.
+	 *
+	 * Ngrams are added as {@link BackoffStorage#copyTo(BackoffEntrySink)} adds them: all unigrams first, then all bigrams, and so on;
+	 * values are base-10 logarithms, highest-order ngrams have a {@link Double#NaN} log-backoff weight,
+	 * and lower-order ngrams that are not the history of any higher-order ngram have a {@link Double#NEGATIVE_INFINITY} log-backoff weight.
+	 * Does not call {@link BackoffStorageBuilder#build()} on a builder.
+	 * @param sink receives the ngrams; a builder is created with the counts of {@link #orderCounts()}
+	 */
+	public void calcBackoff(BackoffEntrySink sink) {
+		calcBackoff(sink, 1);
+	}
+
+
+	/**
+	 * Estimate the backoff model equivalent to this model with several threads, adding the ngrams to a sink as in {@link #calcBackoff(BackoffEntrySink)}.
+	 *
+	 * Probabilities are estimated bottom-up: each order's interpolated probabilities are computed once into an {@link OrderProbabilities} table,
+	 * from the counts and the table of the order below, rather than by recursing down to the unigrams for every ngram.
+	 * An order's backoff weights need its own probabilities and those of the order above, so two tables are held at a time.
+	 *
+	 * The ngrams of an order are split into ranges that the threads estimate into the order's arrays; each order is then added to the sink in order from the calling thread.
+	 * Every value is computed the same way by whichever thread computes it, so the sink receives the same ngrams and values, in the same order, for any number of threads.
+	 * @param sink receives the ngrams; a builder is created with the counts of {@link #orderCounts()}; only called from the calling thread
+	 * @param threads number of threads that estimate ngrams; with 1, ngrams are estimated on the calling thread
+	 */
+	public void calcBackoff(BackoffEntrySink sink, int threads) {
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			OrderProbabilities current = estimateOrder(null, executor, threads);
+			for(int i=0; i<order; i++) {
+				OrderProbabilities higher = i < order-1 ? estimateOrder(current, executor, threads) : null;
+				double [] logBackoffs = estimateBackoffs(current, higher, executor, threads);
+
+				int [] ids = new int[i+1];
+				for(int j=0; j<current.ngrams.size(); j++) {
+					current.ngrams.get(j, ids);
+					sink.add(ids, Math.log10(current.probabilities[j]), logBackoffs[j]);
 				}
+				current = higher;
+			}
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
 			}
 		}
+	}
 
-		for(AbstractNGram ngram : orderToNGramCounter.get(order-1).getItems()) {
-			AbstractNGram history = ngram.history();
-			NGramProbabilityBackoff ngpb = lowerOrderToNGrams.get(order-2).get(history);
-			if(!Double.isNaN(ngpb.backoff)) {
-				continue;
-			}
-			double probLeftover = 1.0;
-			for(AbstractNGram ngramWithHistory : historyToNGramMap.get(history)) {
-				probLeftover -= highOrderNGrams.get(ngramWithHistory).probability;
-			}
 
-			double probToDistribute = 0.0;
-			HashSet<AbstractNGram> expandHistory = new HashSet<AbstractNGram>(historyToNGramMap.get(history));
-			Collection<AbstractNGram> unigrams = lowerOrderToNGrams.get(0).keySet();
-			// Add up all in the expandHistoryBackoff that don't have the same word in the last word as anything in expandHistory
-			for(AbstractNGram unigram : unigrams) {
-				boolean toAdd = true;
-				for(AbstractNGram expandHistoryNGram : expandHistory) {
-					if(unigram.getLast().equals(expandHistoryNGram.getLast())) {
-						expandHistory.remove(expandHistoryNGram);
-						toAdd = false;
-						break;
-					}
+	/**
+	 * Estimate the interpolated probabilities of every ngram of the order above a table's.
+	 * @param lower probabilities of the order below, or null to estimate the unigrams
+	 * @param executor runs the ranges of ngrams, or null to estimate on the calling thread
+	 * @param threads number of threads of the executor
+	 * @return probabilities of the ngrams of the next order
+	 */
+	private OrderProbabilities estimateOrder(final OrderProbabilities lower, ExecutorService executor, int threads) {
+		int n = lower == null ? 1 : lower.order + 1;
+		final OrderProbabilities table = new OrderProbabilities(n, orderToNGramCounts[n-1]);
+		runRanges(table.ngrams.size(), executor, threads, new Range() {
+			@Override
+			public void run(int from, int to) {
+				int [] ids = new int[table.order];
+				WordIdNGram ngram = new WordIdNGram(ids);
+				for(int j=from; j<to; j++) {
+					table.ngrams.get(j, ids);
+					table.probabilities[j] = calcInterpolatedProbability(ngram, lower);
 				}
-				if(toAdd) {
-					if(history.size() == 1) {
-						probToDistribute += recurseNGramProbability(unigram);
-					} else {
-						probToDistribute += recurseNGramProbability(history.backoff().add(unigram.getFirst()));
-					}
+			}
+		});
+		return table;
+	}
+
+
+	/**
+	 * Estimate the base-10 log-backoff weights of an order's ngrams.
+	 *
+	 * The backoff weight of a history is the probability mass left over by the words seen after the history,
+	 * divided by the mass that the lower-order distribution gives the words not seen after it.
+	 * Both masses are found from the seen words alone, as one minus the probabilities of the ngrams that extend the history
+	 * and one minus the probabilities of those ngrams' backoffs, in one pass over the order above.
+	 * The threads look the probabilities up; the calling thread subtracts them in the order above's order, so the sums do not depend on the number of threads.
+	 * @param current probabilities of the ngrams whose backoff weights are estimated
+	 * @param higher probabilities of the order above, or null if the ngrams are of the highest order
+	 * @param executor runs the ranges of ngrams, or null to estimate on the calling thread
+	 * @param threads number of threads of the executor
+	 * @return log-backoff weight of each ngram, at the ngram's index; see {@link #calcBackoff(BackoffEntrySink)}
+	 */
+	private double [] estimateBackoffs(final OrderProbabilities current, final OrderProbabilities higher, ExecutorService executor, int threads) {
+		double [] logBackoffs = new double[current.ngrams.size()];
+		if(higher == null) {
+			Arrays.fill(logBackoffs, Double.NaN);
+			return logBackoffs;
+		}
+
+		// Find the history and the lower-order probability of each ngram of the order above
+		final int [] historyIndexes = new int[higher.ngrams.size()];
+		final double [] lowerProbabilities = new double[historyIndexes.length];
+		runRanges(historyIndexes.length, executor, threads, new Range() {
+			@Override
+			public void run(int from, int to) {
+				int [] ids = new int[higher.order];
+				WordIdNGram ngram = new WordIdNGram(ids);
+				for(int j=from; j<to; j++) {
+					higher.ngrams.get(j, ids);
+					historyIndexes[j] = current.ngrams.indexOf(ngram.history());
+					lowerProbabilities[j] = lowerProbability(ngram.backoff(), current);
 				}
 			}
+		});
+
+		int [] seen = new int[logBackoffs.length];
+		double [] probLeftover = new double[logBackoffs.length];
+		double [] probToDistribute = new double[logBackoffs.length];
+		Arrays.fill(probLeftover, 1.0);
+		Arrays.fill(probToDistribute, 1.0);
+		for(int j=0; j<historyIndexes.length; j++) {
+			int k = historyIndexes[j];
+			if(k >= 0) {
+				seen[k]++;
+				probLeftover[k] -= higher.probabilities[j];
+				probToDistribute[k] -= lowerProbabilities[j];
+			}
+		}
 
-			if(probToDistribute == 0.0) {
-				ngpb.backoff = 0.0;
+		int vocabularySize = orderToNGramCounts[0].size();
+		for(int k=0; k<logBackoffs.length; k++) {
+			if(seen[k] == 0 || seen[k] >= vocabularySize || probToDistribute[k] <= 0.0) {
+				// Not a history, or every word is seen after the history so that nothing is left to distribute
+				logBackoffs[k] = Double.NEGATIVE_INFINITY;
 			} else {
-				ngpb.backoff = probLeftover/probToDistribute;
+				logBackoffs[k] = Math.log10(probLeftover[k]/probToDistribute[k]);
 			}
 		}
+		return logBackoffs;
+	}
+
+
+	/**
+	 * Perform Chen and Goodman's interpolation calculation of kneser-ney-mod, as {@link #recurseNGramProbability(int[], int, int)} does,
+	 * taking the lower-order probability from a table instead of recursing.
+	 * @param ngram ngram to estimate
+	 * @param lower probabilities of the order below the ngram's; null for unigrams
+	 * @return the estimated/smoothed ngram probability
+	 */
+	private double calcInterpolatedProbability(WordIdNGram ngram, OrderProbabilities lower) {
+		if(ngram.size() == 1) {
+			return calcNGramProbability(ngram, 0);  // the den is not used in this case
+		}
+
+		int h = histories.indexOf(ngram.history());
+		if(h >= 0) {
+			return calcNGramProbability(ngram, historyDen[h]) + calcGamma(ngram.size(), h)*lowerProbability(ngram.backoff(), lower);
+		} else {
+			return lowerProbability(ngram.backoff(), lower);
+		}
+	}
+
+
+	/**
+	 * Get the interpolated probability of an ngram from a table, or by recursion if the table does not hold it.
+	 * Counts taken from text hold every suffix of a counted ngram, so the table is only missed with counts that do not.
+	 * @param ngram ngram of the table's order
+	 * @param table probabilities of the ngrams of that order
+	 * @return the estimated/smoothed ngram probability
+	 */
+	private double lowerProbability(WordIdNGram ngram, OrderProbabilities table) {
+		int index = table.ngrams.indexOf(ngram);
+		if(index < 0) {
+			return recurseNGramProbability(ngram);
+		}
+		return table.probabilities[index];
+	}
+
+
+	/**
+	 * Estimates a range of ngrams.
+	 */
+	private interface Range {
+		/**
+		 * Estimate the ngrams in a range.
+		 * @param from index of the first ngram in the range
+		 * @param to index after the last ngram in the range
+		 */
+		void run(int from, int to);
+	}
+
+
+	/**
+	 * Run a range task over [0,count), split into ranges that an executor runs in parallel.
+	 * @param count number of ngrams
+	 * @param executor runs the ranges, or null to run the whole range on the calling thread
+	 * @param threads number of threads of the executor
+	 * @param range estimates each range
+	 */
+	private static void runRanges(int count, ExecutorService executor, int threads, final Range range) {
+		if(executor == null) {
+			range.run(0, count);
+			return;
+		}
 
-		// Ugh, crappy bookkeeping, some backoffs will still be NaN and should be zero
-		for(Map<AbstractNGram, NGramProbabilityBackoff> ngramToPB : lowerOrderToNGrams) {
-			for(Entry<AbstractNGram, NGramProbabilityBackoff> ngpb : ngramToPB.entrySet()) {
-				ngpb.getValue().probability = Math.log10(ngpb.getValue().probability);
-				if(Double.isNaN(ngpb.getValue().backoff)) {
-					ngpb.getValue().backoff = Double.NEGATIVE_INFINITY;
-				} else {
-					ngpb.getValue().backoff = Math.log10(ngpb.getValue().backoff);
+		// Several ranges per thread, as histories with many successors make some ngrams much slower to estimate than others
+		int rangeSize = Math.max(1, (count + 4*threads - 1) / (4*threads));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(int from=0; from<count; from+=rangeSize) {
+			final int start = from;
+			final int end = Math.min(from + rangeSize, count);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					range.run(start, end);
+					return null;
 				}
+			}));
+		}
+		for(Future<Void> future : futures) {
+			get(future);
+		}
+	}
+
+
+	/**
+	 * Wait for an estimating task, rethrowing its failure.
+	 * @param future task to wait for
+	 */
+	private static void get(Future<Void> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while estimating the backoff model", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
 			}
+			throw new IllegalStateException(e.getCause());
 		}
-		for(Entry<AbstractNGram, NGramProbability> ngp : highOrderNGrams.entrySet()) {
-			ngp.getValue().probability = Math.log10(ngp.getValue().probability);
+	}
+
+
+	/**
+	 * Get the number of ngrams of each order that {@link #calcBackoff(BackoffEntrySink)} adds.
+	 * @return the number of ngrams of each order, unigrams first
+	 */
+	public int [] orderCounts() {
+		int [] orderCounts = new int[order];
+		for(int i=0; i<order; i++) {
+			orderCounts[i] = orderToNGramCounts[i].size();
 		}
+		return orderCounts;
+	}
+
 
-		return new BackoffLanguageModel(10.0, highOrderNGrams, lowerOrderToNGrams);
+	/**
+	 * The interpolated probabilities of every ngram of one order, as estimated by {@link KneserNeyModFixModel2#calcBackoff(BackoffEntrySink, int)}.
+	 * The ngrams are indexed in the counter's iteration order, and their probabilities held in an array by index, so no value is boxed.
+	 */
+	private static class OrderProbabilities {
+		/** Order of the ngrams */
+		final int order;
+
+		/** The ngrams, indexed in the count table's iteration order and keyed as in the count table */
+		final NGramIndex ngrams;
+
+		/** Interpolated probability of each ngram, at the ngram's index */
+		final double [] probabilities;
+
+
+		/**
+		 * Constructor.
+		 * Indexes the ngrams; their probabilities are left to be filled in.
+		 * @param order order of the ngrams
+		 * @param counts counts of the ngrams of that order
+		 */
+		OrderProbabilities(int order, NGramCountTable counts) {
+			this.order = order;
+			ngrams = new NGramIndex(order, counts.packer().bitsPerWord(), counts.size());
+			int [] ids = new int[order];
+			WordIdNGram ngram = new WordIdNGram(ids);
+			for(NGramCountTable.Cursor c = counts.cursor(); c.next(); ) {
+				c.ids(ids, 0);
+				ngrams.add(ngram);
+			}
+			probabilities = new double[counts.size()];
+		}
 	}
 
 
@@ -0,0 +1,171 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm;
+
+import java.util.Arrays;
+
+
+/**
+ * The context a {@link StatefulLanguageModel} needs to score the next word: the ids of up to order-1 preceding words.
+ *
+ * Models may also cache values derived from the context in the state, like the backoff weights or history ids of the context's suffixes,
+ * so that extending many hypotheses from one state does not repeat lookups for the shared context.
+ * Since the cached values are only meaningful to the model that stored them, a state remembers that model, and models refuse to score from another model's state.
+ * Two states are equal when their context words are equal, so decoders can use states to recombine hypotheses.
+ *
+ * States are created by {@link StatefulLanguageModel#newState(int...)} and filled by {@link StatefulLanguageModel#scoreNext(LanguageModelState, int, LanguageModelState)},
+ * which may overwrite a state that the caller no longer needs.
+ *
+ * @author romanows
+ */
+public final class LanguageModelState {
+
+	/** Context word ids, oldest first, in [0,length); has room for one more word than the largest context so that models can append the scored word in place */
+	final int [] words;
+
+	/** Number of context words */
+	int length;
+
+	/** Weights of the context suffixes, for models that cache them; log-backoff weights for backoff models and interpolation weights for interpolated models; contextBackoffs[i] belongs to the suffix of i+1 words, and is zero if that suffix has no weight */
+	final double [] contextBackoffs;
+
+	/** Ids that a model assigns to the context suffixes as histories, for models that cache them; contextHistories[i] belongs to the suffix of i+1 words, and is -1 if that suffix is not a history */
+	final int [] contextHistories;
+
+	/** Model that filled in the context and cached values; null until a model fills the state */
+	StatefulLanguageModel model;
+
+
+	/**
+	 * Constructor.
+	 * Creates a state with an empty context.
+	 * @param order order of the model that will use this state
+	 */
+	LanguageModelState(int order) {
+		words = new int[order];
+		contextBackoffs = new double[Math.max(order-1, 0)];
+		contextHistories = new int[contextBackoffs.length];
+	}
+
+
+	/**
+	 * Get the number of context words.
+	 * @return the number of context words, at most the model order minus one
+	 */
+	public int length() {
+		return length;
+	}
+
+
+	/**
+	 * Get a context word id.
+	 * @param i index of the word, oldest first, in [0,{@link #length()})
+	 * @return the id of the context word
+	 */
+	public int getWord(int i) {
+		if(i < 0 || i >= length) {
+			throw new IndexOutOfBoundsException();
+		}
+		return words[i];
+	}
+
+
+	/**
+	 * Get the context word ids.
+	 * @return copy of the context word ids, oldest first
+	 */
+	public int [] toArray() {
+		return Arrays.copyOf(words, length);
+	}
+
+
+	/**
+	 * Make this state a copy of another state of a model of the same order.
+	 * @param other state to copy
+	 */
+	public void copyFrom(LanguageModelState other) {
+		if(other.words.length != words.length) {
+			throw new IllegalArgumentException("states belong to models of different orders");
+		}
+		System.arraycopy(other.words, 0, words, 0, other.length);
+		System.arraycopy(other.contextBackoffs, 0, contextBackoffs, 0, other.length);
+		System.arraycopy(other.contextHistories, 0, contextHistories, 0, other.length);
+		length = other.length;
+		model = other.model;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		for(int i=0; i<length; i++) {
+			hash = 31 * hash + words[i];
+		}
+		return hash;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof LanguageModelState)) {
+			return false;
+		}
+		LanguageModelState other = (LanguageModelState) obj;
+		if(length != other.length) {
+			return false;
+		}
+		for(int i=0; i<length; i++) {
+			if(words[i] != other.words[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "(LanguageModelState " + Arrays.toString(toArray()) + ")";
+	}
+}
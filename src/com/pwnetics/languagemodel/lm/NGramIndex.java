@@ -0,0 +1,205 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.lm;
+
+import java.util.Arrays;
+
+import com.pwnetics.languagemodel.ngram.NGramKeyPacker;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+
+
+/**
+ * Assigns dense ids to distinct ngrams, so that values kept per ngram can be held in primitive arrays indexed by id rather than in maps of boxed values.
+ *
+ * Ids are assigned in the order ngrams are first added, starting at 0.
+ * Each ngram is held only as its key packed by a {@link NGramKeyPacker}, in an array indexed by id, and an open-addressing table of ids finds the key of an ngram.
+ * Ngrams of any order up to the packer's can be held together; see {@link NGramKeyPacker}.
+ * Added ngrams are copied into the keys, so callers may reuse their arrays.
+ * Lookups may run concurrently once no more ngrams are added.
+ *
+ * @author romanows
+ */
+class NGramIndex {
+
+	/** Packs the ngrams into keys */
+	private final NGramKeyPacker packer;
+
+	/** Number of longs in each key */
+	private final int longsPerKey;
+
+	/** Packed key of each ngram, {@link #longsPerKey} longs per id */
+	private long [] keys;
+
+	/** Number of ngrams added */
+	private int size;
+
+	/** Id of the ngram hashed to each slot plus one, or 0 for an empty slot; the length is a power of two, at least twice {@link #size} */
+	private int [] slots;
+
+
+	/**
+	 * Constructor.
+	 * @param maxOrder order of the longest ngram that will be added
+	 * @param bitsPerWord bits used to store each word id; word ids too large for it can be looked up but not added
+	 * @param expectedSize number of ngrams expected, so that the table need not grow
+	 */
+	NGramIndex(int maxOrder, int bitsPerWord, int expectedSize) {
+		packer = new NGramKeyPacker(maxOrder, bitsPerWord);
+		longsPerKey = packer.longsPerKey();
+		keys = new long[Math.max(1, expectedSize) * longsPerKey];
+		slots = new int[Integer.highestOneBit(Math.max(1, expectedSize)) * 4];
+	}
+
+
+	/**
+	 * Get the number of ngrams added.
+	 * @return the number of ngrams added; one more than the largest id
+	 */
+	int size() {
+		return size;
+	}
+
+
+	/**
+	 * Get the word ids of an ngram by id.
+	 * @param id id of an added ngram
+	 * @param ids destination array, long enough for the packer's order
+	 * @return the order of the ngram; its word ids are at the start of the destination array
+	 */
+	int get(int id, int [] ids) {
+		packer.unpack(keys, id * longsPerKey, ids, 0);
+		int length = 0;
+		while(length < packer.order() && ids[length] >= 0) {
+			length++;
+		}
+		return length;
+	}
+
+
+	/**
+	 * Find an ngram.
+	 * @param ngram ngram to find; need not be one that was added
+	 * @return id of the ngram, or -1 if it was not added
+	 */
+	int indexOf(WordIdNGram ngram) {
+		if(!packer.canPack(ngram)) {
+			return -1;
+		}
+		int slot = (int) packer.hash(ngram) & (slots.length - 1);
+		while(slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if(packer.matches(keys, id * longsPerKey, ngram)) {
+				return id;
+			}
+			slot = (slot + 1) & (slots.length - 1);
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Find an ngram held in an array.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length number of words in the ngram
+	 * @return id of the ngram, or -1 if it was not added
+	 */
+	int indexOf(int [] ids, int start, int length) {
+		if(!packer.canPack(ids, start, length)) {
+			return -1;
+		}
+		int slot = (int) packer.hash(ids, start, length) & (slots.length - 1);
+		while(slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if(packer.matches(keys, id * longsPerKey, ids, start, length)) {
+				return id;
+			}
+			slot = (slot + 1) & (slots.length - 1);
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Add an ngram if it is not already held.
+	 * @param ngram ngram to add; its word ids are copied
+	 * @return id of the ngram
+	 * @throws IllegalArgumentException if the ngram is too long or a word id is out of range for the packer
+	 */
+	int add(WordIdNGram ngram) {
+		if(!packer.canPack(ngram)) {
+			throw new IllegalArgumentException("cannot index ngram " + ngram);
+		}
+		int id = indexOf(ngram);
+		if(id >= 0) {
+			return id;
+		}
+
+		if((size + 1) * longsPerKey > keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+		}
+		for(int j=0; j<longsPerKey; j++) {
+			keys[size * longsPerKey + j] = packer.pack(ngram, j);
+		}
+		if(size * 2 >= slots.length) {
+			rehash(slots.length * 2);
+		} else {
+			place(size, slots);
+		}
+		return size++;
+	}
+
+
+	/**
+	 * Rebuild the table with a new number of slots.
+	 * @param slotCount new number of slots, a power of two
+	 */
+	private void rehash(int slotCount) {
+		int [] newSlots = new int[slotCount];
+		for(int id=0; id<=size; id++) {
+			place(id, newSlots);
+		}
+		slots = newSlots;
+	}
+
+
+	/**
+	 * Put an ngram's id in the first empty slot of its probe sequence.
+	 * @param id id of the ngram
+	 * @param table slots to place the id in
+	 */
+	private void place(int id, int [] table) {
+		int slot = (int) packer.hash(keys, id * longsPerKey) & (table.length - 1);
+		while(table[slot] != 0) {
+			slot = (slot + 1) & (table.length - 1);
+		}
+		table[slot] = id + 1;
+	}
+}
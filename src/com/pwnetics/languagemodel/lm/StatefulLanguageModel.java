@@ -0,0 +1,104 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm;
+
+import com.pwnetics.languagemodel.Vocabulary;
+
+
+/**
+ * A language model that scores a word sequence one word at a time, carrying the context between calls in a {@link LanguageModelState}.
+ *
+ * This suits decoders that extend many hypotheses word by word: a hypothesis keeps its state, and scoring its next word neither rebuilds ngrams nor repeats lookups for the context.
+ * Scoring a sentence "&lt;s&gt; a b &lt;/s&gt;" looks like:
+ * <pre>
+ * Vocabulary v = lm.getVocabulary();
+ * LanguageModelState state = lm.newState(v.getId("&lt;s&gt;"));
+ * LanguageModelState next = lm.newState();
+ * double logProb = 0.0;
+ * for(String word : new String[] {"a", "b", "&lt;/s&gt;"}) {
+ *     logProb += lm.scoreNext(state, v.getId(word), next);
+ *     LanguageModelState t = state; state = next; next = t;
+ * }
+ * </pre>
+ *
+ * @author romanows
+ */
+public interface StatefulLanguageModel {
+
+	/**
+	 * Get the maximum ngram size that the model contains.
+	 * @return the maximum ngram size
+	 */
+	int order();
+
+
+	/**
+	 * Get the vocabulary that assigns the word ids used by this model.
+	 * @return the vocabulary that assigns the word ids used by this model
+	 */
+	Vocabulary getVocabulary();
+
+
+	/**
+	 * Whether a word is out of the model's vocabulary, that is, whether its unigram log-probability is infinite.
+	 * Agrees with {@link AbstractNGramLanguageModel#getOOV(java.util.List)}.
+	 * @param wordId word id; {@link Vocabulary#UNKNOWN_ID} is always OOV
+	 * @return true if the word is OOV
+	 */
+	boolean isOOV(int wordId);
+
+
+	/**
+	 * Create a state holding a context.
+	 * @param contextIds ids of the context words, oldest first; only the last order-1 are kept; none for an empty context
+	 * @return new state
+	 */
+	LanguageModelState newState(int... contextIds);
+
+
+	/**
+	 * Overwrite a state with a context, without allocating.
+	 * @param state state created by this model
+	 * @param contextIds array holding the ids of the context words, oldest first
+	 * @param start index of the first context word
+	 * @param length number of context words; only the last order-1 are kept
+	 */
+	void setContext(LanguageModelState state, int [] contextIds, int start, int length);
+
+
+	/**
+	 * Score a word given the context held in a state, and store the context for the word after it in another state.
+	 * @param state context of the word, filled in by this model; not modified unless it is also next
+	 * @param wordId id of the word to score; ids that are not in this model's vocabulary, like {@link Vocabulary#UNKNOWN_ID}, are treated as OOV words
+	 * @param next overwritten with the context following the word; may be the same object as state
+	 * @return log-probability of the word given the context
+	 * @throws IllegalArgumentException if the state was not filled in by this model, as its cached values would not be this model's
+	 */
+	double scoreNext(LanguageModelState state, int wordId, LanguageModelState next);
+}
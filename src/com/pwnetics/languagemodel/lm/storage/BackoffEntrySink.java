@@ -0,0 +1,49 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+package com.pwnetics.languagemodel.lm.storage;
+
+
+/**
+ * Receives ngram log-probabilities and log-backoff weights, one ngram at a time.
+ *
+ * A {@link BackoffStorageBuilder} is a sink that builds a {@link BackoffStorage} from the ngrams;
+ * other sinks, like a writer of ARPA files, pass the ngrams on without building anything.
+ *
+ * @author romanows
+ */
+public interface BackoffEntrySink {
+
+	/**
+	 * Add an ngram.
+	 * The ids array is not retained, so callers may reuse it.
+	 * @param ids word ids of the ngram; the length of the array is the ngram order
+	 * @param logProbability log-probability of the ngram
+	 * @param logBackoff log-backoff weight of the ngram; {@link Double#NEGATIVE_INFINITY} if the ngram has no backoff weight; ignored for highest-order ngrams
+	 */
+	void add(int [] ids, double logProbability, double logBackoff);
+}
@@ -0,0 +1,93 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+
+/**
+ * Holds the ngram log-probabilities and log-backoff weights of a {@link com.pwnetics.languagemodel.lm.BackoffLanguageModel}.
+ *
+ * Ngrams are given as a range of an array of word ids, so implementations can answer queries without creating ngram objects.
+ * Absence is reported as {@link #NOT_HELD} rather than null, so that lookups do not need to box their results.
+ *
+ * Implementations are read-only once built, and so are safe for concurrent readers.
+ *
+ * @author romanows
+ */
+public interface BackoffStorage {
+
+	/**
+	 * Returned by lookups of ngrams that are not held.
+	 * No log-probability or log-weight is positive infinity, and unlike {@link Double#NaN} it does not collide with NaN values that a model may hold.
+	 */
+	double NOT_HELD = Double.POSITIVE_INFINITY;
+
+
+	/**
+	 * Get the highest ngram order held.
+	 * @return the highest ngram order held
+	 */
+	int order();
+
+
+	/**
+	 * Get the number of ngrams of a given order.
+	 * @param n ngram order, in [1,{@link #order()}]
+	 * @return the number of ngrams of order n
+	 */
+	int size(int n);
+
+
+	/**
+	 * Get the log-probability of an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram, in [1,{@link #order()}]
+	 * @return the log-probability of the ngram, or {@link #NOT_HELD} if the ngram is not held
+	 */
+	double probability(int [] ids, int start, int length);
+
+
+	/**
+	 * Get the log-backoff weight of an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram, in [1,{@link #order()})
+	 * @return the log-backoff weight of the ngram, {@link Double#NEGATIVE_INFINITY} if the ngram is held without a backoff weight, or {@link #NOT_HELD} if the ngram is not held
+	 */
+	double backoff(int [] ids, int start, int length);
+
+
+	/**
+	 * Add every held ngram to a sink, like a {@link BackoffStorageBuilder}: all unigrams first, then all bigrams, and so on up to {@link #order()}.
+	 * Highest-order ngrams are added with a {@link Double#NaN} log-backoff weight.
+	 * Does not call {@link BackoffStorageBuilder#build()}.
+	 * @param sink receives the ngrams
+	 */
+	void copyTo(BackoffEntrySink sink);
+}
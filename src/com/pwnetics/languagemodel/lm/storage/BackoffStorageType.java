@@ -0,0 +1,143 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+
+/**
+ * The available {@link BackoffStorage} implementations.
+ * @author romanows
+ */
+public enum BackoffStorageType {
+
+	/** {@link HashMapBackoffStorage}; objects for every ngram, exact double values */
+	HASH_MAP {
+		@Override
+		public BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts) {
+			return new HashMapBackoffStorage.Builder(orderCounts);
+		}
+
+
+		@Override
+		public long estimateBytes(int vocabularySize, int [] orderCounts) {
+			return HashMapBackoffStorage.estimateBytes(orderCounts);
+		}
+	},
+
+	/** {@link ProbingBackoffStorage}; primitive open-addressing tables, float values */
+	PROBING_HASH {
+		@Override
+		public BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts) {
+			return new ProbingBackoffStorage.Builder(vocabularySize, orderCounts);
+		}
+
+
+		@Override
+		public long estimateBytes(int vocabularySize, int [] orderCounts) {
+			return ProbingBackoffStorage.estimateBytes(vocabularySize, orderCounts);
+		}
+	},
+
+	/** {@link TrieBackoffStorage}; sorted primitive arrays laid out as a trie, float values */
+	SORTED_TRIE {
+		@Override
+		public BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts) {
+			return new TrieBackoffStorage.Builder(vocabularySize, orderCounts);
+		}
+
+
+		@Override
+		public long estimateBytes(int vocabularySize, int [] orderCounts) {
+			return TrieBackoffStorage.estimateBytes(vocabularySize, orderCounts, ValueColumn.FLOAT_BITS);
+		}
+	},
+
+	/** {@link TrieBackoffStorage} with values quantized to 8-bit codes into per-order codebooks */
+	QUANTIZED_TRIE_8 {
+		@Override
+		public BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts) {
+			return new TrieBackoffStorage.Builder(vocabularySize, orderCounts, 8);
+		}
+
+
+		@Override
+		public long estimateBytes(int vocabularySize, int [] orderCounts) {
+			return TrieBackoffStorage.estimateBytes(vocabularySize, orderCounts, 8);
+		}
+	},
+
+	/** {@link TrieBackoffStorage} with values quantized to 16-bit codes into per-order codebooks */
+	QUANTIZED_TRIE_16 {
+		@Override
+		public BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts) {
+			return new TrieBackoffStorage.Builder(vocabularySize, orderCounts, 16);
+		}
+
+
+		@Override
+		public long estimateBytes(int vocabularySize, int [] orderCounts) {
+			return TrieBackoffStorage.estimateBytes(vocabularySize, orderCounts, 16);
+		}
+	};
+
+
+	/**
+	 * Create a builder for this type of storage.
+	 * @param vocabularySize number of words; word ids added to the builder must be in [0,vocabularySize)
+	 * @param orderCounts number of ngrams of each order; orderCounts[0] is the number of unigrams, and the array length is the model order
+	 * @return new builder
+	 */
+	public abstract BackoffStorageBuilder newBuilder(int vocabularySize, int [] orderCounts);
+
+
+	/**
+	 * Roughly estimate the peak heap memory used to build and hold this type of storage.
+	 * Estimates assume a 64-bit JVM with compressed references, and are meant for refusing models that will obviously not fit before loading them.
+	 * @param vocabularySize number of words
+	 * @param orderCounts number of ngrams of each order; orderCounts[0] is the number of unigrams, and the array length is the model order
+	 * @return estimated number of bytes
+	 */
+	public abstract long estimateBytes(int vocabularySize, int [] orderCounts);
+
+
+	/**
+	 * Copy the ngrams of some storage into a new storage of this type.
+	 * @param source storage to copy
+	 * @param vocabularySize number of words; all word ids held by the source must be in [0,vocabularySize)
+	 * @return new storage holding the same ngrams
+	 */
+	public BackoffStorage copy(BackoffStorage source, int vocabularySize) {
+		int [] orderCounts = new int[source.order()];
+		for(int n=1; n<=orderCounts.length; n++) {
+			orderCounts[n-1] = source.size(n);
+		}
+		BackoffStorageBuilder builder = newBuilder(vocabularySize, orderCounts);
+		source.copyTo(builder);
+		return builder.build();
+	}
+}
@@ -0,0 +1,279 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.pwnetics.languagemodel.lm.NGramProbability;
+import com.pwnetics.languagemodel.lm.NGramProbabilityBackoff;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+
+
+/**
+ * Stores ngrams in HashMaps from {@link WordIdNGram} to {@link NGramProbability} or {@link NGramProbabilityBackoff} objects.
+ *
+ * This is the simplest storage and keeps exact double values, but each ngram costs a map entry, a key object, and a value object.
+ * Lookups reuse a per-thread {@link WordIdNGram} as the probe key, so they do not allocate.
+ * See {@link ProbingBackoffStorage} and {@link TrieBackoffStorage} for more compact alternatives.
+ *
+ * @author romanows
+ */
+public class HashMapBackoffStorage implements BackoffStorage {
+
+	/** Highest-order ngrams and their probability estimates */
+	private final Map<WordIdNGram, NGramProbability> highOrderNGrams;
+
+	/** lower-order ngrams and their associated probability and backoff weights or null if model order is 1; e.g., lowerOrderToNGrams.get(0) contains the unigram information in a trigram model. */
+	private final List<Map<WordIdNGram, NGramProbabilityBackoff>> lowerOrderToNGrams;
+
+	/** Highest ngram order held */
+	private final int order;
+
+	/** Per-thread key reused for lookups, so that queries do not allocate */
+	private final ThreadLocal<WordIdNGram> probes = new ThreadLocal<WordIdNGram>() {
+		@Override
+		protected WordIdNGram initialValue() {
+			return new WordIdNGram(new int[1]);
+		}
+	};
+
+
+	/**
+	 * Constructor.
+	 * @param highOrderNGrams highest-order ngrams and their probability estimates
+	 * @param lowerOrderToNGrams lower-order ngrams and their associated probability and backoff weights or null if model order is 1 and there is no low order ngram information; e.g., lowerOrderToNGrams.get(0) contains the unigram information in a trigram model.
+	 */
+	public HashMapBackoffStorage(Map<WordIdNGram, NGramProbability> highOrderNGrams, List<Map<WordIdNGram, NGramProbabilityBackoff>> lowerOrderToNGrams) {
+		this.highOrderNGrams = highOrderNGrams;
+		if(lowerOrderToNGrams == null || lowerOrderToNGrams.isEmpty()) {
+			order = 1;
+			this.lowerOrderToNGrams = null;
+		} else {
+			order = lowerOrderToNGrams.size() + 1;
+			this.lowerOrderToNGrams = lowerOrderToNGrams;
+		}
+	}
+
+
+	/**
+	 * Constructor.
+	 * Creates empty maps, to be filled in through {@link #getHighOrderNGrams()} and {@link #getLowerOrderToNGrams()}.
+	 * @param order highest ngram order
+	 */
+	public HashMapBackoffStorage(int order) {
+		this(new int[order]);
+	}
+
+
+	/**
+	 * Constructor.
+	 * Creates empty maps sized for the given number of ngrams of each order.
+	 * @param orderCounts number of ngrams of each order; the array length is the model order
+	 */
+	private HashMapBackoffStorage(int [] orderCounts) {
+		if(orderCounts.length < 1) {
+			throw new IllegalArgumentException();
+		}
+		order = orderCounts.length;
+		highOrderNGrams = new HashMap<WordIdNGram, NGramProbability>(mapCapacity(orderCounts[order-1]));
+		if(order > 1) {
+			lowerOrderToNGrams = new ArrayList<Map<WordIdNGram, NGramProbabilityBackoff>>();
+			for(int i=1; i<order; i++) {
+				lowerOrderToNGrams.add(new HashMap<WordIdNGram, NGramProbabilityBackoff>(mapCapacity(orderCounts[i-1])));
+			}
+		} else {
+			lowerOrderToNGrams = null;
+		}
+	}
+
+
+	/**
+	 * Get the initial capacity of a HashMap that holds a number of entries without rehashing.
+	 * @param count number of entries
+	 * @return initial capacity
+	 */
+	private static int mapCapacity(int count) {
+		return (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(count / 0.75) + 1);
+	}
+
+
+	/**
+	 * Roughly estimate the heap memory used by a storage, assuming a 64-bit JVM with compressed references.
+	 * Each ngram costs a map entry, a table slot, a {@link WordIdNGram} and its array, and a value object.
+	 * @param orderCounts number of ngrams of each order; the array length is the model order
+	 * @return estimated number of bytes
+	 */
+	static long estimateBytes(int [] orderCounts) {
+		long bytes = 0;
+		for(int i=0; i<orderCounts.length; i++) {
+			int n = i+1;
+			long table = Integer.highestOneBit(mapCapacity(orderCounts[i]) - 1) * 2L * 4;
+			long entry = 32 + 24 + ((16 + 4L*n + 7) / 8 * 8) + (n < orderCounts.length ? 32 : 24);
+			bytes += table + orderCounts[i] * entry;
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Get the highest-order ngram map.
+	 * @return highest-order ngrams and their probability estimates
+	 */
+	public Map<WordIdNGram, NGramProbability> getHighOrderNGrams() {
+		return highOrderNGrams;
+	}
+
+
+	/**
+	 * Get the lower-order ngram maps.
+	 * @return lower-order ngrams and their associated probability and backoff weights or null if model order is 1
+	 */
+	public List<Map<WordIdNGram, NGramProbabilityBackoff>> getLowerOrderToNGrams() {
+		return lowerOrderToNGrams;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#order()
+	 */
+	@Override
+	public int order() {
+		return order;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#size(int)
+	 */
+	@Override
+	public int size(int n) {
+		if(n == order) {
+			return highOrderNGrams.size();
+		}
+		return lowerOrderToNGrams.get(n-1).size();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#probability(int[], int, int)
+	 */
+	@Override
+	public double probability(int [] ids, int start, int length) {
+		WordIdNGram ngram = probes.get().reset(ids, start, length);
+		NGramProbability p;
+		if(length == order) {
+			p = highOrderNGrams.get(ngram);
+		} else {
+			p = lowerOrderToNGrams.get(length-1).get(ngram);
+		}
+		return p == null ? NOT_HELD : p.getProbability();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#backoff(int[], int, int)
+	 */
+	@Override
+	public double backoff(int [] ids, int start, int length) {
+		NGramProbabilityBackoff pb = lowerOrderToNGrams.get(length-1).get(probes.get().reset(ids, start, length));
+		return pb == null ? NOT_HELD : pb.getBackoff();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#copyTo(com.pwnetics.languagemodel.lm.storage.BackoffEntrySink)
+	 */
+	@Override
+	public void copyTo(BackoffEntrySink sink) {
+		if(lowerOrderToNGrams != null) {
+			for(Map<WordIdNGram, NGramProbabilityBackoff> ngramToPB : lowerOrderToNGrams) {
+				for(Entry<WordIdNGram, NGramProbabilityBackoff> e : ngramToPB.entrySet()) {
+					sink.add(e.getKey().toArray(), e.getValue().getProbability(), e.getValue().getBackoff());
+				}
+			}
+		}
+		for(Entry<WordIdNGram, NGramProbability> e : highOrderNGrams.entrySet()) {
+			sink.add(e.getKey().toArray(), e.getValue().getProbability(), Double.NaN);
+		}
+	}
+
+
+	/**
+	 * Builds a {@link HashMapBackoffStorage}.
+	 * @author romanows
+	 */
+	public static class Builder implements BackoffStorageBuilder {
+
+		/** Storage being filled */
+		private final HashMapBackoffStorage storage;
+
+
+		/**
+		 * Constructor.
+		 * @param orderCounts number of ngrams of each order; the array length is the model order
+		 */
+		public Builder(int [] orderCounts) {
+			storage = new HashMapBackoffStorage(orderCounts);
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#add(int[], double, double)
+		 */
+		@Override
+		public void add(int [] ids, double logProbability, double logBackoff) {
+			WordIdNGram ngram = new WordIdNGram(ids.clone());
+			if(ids.length == storage.order) {
+				storage.highOrderNGrams.put(ngram, new NGramProbability(logProbability));
+			} else {
+				storage.lowerOrderToNGrams.get(ids.length-1).put(ngram, new NGramProbabilityBackoff(logProbability, logBackoff));
+			}
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#build()
+		 */
+		@Override
+		public BackoffStorage build() {
+			return storage;
+		}
+	}
+}
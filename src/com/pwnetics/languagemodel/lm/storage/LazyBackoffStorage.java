@@ -0,0 +1,151 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+
+/**
+ * Holds the lower orders of a model while its higher orders are still loading, and answers as the model truncated to the orders held.
+ *
+ * The storage claims the order of the whole model from the start, so that a {@link com.pwnetics.languagemodel.lm.BackoffLanguageModel} and its states are sized for it.
+ * Ngrams above the loaded order are not held, and neither are the backoff weights of the loaded order's ngrams, which only apply to the ngrams above them;
+ * a backoff model therefore backs off through the loaded orders exactly as the truncated model would.
+ * Once the whole model has loaded, it is swapped in with {@link #replace(BackoffStorage)}, and lookups see it from then on; the storage it replaces is no longer referred to.
+ *
+ * Each lookup reads the current storage once, so lookups are consistent while a replacement happens.
+ * A {@link com.pwnetics.languagemodel.lm.LanguageModelState} caches the backoff weights of its context when it is created, so a state created before the replacement
+ * scores the next word with the truncated model's backoff weights.
+ *
+ * @author romanows
+ */
+public class LazyBackoffStorage implements BackoffStorage {
+
+	/** Order of the whole model */
+	private final int order;
+
+	/** Storage of the orders loaded so far */
+	private volatile BackoffStorage loaded;
+
+
+	/**
+	 * Constructor.
+	 * @param order order of the whole model
+	 * @param loaded storage of the orders loaded so far, sharing its word ids with the whole model
+	 */
+	public LazyBackoffStorage(int order, BackoffStorage loaded) {
+		if(loaded.order() < 1 || loaded.order() > order) {
+			throw new IllegalArgumentException("loaded storage order must be in [1," + order + "]");
+		}
+		this.order = order;
+		this.loaded = loaded;
+	}
+
+
+	/**
+	 * Swap in a storage holding more of the model's orders.
+	 * @param storage storage sharing its word ids with the one it replaces, holding at least as many orders
+	 */
+	public void replace(BackoffStorage storage) {
+		if(storage.order() < loaded.order() || storage.order() > order) {
+			throw new IllegalArgumentException("replacement storage order must be in [" + loaded.order() + "," + order + "]");
+		}
+		loaded = storage;
+	}
+
+
+	/**
+	 * Get the storage of the orders loaded so far.
+	 * @return storage of the orders loaded so far, which the storage swapped in by {@link #replace(BackoffStorage)} may be built from
+	 */
+	public BackoffStorage getLoaded() {
+		return loaded;
+	}
+
+
+	/**
+	 * Get the highest order loaded so far.
+	 * @return the highest order loaded so far
+	 */
+	public int loadedOrder() {
+		return loaded.order();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#order()
+	 */
+	@Override
+	public int order() {
+		return order;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#size(int)
+	 */
+	@Override
+	public int size(int n) {
+		BackoffStorage storage = loaded;
+		return n > storage.order() ? 0 : storage.size(n);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#probability(int[], int, int)
+	 */
+	@Override
+	public double probability(int [] ids, int start, int length) {
+		BackoffStorage storage = loaded;
+		return length > storage.order() ? NOT_HELD : storage.probability(ids, start, length);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#backoff(int[], int, int)
+	 */
+	@Override
+	public double backoff(int [] ids, int start, int length) {
+		BackoffStorage storage = loaded;
+		return length >= storage.order() ? NOT_HELD : storage.backoff(ids, start, length);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#copyTo(com.pwnetics.languagemodel.lm.storage.BackoffEntrySink)
+	 */
+	@Override
+	public void copyTo(BackoffEntrySink sink) {
+		loaded.copyTo(sink);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+import com.pwnetics.languagemodel.ngram.NGramKeyPacker;
+
+
+/**
+ * Stores each ngram order in parallel primitive arrays: packed word-id keys, float log-probabilities, and float log-backoff weights.
+ * Keys are placed by open addressing with linear probing, so there are no per-ngram objects and a lookup usually touches a single cache line of each array.
+ *
+ * A trigram with a vocabulary of under a million words costs 16 bytes per slot (one long key and two floats), at a load factor between 3/8 and 3/4.
+ * The equivalent {@link HashMapBackoffStorage} entry costs over 100 bytes.
+ *
+ * Values are stored as floats, which hold about 7 significant digits, enough for the values in ARPA files.
+ * Log-probabilities computed from this storage differ from those of {@link HashMapBackoffStorage} by float rounding.
+ *
+ * @author romanows
+ */
+public class ProbingBackoffStorage implements BackoffStorage {
+
+	/** Tables are sized so that they are at most this full */
+	private static final double MAX_LOAD_FACTOR = 0.75;
+
+	/** Largest table, in longs, that can be allocated */
+	private static final long MAX_TABLE_LONGS = 1L << 30;
+
+	/** Packs the word ids of each order into keys */
+	private final NGramKeyPacker [] packers;
+
+	/** Packed keys of each order; a key whose first long is zero marks an empty slot */
+	private final long [][] keys;
+
+	/** Log-probabilities of each order, parallel to the slots of {@link #keys} */
+	private final float [][] probabilities;
+
+	/** Log-backoff weights of each order, parallel to the slots of {@link #keys}; null for the highest order */
+	private final float [][] backoffs;
+
+	/** Each order's table capacity minus one; capacities are powers of two */
+	private final int [] masks;
+
+	/** Number of ngrams of each order */
+	private final int [] sizes;
+
+	/** Number of ngrams of each order that the tables were sized for */
+	private final int [] declaredSizes;
+
+
+	/**
+	 * Constructor.
+	 * Allocates empty tables; filled by the {@link Builder}.
+	 * @param vocabularySize number of words; word ids are in [0,vocabularySize)
+	 * @param orderCounts number of ngrams of each order; the array length is the model order
+	 */
+	private ProbingBackoffStorage(int vocabularySize, int [] orderCounts) {
+		int order = orderCounts.length;
+		if(order < 1) {
+			throw new IllegalArgumentException();
+		}
+
+		int bitsPerWord = NGramKeyPacker.bitsPerWord(vocabularySize);
+		packers = new NGramKeyPacker[order];
+		keys = new long[order][];
+		probabilities = new float[order][];
+		backoffs = new float[order][];
+		masks = new int[order];
+		sizes = new int[order];
+		declaredSizes = orderCounts.clone();
+		for(int i=0; i<order; i++) {
+			packers[i] = new NGramKeyPacker(i+1, bitsPerWord);
+			int capacity = capacity(orderCounts[i]);
+			if((long) capacity * packers[i].longsPerKey() > MAX_TABLE_LONGS) {
+				throw new IllegalArgumentException("too many " + (i+1) + "-grams for a probing table: " + orderCounts[i]);
+			}
+			keys[i] = new long[capacity * packers[i].longsPerKey()];
+			probabilities[i] = new float[capacity];
+			if(i < order-1) {
+				backoffs[i] = new float[capacity];
+			}
+			masks[i] = capacity - 1;
+		}
+	}
+
+
+	/**
+	 * Estimate the heap memory used by a storage; the tables are allocated up front, so this is nearly exact.
+	 * @param vocabularySize number of words
+	 * @param orderCounts number of ngrams of each order; the array length is the model order
+	 * @return estimated number of bytes
+	 */
+	static long estimateBytes(int vocabularySize, int [] orderCounts) {
+		int bitsPerWord = NGramKeyPacker.bitsPerWord(vocabularySize);
+		long bytes = 0;
+		for(int i=0; i<orderCounts.length; i++) {
+			long capacity = capacity(orderCounts[i]);
+			bytes += capacity * (8L * new NGramKeyPacker(i+1, bitsPerWord).longsPerKey() + 4 + (i < orderCounts.length-1 ? 4 : 0));
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Get the table capacity for a number of ngrams.
+	 * @param count number of ngrams
+	 * @return smallest power of two that holds the ngrams within {@link #MAX_LOAD_FACTOR}
+	 */
+	static int capacity(int count) {
+		long minCapacity = (long) Math.ceil(count / MAX_LOAD_FACTOR) + 1;
+		long capacity = 2;
+		while(capacity < minCapacity) {
+			capacity <<= 1;
+		}
+		if(capacity > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many ngrams for a probing table: " + count);
+		}
+		return (int) capacity;
+	}
+
+
+	/**
+	 * Find the slot holding an ngram.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram
+	 * @return slot index, or -1 if the ngram is not held
+	 */
+	private int find(int [] ids, int start, int length) {
+		NGramKeyPacker packer = packers[length-1];
+		if(!packer.canPack(ids, start)) {
+			return -1;
+		}
+		long [] table = keys[length-1];
+		int longsPerKey = packer.longsPerKey();
+		int mask = masks[length-1];
+		int slot = (int) packer.hash(ids, start) & mask;
+		while(table[slot * longsPerKey] != 0) {
+			if(packer.matches(table, slot * longsPerKey, ids, start)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Find the slot holding an ngram, claiming an empty slot for it if it is not already held.
+	 * @param ids word ids of the ngram; the length of the array is the ngram order
+	 * @return slot index
+	 */
+	private int insert(int [] ids) {
+		int n = ids.length;
+		NGramKeyPacker packer = packers[n-1];
+		if(!packer.canPack(ids, 0)) {
+			throw new IllegalArgumentException("word id outside of the declared vocabulary size");
+		}
+		long [] table = keys[n-1];
+		int longsPerKey = packer.longsPerKey();
+		int mask = masks[n-1];
+		int slot = (int) packer.hash(ids, 0) & mask;
+		while(table[slot * longsPerKey] != 0) {
+			if(packer.matches(table, slot * longsPerKey, ids, 0)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if(sizes[n-1] >= declaredSizes[n-1]) {
+			throw new IllegalArgumentException("more " + n + "-grams than declared");
+		}
+
+		// Always leave at least one empty slot so that searches terminate; tables sized by capacity() hold the declared count well within this
+		if(sizes[n-1] + 1 >= mask) {
+			throw new IllegalStateException(n + "-gram table is full");
+		}
+		packer.pack(ids, 0, table, slot * longsPerKey);
+		sizes[n-1]++;
+		return slot;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#order()
+	 */
+	@Override
+	public int order() {
+		return packers.length;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#size(int)
+	 */
+	@Override
+	public int size(int n) {
+		return sizes[n-1];
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#probability(int[], int, int)
+	 */
+	@Override
+	public double probability(int [] ids, int start, int length) {
+		int slot = find(ids, start, length);
+		return slot < 0 ? NOT_HELD : probabilities[length-1][slot];
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#backoff(int[], int, int)
+	 */
+	@Override
+	public double backoff(int [] ids, int start, int length) {
+		int slot = find(ids, start, length);
+		return slot < 0 ? NOT_HELD : backoffs[length-1][slot];
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#copyTo(com.pwnetics.languagemodel.lm.storage.BackoffEntrySink)
+	 */
+	@Override
+	public void copyTo(BackoffEntrySink sink) {
+		int order = order();
+		for(int i=0; i<order; i++) {
+			NGramKeyPacker packer = packers[i];
+			int longsPerKey = packer.longsPerKey();
+			long [] table = keys[i];
+			int [] ids = new int[i+1];
+			for(int slot=0; slot<=masks[i]; slot++) {
+				if(table[slot * longsPerKey] != 0) {
+					packer.unpack(table, slot * longsPerKey, ids, 0);
+					sink.add(ids, probabilities[i][slot], i < order-1 ? backoffs[i][slot] : Double.NaN);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Builds a {@link ProbingBackoffStorage}.
+	 * @author romanows
+	 */
+	public static class Builder implements BackoffStorageBuilder {
+
+		/** Storage being filled */
+		private final ProbingBackoffStorage storage;
+
+
+		/**
+		 * Constructor.
+		 * @param vocabularySize number of words; word ids added to the builder must be in [0,vocabularySize)
+		 * @param orderCounts number of ngrams of each order; the array length is the model order
+		 */
+		public Builder(int vocabularySize, int [] orderCounts) {
+			storage = new ProbingBackoffStorage(vocabularySize, orderCounts);
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#add(int[], double, double)
+		 */
+		@Override
+		public void add(int [] ids, double logProbability, double logBackoff) {
+			int slot = storage.insert(ids);
+			storage.probabilities[ids.length-1][slot] = (float) logProbability;
+			if(ids.length < storage.order()) {
+				storage.backoffs[ids.length-1][slot] = (float) logBackoff;
+			}
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#build()
+		 */
+		@Override
+		public BackoffStorage build() {
+			return storage;
+		}
+	}
+}
@@ -0,0 +1,634 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+
+/**
+ * Stores ngrams as a trie laid out in sorted primitive arrays, in the style of SRILM and KenLM.
+ *
+ * Unigrams are indexed directly by word id.
+ * Each higher order is an array of the last word ids of its ngrams, grouped by the (n-1)-gram prefix and sorted by word id within each group.
+ * Every lower-order ngram holds the offset of its first child in the next order's arrays, so its children are the range between its offset and the next ngram's offset.
+ * Looking up an ngram is a walk from its first word, binary searching each child range in turn, with no per-ngram objects.
+ *
+ * An ngram costs 16 bytes (word id, child offset, and float log-probability and log-backoff weight), or 8 bytes at the highest order.
+ * Values are stored as floats, as in {@link ProbingBackoffStorage}, or quantized to 8- or 16-bit codes into per-order codebooks of log-probabilities and of log-backoff weights.
+ * With 8-bit codes an ngram costs 10 bytes, or 5 bytes at the highest order.
+ *
+ * Every ngram's (n-1)-gram prefix must also be held, as it is in models estimated from counts.
+ * A pruned model can hold an ngram whose prefix was pruned away, as SRILM's pruning may leave it; the {@link Builder} rejects such a model rather than inventing the missing prefixes,
+ * so it must be stored in a {@link HashMapBackoffStorage} or a {@link ProbingBackoffStorage}.
+ *
+ * The arrays are held in buffers, so that a trie can live on the heap, as built by the {@link Builder}, or in a memory-mapped file written by {@link #write(WritableByteChannel)} and opened by {@link #map(FileChannel, long)}.
+ * The file layout is little-endian 4-byte values:
+ * <pre>
+ * order
+ * number of unigram slots, which is the vocabulary size
+ * number of ngrams of each order, order values
+ * for each order: the last word ids, except for unigrams; the log-probabilities; and, except for the highest order, the log-backoff weights and the child offsets
+ * </pre>
+ * where the log-probabilities and log-backoff weights are laid out as described in {@link ValueColumn}.
+ *
+ * @author romanows
+ */
+public class TrieBackoffStorage implements BackoffStorage {
+
+	/** Byte order of written and mapped tries */
+	static final ByteOrder FILE_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** Size of the buffer through which tries are written */
+	private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+	/** Last word id of each ngram of each order, sorted within each group of ngrams sharing a prefix; null for unigrams, which are indexed by word id */
+	private final IntBuffer [] words;
+
+	/** Log-probabilities of each order, parallel to {@link #words}; {@link Float#POSITIVE_INFINITY}, the float {@link BackoffStorage#NOT_HELD}, for unigram ids that are not held */
+	private final ValueColumn [] probabilities;
+
+	/** Log-backoff weights of each order, parallel to {@link #words}; null for the highest order */
+	private final ValueColumn [] backoffs;
+
+	/** Offsets of each ngram's first child in the next order; one longer than the number of ngrams, so that the children of ngram i are [children[i],children[i+1]); null for the highest order */
+	private final IntBuffer [] children;
+
+	/** Number of ngrams of each order */
+	private final int [] sizes;
+
+
+	/**
+	 * Constructor.
+	 * Filled by the {@link Builder} or by {@link #map(FileChannel, long)}.
+	 * @param order highest ngram order
+	 */
+	private TrieBackoffStorage(int order) {
+		if(order < 1) {
+			throw new IllegalArgumentException();
+		}
+		words = new IntBuffer[order];
+		probabilities = new ValueColumn[order];
+		backoffs = new ValueColumn[order];
+		children = new IntBuffer[order];
+		sizes = new int[order];
+	}
+
+
+	/**
+	 * Open a trie written by {@link #write(WritableByteChannel)}.
+	 * The trie's arrays are memory-mapped read-only, so they are paged in as lookups touch them and are shared with other processes mapping the same file.
+	 * The mapping stays valid after the channel is closed.
+	 * @param channel channel of the file holding the trie
+	 * @param position offset in the file at which the trie starts
+	 * @return trie backed by the mapped file
+	 * @throws IOException on problems reading the file, or if the trie is malformed or truncated
+	 */
+	public static TrieBackoffStorage map(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8).order(FILE_BYTE_ORDER);
+		readFully(channel, header, position);
+		int order = header.getInt(0);
+		int unigramSlots = header.getInt(4);
+		if(order < 1 || unigramSlots < 0) {
+			throw new IOException("malformed trie header");
+		}
+		position += 8;
+
+		ByteBuffer sizesBuffer = ByteBuffer.allocate(4 * order).order(FILE_BYTE_ORDER);
+		readFully(channel, sizesBuffer, position);
+		position += 4 * order;
+
+		TrieBackoffStorage storage = new TrieBackoffStorage(order);
+		int slots = unigramSlots;
+		for(int i=0; i<order; i++) {
+			storage.sizes[i] = sizesBuffer.getInt(4 * i);
+			if(storage.sizes[i] < 0 || (i == 0 && storage.sizes[i] > unigramSlots)) {
+				throw new IOException("malformed trie header");
+			}
+			if(i > 0) {
+				slots = storage.sizes[i];
+				storage.words[i] = mapSection(channel, position, 4L * slots).asIntBuffer();
+				position += 4L * slots;
+			}
+			storage.probabilities[i] = ValueColumn.map(channel, position, slots);
+			position += storage.probabilities[i].serializedBytes();
+			if(i < order-1) {
+				storage.backoffs[i] = ValueColumn.map(channel, position, slots);
+				position += storage.backoffs[i].serializedBytes();
+				storage.children[i] = mapSection(channel, position, 4L * (slots + 1)).asIntBuffer();
+				position += 4L * (slots + 1);
+			}
+		}
+		return storage;
+	}
+
+
+	/**
+	 * Map a section of the file.
+	 * @param channel channel of the file holding the trie
+	 * @param position offset in the file at which the section starts
+	 * @param bytes length of the section
+	 * @return read-only mapping of the section, in the file byte order
+	 * @throws IOException if the section extends past the end of the file or cannot be mapped
+	 */
+	static ByteBuffer mapSection(FileChannel channel, long position, long bytes) throws IOException {
+		if(bytes > Integer.MAX_VALUE) {
+			throw new IOException("trie section is too large to map: " + bytes + " bytes");
+		}
+		if(position + bytes > channel.size()) {
+			throw new IOException("trie is truncated");
+		}
+		return channel.map(MapMode.READ_ONLY, position, bytes).order(FILE_BYTE_ORDER);
+	}
+
+
+	/**
+	 * Fill a buffer from a file.
+	 * @param channel channel of the file
+	 * @param buffer buffer to fill
+	 * @param position offset in the file at which to start reading
+	 * @throws IOException on problems reading the file, or if it ends before the buffer is full
+	 */
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new IOException("trie is truncated");
+			}
+			position += read;
+		}
+	}
+
+
+	/**
+	 * Write this trie in the layout read by {@link #map(FileChannel, long)}.
+	 * @param channel destination
+	 * @throws IOException on problems writing
+	 */
+	public void write(WritableByteChannel channel) throws IOException {
+		int order = sizes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(FILE_BYTE_ORDER);
+		buffer.putInt(order);
+		buffer.putInt(probabilities[0].size());
+		for(int size : sizes) {
+			buffer.putInt(size);
+		}
+		flush(channel, buffer);
+
+		for(int i=0; i<order; i++) {
+			if(i > 0) {
+				write(channel, buffer, words[i]);
+			}
+			probabilities[i].write(channel, buffer);
+			if(i < order-1) {
+				backoffs[i].write(channel, buffer);
+				write(channel, buffer, children[i]);
+			}
+		}
+	}
+
+
+	/**
+	 * Write all of an int buffer through a byte buffer.
+	 * @param channel destination
+	 * @param buffer scratch buffer in the file byte order
+	 * @param ints values to write
+	 * @throws IOException on problems writing
+	 */
+	private static void write(WritableByteChannel channel, ByteBuffer buffer, IntBuffer ints) throws IOException {
+		buffer.clear();
+		for(int i=0; i<ints.limit(); i++) {
+			if(buffer.remaining() < 4) {
+				flush(channel, buffer);
+			}
+			buffer.putInt(ints.get(i));
+		}
+		flush(channel, buffer);
+	}
+
+
+	/**
+	 * Write out and clear a buffer.
+	 * @param channel destination
+	 * @param buffer buffer whose contents, up to its position, are written
+	 * @throws IOException on problems writing
+	 */
+	static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	/**
+	 * Search a range of a sorted int buffer.
+	 * @param buffer buffer to search
+	 * @param fromIndex first index searched
+	 * @param toIndex one past the last index searched
+	 * @param key value to find
+	 * @return index of the key, or -1 if it is not in the range
+	 */
+	private static int binarySearch(IntBuffer buffer, int fromIndex, int toIndex, int key) {
+		int low = fromIndex;
+		int high = toIndex - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int midVal = buffer.get(mid);
+			if(midVal < key) {
+				low = mid + 1;
+			} else if(midVal > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Find the index of an ngram in the arrays of its order.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length order of the ngram
+	 * @return index, or -1 if the ngram is not held
+	 */
+	private int find(int [] ids, int start, int length) {
+		ValueColumn unigramProbabilities = probabilities[0];
+		int index = ids[start];
+		if(index < 0 || index >= unigramProbabilities.size() || unigramProbabilities.get(index) == Float.POSITIVE_INFINITY) {
+			return -1;
+		}
+		for(int i=1; i<length; i++) {
+			IntBuffer offsets = children[i-1];
+			if(offsets == null) {
+				return -1;
+			}
+			index = binarySearch(words[i], offsets.get(index), offsets.get(index+1), ids[start+i]);
+			if(index < 0) {
+				return -1;
+			}
+		}
+		return index;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#order()
+	 */
+	@Override
+	public int order() {
+		return sizes.length;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#size(int)
+	 */
+	@Override
+	public int size(int n) {
+		return sizes[n-1];
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#probability(int[], int, int)
+	 */
+	@Override
+	public double probability(int [] ids, int start, int length) {
+		int index = find(ids, start, length);
+		return index < 0 ? NOT_HELD : probabilities[length-1].get(index);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#backoff(int[], int, int)
+	 */
+	@Override
+	public double backoff(int [] ids, int start, int length) {
+		int index = find(ids, start, length);
+		return index < 0 ? NOT_HELD : backoffs[length-1].get(index);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorage#copyTo(com.pwnetics.languagemodel.lm.storage.BackoffEntrySink)
+	 */
+	@Override
+	public void copyTo(BackoffEntrySink sink) {
+		ValueColumn unigramProbabilities = probabilities[0];
+		for(int n=1; n<=sizes.length; n++) {
+			int [] ids = new int[n];
+			for(int id=0; id<unigramProbabilities.size(); id++) {
+				if(unigramProbabilities.get(id) != Float.POSITIVE_INFINITY) {
+					ids[0] = id;
+					copyTo(sink, ids, 0, id);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Add the descendants of an ngram that are of the order of the ids array to a sink.
+	 * @param sink receives the ngrams
+	 * @param ids holds the word ids of the ngram in its first i+1 elements; its length is the order of the ngrams to add
+	 * @param i index of the order of the ngram; the ngram order minus one
+	 * @param index index of the ngram in the arrays of its order
+	 */
+	private void copyTo(BackoffEntrySink sink, int [] ids, int i, int index) {
+		if(i == ids.length-1) {
+			sink.add(ids, probabilities[i].get(index), i < sizes.length-1 ? backoffs[i].get(index) : Double.NaN);
+			return;
+		}
+		IntBuffer offsets = children[i];
+		for(int j=offsets.get(index); j<offsets.get(index+1); j++) {
+			ids[i+1] = words[i+1].get(j);
+			copyTo(sink, ids, i+1, j);
+		}
+	}
+
+
+	/**
+	 * Estimate the peak heap memory used while building a storage and holding the result.
+	 * The peak is reached while sorting one order, when the staging arrays of that order and the ones above it are still held alongside the orders already built.
+	 * @param vocabularySize number of words
+	 * @param orderCounts number of ngrams of each order; the array length is the model order
+	 * @param bits 32 for floats, or 8 or 16 for quantized codes
+	 * @return estimated number of bytes
+	 */
+	static long estimateBytes(int vocabularySize, int [] orderCounts, int bits) {
+		int order = orderCounts.length;
+		int valueBytes = bits / 8;
+		long staged = 0;
+		for(int i=0; i<order; i++) {
+			staged += Math.max(orderCounts[i], 16) * (4L*(i+1) + 4 + (i < order-1 ? 4 : 0));
+		}
+
+		long peak = 0;
+		long built = 0;
+		for(int i=0; i<order; i++) {
+			int columns = i < order-1 ? 2 : 1;
+			long size = i == 0 ? vocabularySize : orderCounts[i];
+			long column = size * valueBytes * columns;
+			if(i > 0) {
+				column += size * 4 + (orderCounts[i-1] + 1L) * 4;
+			}
+			// Sort keys and their sorted copy, plus float values awaiting quantization
+			long working = i == 0 ? 0 : size * 16;
+			working += bits == ValueColumn.FLOAT_BITS ? 0 : size * 4 * (columns + 1);
+			peak = Math.max(peak, staged + built + working + column);
+			staged -= Math.max(orderCounts[i], 16) * (4L*(i+1) + 4 + (i < order-1 ? 4 : 0));
+			built += column;
+		}
+		return peak;
+	}
+
+
+	/**
+	 * Builds a {@link TrieBackoffStorage}.
+	 *
+	 * Ngrams may be added in any order.
+	 * They are staged in flat arrays and sorted into the trie, one order at a time, when {@link #build()} is called.
+	 *
+	 * @author romanows
+	 */
+	public static class Builder implements BackoffStorageBuilder {
+
+		/** Number of unigram slots; word ids must be less than this */
+		private final int vocabularySize;
+
+		/** Bits per stored value: 32 for floats, or 8 or 16 for quantized codes */
+		private final int bits;
+
+		/** Staged word ids of each order, n ids per ngram */
+		private final int [][] stagedIds;
+
+		/** Staged log-probabilities of each order */
+		private final float [][] stagedProbabilities;
+
+		/** Staged log-backoff weights of each order; null for the highest order */
+		private final float [][] stagedBackoffs;
+
+		/** Number of ngrams staged for each order */
+		private final int [] stagedSizes;
+
+
+		/**
+		 * Constructor.
+		 * Values are stored as floats.
+		 * @param vocabularySize number of words; word ids added to the builder must be in [0,vocabularySize)
+		 * @param orderCounts expected number of ngrams of each order, used to size the staging arrays; the array length is the model order
+		 */
+		public Builder(int vocabularySize, int [] orderCounts) {
+			this(vocabularySize, orderCounts, ValueColumn.FLOAT_BITS);
+		}
+
+
+		/**
+		 * Constructor.
+		 * @param vocabularySize number of words; word ids added to the builder must be in [0,vocabularySize)
+		 * @param orderCounts expected number of ngrams of each order, used to size the staging arrays; the array length is the model order
+		 * @param bits 32 to store values as floats, or 8 or 16 to quantize them
+		 */
+		public Builder(int vocabularySize, int [] orderCounts, int bits) {
+			int order = orderCounts.length;
+			if(order < 1 || vocabularySize < 0 || (bits != ValueColumn.FLOAT_BITS && bits != 8 && bits != 16)) {
+				throw new IllegalArgumentException();
+			}
+			this.vocabularySize = vocabularySize;
+			this.bits = bits;
+			stagedIds = new int[order][];
+			stagedProbabilities = new float[order][];
+			stagedBackoffs = new float[order][];
+			stagedSizes = new int[order];
+			for(int i=0; i<order; i++) {
+				int capacity = Math.max(orderCounts[i], 16);
+				stagedIds[i] = new int[capacity * (i+1)];
+				stagedProbabilities[i] = new float[capacity];
+				if(i < order-1) {
+					stagedBackoffs[i] = new float[capacity];
+				}
+			}
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#add(int[], double, double)
+		 */
+		@Override
+		public void add(int [] ids, double logProbability, double logBackoff) {
+			int n = ids.length;
+			for(int id : ids) {
+				if(id < 0 || id >= vocabularySize) {
+					throw new IllegalArgumentException("word id outside of the declared vocabulary size");
+				}
+			}
+
+			int i = n-1;
+			int size = stagedSizes[i];
+			if(size == stagedProbabilities[i].length) {
+				int capacity = size + (size >> 1);
+				stagedIds[i] = Arrays.copyOf(stagedIds[i], capacity * n);
+				stagedProbabilities[i] = Arrays.copyOf(stagedProbabilities[i], capacity);
+				if(stagedBackoffs[i] != null) {
+					stagedBackoffs[i] = Arrays.copyOf(stagedBackoffs[i], capacity);
+				}
+			}
+			System.arraycopy(ids, 0, stagedIds[i], size * n, n);
+			stagedProbabilities[i][size] = (float) logProbability;
+			if(stagedBackoffs[i] != null) {
+				stagedBackoffs[i][size] = (float) logBackoff;
+			}
+			stagedSizes[i]++;
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder#build()
+		 */
+		@Override
+		public BackoffStorage build() {
+			int order = stagedSizes.length;
+			TrieBackoffStorage storage = new TrieBackoffStorage(order);
+
+			// Unigrams are indexed by word id
+			float [] unigramProbabilities = new float[vocabularySize];
+			Arrays.fill(unigramProbabilities, Float.POSITIVE_INFINITY);
+			float [] unigramBackoffs = null;
+			if(order > 1) {
+				unigramBackoffs = new float[vocabularySize];
+				Arrays.fill(unigramBackoffs, Float.NEGATIVE_INFINITY);
+			}
+			for(int j=0; j<stagedSizes[0]; j++) {
+				int id = stagedIds[0][j];
+				if(unigramProbabilities[id] != Float.POSITIVE_INFINITY) {
+					throw new IllegalArgumentException("duplicate 1-gram");
+				}
+				storage.sizes[0]++;
+				unigramProbabilities[id] = stagedProbabilities[0][j];
+				if(unigramBackoffs != null) {
+					unigramBackoffs[id] = stagedBackoffs[0][j];
+				}
+			}
+			storage.probabilities[0] = ValueColumn.create(unigramProbabilities, bits);
+			storage.backoffs[0] = unigramBackoffs == null ? null : ValueColumn.create(unigramBackoffs, bits);
+			release(0);
+
+			for(int i=1; i<order; i++) {
+				buildOrder(storage, i);
+				release(i);
+			}
+			return storage;
+		}
+
+
+		/**
+		 * Sort the staged ngrams of one order into the trie, and fill in the child offsets of the order below it.
+		 * @param storage trie whose lower orders are already built; searches of orders that are not built yet find nothing
+		 * @param i index of the order to build; the ngram order minus one
+		 */
+		private void buildOrder(TrieBackoffStorage storage, int i) {
+			int n = i+1;
+			int size = stagedSizes[i];
+			int [] ids = stagedIds[i];
+
+			// Sort key is the index of the prefix in the order below, then the last word id
+			long [] keys = new long[size];
+			for(int j=0; j<size; j++) {
+				int parent = storage.find(ids, j*n, i);
+				if(parent < 0) {
+					throw new IllegalArgumentException("a " + n + "-gram's " + i + "-gram prefix is not held");
+				}
+				keys[j] = ((long) parent << 32) | ids[j*n + i];
+			}
+			long [] sorted = keys.clone();
+			Arrays.sort(sorted);
+			for(int j=1; j<size; j++) {
+				if(sorted[j] == sorted[j-1]) {
+					throw new IllegalArgumentException("duplicate " + n + "-gram");
+				}
+			}
+
+			int [] words = new int[size];
+			float [] probabilities = new float[size];
+			float [] backoffs = stagedBackoffs[i] == null ? null : new float[size];
+			for(int j=0; j<size; j++) {
+				words[j] = (int) sorted[j];
+			}
+			for(int j=0; j<size; j++) {
+				int index = Arrays.binarySearch(sorted, keys[j]);
+				probabilities[index] = stagedProbabilities[i][j];
+				if(backoffs != null) {
+					backoffs[index] = stagedBackoffs[i][j];
+				}
+			}
+
+			int [] offsets = new int[storage.probabilities[i-1].size() + 1];
+			for(int j=0; j<size; j++) {
+				offsets[(int) (sorted[j] >>> 32) + 1]++;
+			}
+			for(int j=1; j<offsets.length; j++) {
+				offsets[j] += offsets[j-1];
+			}
+
+			storage.children[i-1] = IntBuffer.wrap(offsets);
+			storage.words[i] = IntBuffer.wrap(words);
+			storage.probabilities[i] = ValueColumn.create(probabilities, bits);
+			storage.backoffs[i] = backoffs == null ? null : ValueColumn.create(backoffs, bits);
+			storage.sizes[i] = size;
+		}
+
+
+		/**
+		 * Drop the staging arrays of an order once it is built.
+		 * @param i index of the order; the ngram order minus one
+		 */
+		private void release(int i) {
+			stagedIds[i] = null;
+			stagedProbabilities[i] = null;
+			stagedBackoffs[i] = null;
+		}
+	}
+}
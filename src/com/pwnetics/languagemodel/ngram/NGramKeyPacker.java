@@ -0,0 +1,372 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.ngram;
+
+
+/**
+ * Packs the word ids of an ngram into one or more longs, for use as a key in primitive hash tables.
+ *
+ * Each word takes {@link #bitsPerWord()} bits and is stored as its id plus one, so a key made of valid word ids is never all zeros.
+ * Tables can therefore use a zero first long to mark an empty slot.
+ * Words are not split across longs; as many words as fit are packed into each long.
+ * For example, with a vocabulary of under a million words, a trigram packs into a single long and a 5-gram into two.
+ *
+ * The methods that take a length, and the {@link WordIdNGram} methods, also take ngrams shorter than the packer's order, packing their missing words as zeros.
+ * A shorter ngram's key therefore never equals a longer ngram's key, so ngrams of several orders can share one table.
+ *
+ * @author romanows
+ */
+public class NGramKeyPacker {
+
+	/** Largest number of bits per word; enough for any non-negative word id, for tables filled before the vocabulary size is known */
+	public static final int MAX_BITS_PER_WORD = 31;
+
+	/** Order of the ngrams packed by this object */
+	private final int order;
+
+	/** Bits used to store each word */
+	private final int bitsPerWord;
+
+	/** Number of words that fit in one long */
+	private final int wordsPerLong;
+
+	/** Number of longs in a packed key */
+	private final int longsPerKey;
+
+	/** Word ids must be less than this value to be packed */
+	private final long maxWordId;
+
+
+	/**
+	 * Constructor.
+	 * @param order order of the ngrams to pack
+	 * @param bitsPerWord bits used to store each word, in [1,{@link #MAX_BITS_PER_WORD}]; see {@link #bitsPerWord(int)}
+	 */
+	public NGramKeyPacker(int order, int bitsPerWord) {
+		if(order < 1 || bitsPerWord < 1 || bitsPerWord > MAX_BITS_PER_WORD) {
+			throw new IllegalArgumentException();
+		}
+		this.order = order;
+		this.bitsPerWord = bitsPerWord;
+		wordsPerLong = 64 / bitsPerWord;
+		longsPerKey = (order + wordsPerLong - 1) / wordsPerLong;
+		maxWordId = (1L << bitsPerWord) - 1;
+	}
+
+
+	/**
+	 * Get the number of bits needed to pack the ids of a vocabulary of the given size.
+	 * @param vocabularySize number of words; word ids are in [0,vocabularySize)
+	 * @return bits needed to store each word
+	 */
+	public static int bitsPerWord(int vocabularySize) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(vocabularySize));
+	}
+
+
+	/**
+	 * @return order of the ngrams packed by this object
+	 */
+	public int order() {
+		return order;
+	}
+
+
+	/**
+	 * @return bits used to store each word
+	 */
+	public int bitsPerWord() {
+		return bitsPerWord;
+	}
+
+
+	/**
+	 * @return number of longs in a packed key
+	 */
+	public int longsPerKey() {
+		return longsPerKey;
+	}
+
+
+	/**
+	 * Check that every word id of an ngram can be packed.
+	 * Unknown words, like {@link com.pwnetics.languagemodel.Vocabulary#UNKNOWN_ID}, cannot be packed and so can never be found in a table.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @return true if all word ids are in range for this packer
+	 */
+	public boolean canPack(int [] ids, int start) {
+		return canPack(ids, start, order);
+	}
+
+
+	/**
+	 * Check that every word id of an ngram of at most this packer's order can be packed.
+	 * @param ids array holding the ngram word ids
+	 * @param start index of the first word of the ngram
+	 * @param length number of words in the ngram
+	 * @return true if the ngram is no longer than this packer's order and all its word ids are in range
+	 * @see #canPack(int[], int)
+	 */
+	public boolean canPack(int [] ids, int start, int length) {
+		if(length > order) {
+			return false;
+		}
+		for(int i=start; i<start+length; i++) {
+			if(ids[i] < 0 || ids[i] >= maxWordId) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Check that every word id of an ngram can be packed.
+	 * @param ngram ngram of at most this packer's order
+	 * @return true if all word ids are in range for this packer
+	 * @see #canPack(int[], int)
+	 */
+	public boolean canPack(WordIdNGram ngram) {
+		if(ngram.size() > order) {
+			return false;
+		}
+		for(int i=0; i<ngram.size(); i++) {
+			if(ngram.get(i) < 0 || ngram.get(i) >= maxWordId) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Get one of the longs of a packed key.
+	 * Computing the key a long at a time lets tables hash and compare keys without filling a temporary array.
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int)}
+	 * @param start index of the first word of the ngram
+	 * @param keyIndex which long of the key to compute, in [0,{@link #longsPerKey()})
+	 * @return the requested long of the packed key
+	 */
+	public long pack(int [] ids, int start, int keyIndex) {
+		return pack(ids, start, order, keyIndex);
+	}
+
+
+	/**
+	 * Get one of the longs of the packed key of an ngram of at most this packer's order.
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int, int)}
+	 * @param start index of the first word of the ngram
+	 * @param length number of words in the ngram
+	 * @param keyIndex which long of the key to compute, in [0,{@link #longsPerKey()})
+	 * @return the requested long of the packed key
+	 */
+	public long pack(int [] ids, int start, int length, int keyIndex) {
+		int from = start + keyIndex * wordsPerLong;
+		int to = Math.min(from + wordsPerLong, start + length);
+		long key = 0;
+		int shift = 0;
+		for(int i=from; i<to; i++) {
+			key |= (ids[i] + 1L) << shift;
+			shift += bitsPerWord;
+		}
+		return key;
+	}
+
+
+	/**
+	 * Get one of the longs of the packed key of an ngram.
+	 * @param ngram ngram of at most this packer's order; its ids must satisfy {@link #canPack(WordIdNGram)}
+	 * @param keyIndex which long of the key to compute, in [0,{@link #longsPerKey()})
+	 * @return the requested long of the packed key
+	 */
+	public long pack(WordIdNGram ngram, int keyIndex) {
+		int from = keyIndex * wordsPerLong;
+		int to = Math.min(from + wordsPerLong, ngram.size());
+		long key = 0;
+		int shift = 0;
+		for(int i=from; i<to; i++) {
+			key |= (ngram.get(i) + 1L) << shift;
+			shift += bitsPerWord;
+		}
+		return key;
+	}
+
+
+	/**
+	 * Pack an ngram into an array.
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int)}
+	 * @param start index of the first word of the ngram
+	 * @param keys destination array
+	 * @param keyOffset index in the destination array at which to store the {@link #longsPerKey()} longs of the key
+	 */
+	public void pack(int [] ids, int start, long [] keys, int keyOffset) {
+		for(int j=0; j<longsPerKey; j++) {
+			keys[keyOffset + j] = pack(ids, start, j);
+		}
+	}
+
+
+	/**
+	 * Unpack a key into word ids.
+	 * @param keys array holding the packed key
+	 * @param keyOffset index of the first long of the key
+	 * @param ids destination array
+	 * @param start index in the destination array at which to store the {@link #order()} word ids; the missing words of a shorter ngram are stored as -1
+	 */
+	public void unpack(long [] keys, int keyOffset, int [] ids, int start) {
+		for(int i=0; i<order; i++) {
+			long key = keys[keyOffset + i / wordsPerLong];
+			ids[start + i] = (int) ((key >>> ((i % wordsPerLong) * bitsPerWord)) & maxWordId) - 1;
+		}
+	}
+
+
+	/**
+	 * Hash an ngram.
+	 * Gives the same value as {@link #hash(long[], int)} on the packed key.
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int)}
+	 * @param start index of the first word of the ngram
+	 * @return hash of the packed key
+	 */
+	public long hash(int [] ids, int start) {
+		return hash(ids, start, order);
+	}
+
+
+	/**
+	 * Hash an ngram of at most this packer's order.
+	 * Gives the same value as {@link #hash(long[], int)} on the packed key.
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int, int)}
+	 * @param start index of the first word of the ngram
+	 * @param length number of words in the ngram
+	 * @return hash of the packed key
+	 */
+	public long hash(int [] ids, int start, int length) {
+		long h = 0;
+		for(int j=0; j<longsPerKey; j++) {
+			h = mix(h ^ pack(ids, start, length, j));
+		}
+		return h;
+	}
+
+
+	/**
+	 * Hash an ngram.
+	 * Gives the same value as {@link #hash(long[], int)} on the packed key.
+	 * @param ngram ngram of at most this packer's order; its ids must satisfy {@link #canPack(WordIdNGram)}
+	 * @return hash of the packed key
+	 */
+	public long hash(WordIdNGram ngram) {
+		long h = 0;
+		for(int j=0; j<longsPerKey; j++) {
+			h = mix(h ^ pack(ngram, j));
+		}
+		return h;
+	}
+
+
+	/**
+	 * Hash a packed key.
+	 * @param keys array holding the packed key
+	 * @param keyOffset index of the first long of the key
+	 * @return hash of the packed key
+	 */
+	public long hash(long [] keys, int keyOffset) {
+		long h = 0;
+		for(int j=0; j<longsPerKey; j++) {
+			h = mix(h ^ keys[keyOffset + j]);
+		}
+		return h;
+	}
+
+
+	/**
+	 * Check whether a packed key holds the given ngram.
+	 * @param keys array holding the packed key
+	 * @param keyOffset index of the first long of the key
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int)}
+	 * @param start index of the first word of the ngram
+	 * @return true if the key holds the ngram
+	 */
+	public boolean matches(long [] keys, int keyOffset, int [] ids, int start) {
+		return matches(keys, keyOffset, ids, start, order);
+	}
+
+
+	/**
+	 * Check whether a packed key holds the given ngram of at most this packer's order.
+	 * @param keys array holding the packed key
+	 * @param keyOffset index of the first long of the key
+	 * @param ids array holding the ngram word ids; the ids must satisfy {@link #canPack(int[], int, int)}
+	 * @param start index of the first word of the ngram
+	 * @param length number of words in the ngram
+	 * @return true if the key holds the ngram
+	 */
+	public boolean matches(long [] keys, int keyOffset, int [] ids, int start, int length) {
+		for(int j=0; j<longsPerKey; j++) {
+			if(keys[keyOffset + j] != pack(ids, start, length, j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Check whether a packed key holds the given ngram.
+	 * @param keys array holding the packed key
+	 * @param keyOffset index of the first long of the key
+	 * @param ngram ngram of at most this packer's order; its ids must satisfy {@link #canPack(WordIdNGram)}
+	 * @return true if the key holds the ngram
+	 */
+	public boolean matches(long [] keys, int keyOffset, WordIdNGram ngram) {
+		for(int j=0; j<longsPerKey; j++) {
+			if(keys[keyOffset + j] != pack(ngram, j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * The finalization step of MurmurHash3; spreads the bits of packed word ids, which are small and sequential, across the whole long.
+	 * @param h value to mix
+	 * @return mixed value
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
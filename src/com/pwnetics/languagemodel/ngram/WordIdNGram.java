@@ -0,0 +1,244 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.ngram;
+
+
+/**
+ * An ngram of word ids, as assigned by a {@link com.pwnetics.languagemodel.Vocabulary}.
+ *
+ * Hashing and comparing a few ints is much cheaper than hashing and comparing the word Strings held by an {@link AbstractNGram},
+ * so this is the key used by the language models for their ngram lookups.
+ *
+ * A WordIdNGram is a view onto a range of an int array.
+ * {@link #backoff()} and {@link #history()} return views onto the same array rather than copies, so they are cheap to create.
+ * The array is not copied; callers must not modify it while the ngram is in use.
+ *
+ * {@link #reset(int[], int, int)} repoints an ngram at another range, so that one instance can serve as the probe key of many map lookups.
+ * An ngram that is used as a map key must never be reset.
+ *
+ * @author romanows
+ */
+//@Invariant({"ids != null", "length > 0"})
+public final class WordIdNGram {
+
+	/** Array holding the word ids */
+	private int [] ids;
+
+	/** Index in {@link #ids} of the first word in this ngram */
+	private int offset;
+
+	/** Order of this ngram */
+	private int length;
+
+
+	/**
+	 * Constructor.
+	 * @param ids word ids of the ngram, cannot be null or empty
+	 */
+	public WordIdNGram(int [] ids) {
+		this(ids, 0, ids.length);
+	}
+
+
+	/**
+	 * Constructor.
+	 * @param ids array containing the word ids of the ngram, cannot be null
+	 * @param offset index of the first word of the ngram in the array
+	 * @param length order of the ngram, must be positive
+	 */
+	public WordIdNGram(int [] ids, int offset, int length) {
+		if(ids == null || length < 1 || offset < 0 || offset + length > ids.length) {
+			throw new IllegalArgumentException();
+		}
+		this.ids = ids;
+		this.offset = offset;
+		this.length = length;
+	}
+
+
+	/**
+	 * Repoint this ngram at a range of another array, for reuse as a lookup key without allocating.
+	 * @param ids array containing the word ids of the ngram, cannot be null
+	 * @param offset index of the first word of the ngram in the array
+	 * @param length order of the ngram, must be positive
+	 * @return this ngram
+	 */
+	public WordIdNGram reset(int [] ids, int offset, int length) {
+		if(ids == null || length < 1 || offset < 0 || offset + length > ids.length) {
+			throw new IllegalArgumentException();
+		}
+		this.ids = ids;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+
+	/**
+	 * Return the word id at the given index in the ngram.
+	 * @param index zero-based index
+	 * @return the word id at the given index
+	 */
+	public int get(int index) {
+		if(index < 0 || index >= length) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		return ids[offset + index];
+	}
+
+
+	/**
+	 * Return the first word id in the ngram.
+	 * @return the first word id
+	 */
+	public int getFirst() {
+		return ids[offset];
+	}
+
+
+	/**
+	 * Return the last word id in the ngram.
+	 * @return the last word id
+	 */
+	public int getLast() {
+		return ids[offset + length - 1];
+	}
+
+
+	/**
+	 * @return a copy of the word ids of this ngram
+	 */
+	public int [] toArray() {
+		int [] a = new int[length];
+		System.arraycopy(ids, offset, a, 0, length);
+		return a;
+	}
+
+
+	/**
+	 * Get the order of this ngram.
+	 * @return the order of this ngram
+	 */
+	public int size() {
+		return length;
+	}
+
+
+	/**
+	 * Get the (N-1)-gram that contains words 1 through {@link #size()}-1.
+	 * @return the backoff version of this ngram or null when backing off from a unigram
+	 * @see AbstractNGram#backoff()
+	 */
+	public WordIdNGram backoff() {
+		if(length <= 1) {
+			return null;
+		}
+		return new WordIdNGram(ids, offset + 1, length - 1);
+	}
+
+
+	/**
+	 * Get the "history" of this ngram, containing words 0 through {@link #size()}-2.
+	 * @return the history of this ngram; null if called on a unigram
+	 * @see AbstractNGram#history()
+	 */
+	public WordIdNGram history() {
+		if(length <= 1) {
+			return null;
+		}
+		return new WordIdNGram(ids, offset, length - 1);
+	}
+
+
+	/**
+	 * Get a new (N+1)-gram that is this ngram concatenated with the given word id.
+	 * @param nextId word id to append
+	 * @return an (N+1)-gram that is this N-gram concatenated with a given word id
+	 */
+	public WordIdNGram add(int nextId) {
+		int [] a = new int[length + 1];
+		System.arraycopy(ids, offset, a, 0, length);
+		a[length] = nextId;
+		return new WordIdNGram(a);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int i=offset; i<offset+length; i++) {
+			sb.append(ids[i]).append(" ");
+		}
+		return sb.substring(0, sb.length()-1);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		for(int i=offset; i<offset+length; i++) {
+			result = prime * result + ids[i];
+		}
+		return result;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof WordIdNGram)) {
+			return false;
+		}
+		WordIdNGram other = (WordIdNGram) obj;
+		if(other.length != length) {
+			return false;
+		}
+		for(int i=length-1; i>=0; i--) {
+			if(ids[offset + i] != other.ids[other.offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
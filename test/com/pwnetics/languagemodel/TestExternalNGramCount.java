@@ -0,0 +1,128 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.WhitespaceTokenizer;
+
+
+/**
+ * Checks that counting through spilled and merged runs gives the same counts as counting in memory.
+ * @author romanows
+ */
+public class TestExternalNGramCount {
+
+	private static final File TRAINING_FILE = new File("testData/trainingText/brown.sentences.nltk.train.txt");
+
+	private static final int ORDER = 3;
+
+
+	private static NGramEnumerator enumerator() throws IOException {
+		return new NGramEnumerator(new Vocabulary(), new WhitespaceTokenizer(TRAINING_FILE), ORDER, "<s>");
+	}
+
+
+	private static File tempDirectory() throws IOException {
+		File dir = File.createTempFile("TestExternalNGramCount", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		return dir;
+	}
+
+
+	@Test
+	public void testExternalCount() throws IOException {
+		List<ItemCounter<WordIdNGram>> expected = new ArrayList<ItemCounter<WordIdNGram>>();
+		for(int n=1; n<=ORDER; n++) {
+			expected.add(new ItemCounter<WordIdNGram>());
+		}
+		for(Iterator<WordIdNGram> it = enumerator().idIterator(); it.hasNext(); ) {
+			WordIdNGram ngram = it.next();
+			expected.get(ngram.size() - 1).increment(ngram);
+		}
+
+		// A tiny buffer forces hundreds of runs and so more than one merge pass
+		File dir = tempDirectory();
+		File countFile = new File(dir, "counts");
+		try {
+			ExternalNGramCount counter = new ExternalNGramCount(ORDER, 2000, dir);
+			counter.add(enumerator());
+			assertTrue(counter.runCount() > ExternalNGramCount.MERGE_FAN_IN);
+			counter.write(countFile);
+			assertEquals(0, counter.runCount());
+			assertEquals(1, dir.listFiles().length);
+
+			for(int n=1; n<=ORDER; n++) {
+				ItemCounter<WordIdNGram> actual = ExternalNGramCount.readCounts(countFile, n);
+				assertEquals(expected.get(n-1).size(), actual.size());
+				for(WordIdNGram ngram : expected.get(n-1).getItems()) {
+					assertEquals(ngram.toString(), expected.get(n-1).get(ngram), actual.get(ngram));
+				}
+			}
+
+			// Records are sorted and never repeated
+			ExternalNGramCount.CountReader reader = new ExternalNGramCount.CountReader(countFile);
+			int records = 0;
+			int [] ids = new int[ORDER];
+			int lastOrder = 0;
+			try {
+				while(reader.next()) {
+					assertTrue(reader.order() >= lastOrder);
+					assertTrue(reader.count() > 0);
+					reader.ids(ids, 0);
+					lastOrder = reader.order();
+					records++;
+				}
+			} finally {
+				reader.close();
+			}
+			assertEquals(expected.get(0).size() + expected.get(1).size() + expected.get(2).size(), records);
+			assertFalse(lastOrder == 0);
+		} finally {
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
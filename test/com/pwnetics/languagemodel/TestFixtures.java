@@ -0,0 +1,108 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+package com.pwnetics.languagemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.pwnetics.languagemodel.lm.AbstractNGramLanguageModel;
+import com.pwnetics.languagemodel.lm.AbstractStatefulLanguageModel;
+import com.pwnetics.languagemodel.ngram.AbstractNGram;
+
+
+/**
+ * Test data shared by the tests of several packages.
+ * @author romanows
+ */
+public class TestFixtures {
+
+	/** Word that is in no test model's vocabulary */
+	public static final String OOV_WORD = "zzyzx";
+
+
+	private TestFixtures() {
+	}
+
+
+	/**
+	 * Random sentences of in-vocabulary words, from one to twenty words between "&lt;s&gt;" and "&lt;/s&gt;".
+	 * @param vocabulary words to draw from
+	 * @param count number of sentences
+	 * @param seed seed of the random words, so that a test sees the same sentences every run
+	 * @return random-access list of random-access sentences
+	 */
+	public static List<List<String>> randomSentences(Vocabulary vocabulary, int count, long seed) {
+		return randomSentences(vocabulary, count, seed, 0);
+	}
+
+
+	/**
+	 * Random sentences of in-vocabulary words with occasional OOV words, from one to twenty words between "&lt;s&gt;" and "&lt;/s&gt;".
+	 * @param vocabulary words to draw from
+	 * @param count number of sentences
+	 * @param seed seed of the random words, so that a test sees the same sentences every run
+	 * @param oovOneIn each word, including the start-of-sentence token, is replaced by {@link #OOV_WORD} with a chance of one in this many; 0 for none
+	 * @return random-access list of random-access sentences
+	 */
+	public static List<List<String>> randomSentences(Vocabulary vocabulary, int count, long seed, int oovOneIn) {
+		Random rnd = new Random(seed);
+		List<List<String>> sentences = new ArrayList<List<String>>();
+		for(int i=0; i<count; i++) {
+			List<String> sentence = new ArrayList<String>();
+			sentence.add(oovOneIn > 0 && rnd.nextInt(oovOneIn) == 0 ? OOV_WORD : "<s>");
+			for(int j=rnd.nextInt(20); j>=0; j--) {
+				sentence.add(oovOneIn > 0 && rnd.nextInt(oovOneIn) == 0 ? OOV_WORD : vocabulary.getWord(rnd.nextInt(vocabulary.size())));
+			}
+			sentence.add("</s>");
+			sentences.add(sentence);
+		}
+		return sentences;
+	}
+
+
+	/**
+	 * Hide that a model is stateful, so that it is scored through {@link AbstractNGramLanguageModel#logProbability(AbstractNGram)} and getOOV().
+	 * @param lm model to wrap
+	 * @return model answering with the given model's ngram probabilities
+	 */
+	public static AbstractNGramLanguageModel ngramOnly(final AbstractStatefulLanguageModel lm) {
+		return new AbstractNGramLanguageModel(lm.order(), lm.logBase()) {
+			@Override
+			public Set<String> getVocabulary() {
+				return lm.getVocabulary();
+			}
+
+			@Override
+			public double logProbability(AbstractNGram ngram) {
+				return lm.logProbability(ngram);
+			}
+		};
+	}
+}
@@ -0,0 +1,168 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.ngram.AbstractNGram;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.ListTokenizer;
+
+
+/**
+ * Checks the primitive count tables and the counters built on them.
+ * @author romanows
+ */
+public class TestNGramCountTable {
+
+	@Test
+	public void testCounts() {
+		NGramCountTable table = new NGramCountTable(3, 20, 0);
+		int [] ids = {7, 0, 1048574, 7, 0};
+		table.increment(ids, 0, 1);
+		table.increment(ids, 0, 2);
+		table.increment(ids, 1, 5);
+		table.increment(ids, 2, 1);
+		assertEquals(3, table.size());
+		assertEquals(3, table.get(ids, 0));
+		assertEquals(5, table.get(ids, 1));
+		assertEquals(1, table.get(ids, 2));
+		assertEquals(5, table.get(new WordIdNGram(ids, 1, 3)));
+		assertEquals(0, table.get(new int [] {0, 0, 0}, 0));
+		assertEquals(0, table.get(new int [] {-1, 0, 0}, 0));
+		assertEquals(9, table.sum());
+		assertEquals(Arrays.toString(new long [] {0, 1, 0, 1, 0, 1}), Arrays.toString(table.countOfCounts(5)));
+
+		// Grow through many rehashes and check that sorting visits every ngram once, in key order
+		for(int i=0; i<10000; i++) {
+			table.increment(new int [] {i % 97, i % 101, i}, 0, i);
+		}
+		assertEquals(10003, table.size());
+		int [] slots = table.sortedSlots();
+		assertEquals(table.size(), slots.length);
+		for(int i=1; i<slots.length; i++) {
+			assertTrue(table.key(slots[i-1], 0) < table.key(slots[i], 0));
+		}
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(0, table.get(ids, 0));
+	}
+
+
+	/**
+	 * Keys are repacked when a word id too large for them is counted, and tables of different widths can be added together.
+	 */
+	@Test
+	public void testWiden() {
+		NGramCountTable narrow = new NGramCountTable(2);
+		NGramCountTable wide = new NGramCountTable(2);
+		int [] ids = new int[2];
+		for(int i=0; i<5000; i++) {
+			ids[0] = i % 13;
+			ids[1] = i * 101;
+			narrow.increment(ids, 0, 1);
+			ids[1] = i * 400000;
+			wide.increment(ids, 0, 2);
+		}
+		assertEquals(3, narrow.get(new int [] {0, 0}, 0) + narrow.get(new int [] {1, 101}, 0) + narrow.get(new int [] {2, 202}, 0));
+		assertTrue(narrow.packer().bitsPerWord() < wide.packer().bitsPerWord());
+
+		NGramCountTable sum = new NGramCountTable(2);
+		sum.addAll(narrow);
+		sum.addAll(wide);
+		sum.addAll(narrow);
+		assertEquals(wide.packer().bitsPerWord(), sum.packer().bitsPerWord());
+		assertEquals(2 * narrow.sum() + wide.sum(), sum.sum());
+		assertEquals(10000 - 1, sum.size());  // only the ngram (0,0) is shared
+		assertEquals(4, sum.get(new int [] {0, 0}, 0));
+
+		int visited = 0;
+		for(NGramCountTable.Cursor c = sum.cursor(); c.next(); ) {
+			c.ids(ids, 0);
+			assertEquals(2 * narrow.get(ids, 0) + wide.get(ids, 0), c.count());
+			assertEquals(c.count(), sum.get(c.ngram()));
+			visited++;
+		}
+		assertEquals(sum.size(), visited);
+
+		ItemCounter<WordIdNGram> ic = sum.toItemCounter();
+		assertEquals(sum.size(), ic.size());
+		assertEquals(sum.sum(), ic.sum());
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeId() {
+		new NGramCountTable(1).increment(new int [] {-1}, 0, 1);
+	}
+
+
+	/**
+	 * The table-based counter gives the counts of counting the String-based ngrams directly.
+	 */
+	@Test
+	public void testNGramCount() {
+		List<String> tokens = Arrays.asList("<s> a b c a b </s> <s> b c a b c d </s> <s> </s>".split(" "));
+		ItemCounter<AbstractNGram> expected = new ItemCounter<AbstractNGram>();
+		for(AbstractNGram ngram : new NGramEnumerator(new Vocabulary(), new ListTokenizer(tokens), 3, "<s>")) {
+			expected.increment(ngram);
+		}
+
+		Vocabulary vocabulary = new Vocabulary();
+		NGramCount count = new NGramCount();
+		count.add(new NGramEnumerator(vocabulary, new ListTokenizer(tokens), 3, "<s>"));
+		count.add(new NGramEnumerator(vocabulary, new ListTokenizer(tokens), 3, "<s>"));
+		assertEquals(expected.size(), count.size());
+		assertEquals(3, count.getTables().length);
+
+		ItemCounter<AbstractNGram> actual = count.getItemCounter();
+		assertEquals(expected.size(), actual.size());
+		for(AbstractNGram ngram : expected.getItems()) {
+			assertEquals(ngram.toString(), 2 * expected.get(ngram), (int) actual.get(ngram));
+		}
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNGramCountVocabularies() {
+		List<String> tokens = Arrays.asList("a b c".split(" "));
+		NGramCount count = new NGramCount();
+		count.add(new NGramEnumerator(new Vocabulary(), new ListTokenizer(tokens), 2));
+		count.add(new NGramEnumerator(new Vocabulary(), new ListTokenizer(tokens), 2));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.helper.ItemCounter;
+import com.pwnetics.languagemodel.lm.KneserNeyModFixModel2;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.WhitespaceTokenizer;
+
+
+/**
+ * Checks that counting on several threads gives the counts and vocabulary of a single {@link NGramEnumerator}.
+ * @author romanows
+ */
+public class TestParallelNGramCount {
+
+	private static final File TRAINING_FILE = new File("testData/trainingText/brown.sentences.nltk.train.txt");
+
+	private static final int ORDER = 3;
+
+
+	private static List<ItemCounter<WordIdNGram>> enumeratorCounts(Vocabulary vocabulary, String beginUtterance, boolean padUtterance) throws IOException {
+		List<ItemCounter<WordIdNGram>> counts = new ArrayList<ItemCounter<WordIdNGram>>();
+		for(int n=1; n<=ORDER; n++) {
+			counts.add(new ItemCounter<WordIdNGram>());
+		}
+		NGramEnumerator ne = new NGramEnumerator(vocabulary, new WhitespaceTokenizer(TRAINING_FILE), ORDER, beginUtterance, padUtterance);
+		for(Iterator<WordIdNGram> it = ne.idIterator(); it.hasNext(); ) {
+			WordIdNGram ngram = it.next();
+			counts.get(ngram.size() - 1).increment(ngram);
+		}
+		return counts;
+	}
+
+
+	private static void assertSameCounts(List<ItemCounter<WordIdNGram>> expected, List<ItemCounter<WordIdNGram>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(int n=0; n<expected.size(); n++) {
+			assertEquals(expected.get(n).size(), actual.get(n).size());
+			for(WordIdNGram ngram : expected.get(n).getItems()) {
+				assertEquals(ngram.toString(), expected.get(n).get(ngram), actual.get(n).get(ngram));
+			}
+		}
+	}
+
+
+	/**
+	 * The training text is several chunks long, so utterances and, without utterance markers, ngrams straddle chunk boundaries.
+	 * Utterances are counted both padded and unpadded.
+	 */
+	@Test
+	public void testCounts() throws IOException {
+		String [] beginUtterances = {"<s>", "<s>", null};
+		boolean [] padUtterances = {true, false, true};
+		for(int i=0; i<beginUtterances.length; i++) {
+			String beginUtterance = beginUtterances[i];
+			boolean padUtterance = padUtterances[i];
+			Vocabulary expectedVocabulary = new Vocabulary();
+			List<ItemCounter<WordIdNGram>> expected = enumeratorCounts(expectedVocabulary, beginUtterance, padUtterance);
+
+			for(int threads : new int [] {1, 3, 8}) {
+				ParallelNGramCount counter = new ParallelNGramCount(new Vocabulary(), ORDER, threads);
+				counter.add(new WhitespaceTokenizer(TRAINING_FILE), beginUtterance, padUtterance);
+				assertEquals(expectedVocabulary.size(), counter.getVocabulary().size());
+				for(int id=0; id<expectedVocabulary.size(); id++) {
+					assertEquals(expectedVocabulary.getWord(id), counter.getVocabulary().getWord(id));
+				}
+				assertSameCounts(expected, counter.getCounts());
+			}
+		}
+	}
+
+
+	@Test
+	public void testAddTwice() throws IOException {
+		ParallelNGramCount counter = new ParallelNGramCount(new Vocabulary(), ORDER, 2);
+		counter.add(new WhitespaceTokenizer(TRAINING_FILE), "<s>");
+		counter.add(new WhitespaceTokenizer(TRAINING_FILE), "<s>");
+
+		List<ItemCounter<WordIdNGram>> expected = enumeratorCounts(new Vocabulary(), "<s>", true);
+		for(ItemCounter<WordIdNGram> counts : expected) {
+			for(WordIdNGram ngram : counts.getItems()) {
+				counts.set(ngram, 2 * counts.get(ngram));
+			}
+		}
+		assertSameCounts(expected, counter.getCounts());
+		assertEquals(expected.get(1).size(), counter.size(2));
+	}
+
+
+	@Test
+	public void testKneserNey() throws IOException {
+		Vocabulary expectedVocabulary = new Vocabulary();
+		KneserNeyModFixModel2 expected = new KneserNeyModFixModel2(ORDER, 10, enumeratorCounts(expectedVocabulary, "<s>", true), expectedVocabulary);
+
+		ParallelNGramCount counter = new ParallelNGramCount(new Vocabulary(), ORDER, 4);
+		counter.add(new WhitespaceTokenizer(TRAINING_FILE), "<s>");
+		KneserNeyModFixModel2 actual = new KneserNeyModFixModel2(ORDER, 10, counter.getTables(), counter.getVocabulary());
+
+		for(int id=0; id<expectedVocabulary.size(); id+=7) {
+			WordIdNGram ngram = new WordIdNGram(new int [] {expectedVocabulary.getId("<s>"), expectedVocabulary.getId("The"), id});
+			assertEquals(expected.logProbability(ngram), actual.logProbability(ngram), 0);
+		}
+	}
+}
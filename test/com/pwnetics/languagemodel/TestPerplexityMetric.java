@@ -0,0 +1,110 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+
+
+/**
+ * Checks that the single-pass, chunked perplexity calculation matches the ngram-by-ngram one, whatever the number of threads.
+ * @author romanows
+ */
+public class TestPerplexityMetric {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+
+	@Test
+	public void testScore() {
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		PerplexityMetric pp = new PerplexityMetric(TestFixtures.randomSentences(lm.getVocabulary(), 5000, 0x42, 30));  // more sentences than fit in one chunk
+
+		PerplexityMetric.Score expected = pp.score(TestFixtures.ngramOnly(lm));
+		assertTrue(expected.skippedOOVNGrams > 0);
+
+		PerplexityMetric.Score actual = pp.score(lm);
+		assertEquals(expected.perplexity, actual.perplexity, 0.0);
+		assertEquals(expected.skippedOOVNGrams, actual.skippedOOVNGrams);
+
+		for(int threads=1; threads<=4; threads++) {
+			actual = pp.score(lm, threads);
+			assertEquals(expected.perplexity, actual.perplexity, 0.0);
+			assertEquals(expected.skippedOOVNGrams, actual.skippedOOVNGrams);
+		}
+	}
+
+	@Test
+	public void testScoreEmptySentences() {
+		// Empty sentences add no tokens on either path, so they do not change the perplexity
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		List<List<String>> sentences = TestFixtures.randomSentences(lm.getVocabulary(), 500, 0x42, 30);
+		PerplexityMetric.Score expected = new PerplexityMetric(sentences).score(lm);
+
+		List<List<String>> withEmpty = new ArrayList<List<String>>();
+		for(List<String> sentence : sentences) {
+			withEmpty.add(new ArrayList<String>());
+			withEmpty.add(sentence);
+		}
+		PerplexityMetric pp = new PerplexityMetric(withEmpty);
+		assertEquals(expected.perplexity, pp.score(lm).perplexity, 0.0);
+		assertEquals(expected.perplexity, pp.score(TestFixtures.ngramOnly(lm)).perplexity, 0.0);
+	}
+
+
+	@Test
+	public void testScoreLinkedListSentences() {
+		// Sentences that are not random-access lists score the same on both paths
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		List<List<String>> sentences = TestFixtures.randomSentences(lm.getVocabulary(), 500, 0x42, 30);
+		PerplexityMetric.Score expected = new PerplexityMetric(sentences).score(lm);
+
+		List<List<String>> linked = new ArrayList<List<String>>();
+		for(List<String> sentence : sentences) {
+			linked.add(new LinkedList<String>(sentence));
+		}
+		PerplexityMetric pp = new PerplexityMetric(linked);
+		PerplexityMetric.Score actual = pp.score(lm);
+		assertEquals(expected.perplexity, actual.perplexity, 0.0);
+		assertEquals(expected.skippedOOVNGrams, actual.skippedOOVNGrams);
+		assertEquals(expected.perplexity, pp.score(TestFixtures.ngramOnly(lm)).perplexity, 0.0);
+		assertEquals(expected.perplexity, pp.score(lm, 2).perplexity, 0.0);
+	}
+}
@@ -29,17 +29,39 @@ authors.
 package com.pwnetics.languagemodel.arpa;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 
 import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageBuilder;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
 
 public class TestARPAModelLoader {
 
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
 	@Test
 	public void testARPAModelLoader() {
 		ARPAModelLoader aml = new ARPAModelLoader(new File("testData/languageModels/user2020.split.training.lm.arpa"), 3);
@@ -95,4 +117,354 @@ public class TestARPAModelLoader {
 		 */
 		assertEquals(-39.5724, logProb, 1e-3);
 	}
+
+
+	/**
+	 * Read an ARPA file line by line with Strings and regular expressions, as a reference for the byte-level reader.
+	 * @param vocabulary assigned the word ids in order of their first appearance
+	 * @return storage holding the ngrams of the file
+	 */
+	private static BackoffStorage readReference(File modelFile, int readDepth, BackoffStorageType storageType, Vocabulary vocabulary) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(modelFile));
+		try {
+			List<Integer> orderCounts = new ArrayList<Integer>();
+			String line;
+			while(!(line = br.readLine()).equals("\\1-grams:")) {
+				if(line.startsWith("ngram ")) {
+					orderCounts.add(Integer.parseInt(line.split("=")[1]));
+				}
+			}
+			int maxDepth = orderCounts.size();
+			readDepth = readDepth < 1 ? maxDepth : Math.min(readDepth, maxDepth);
+			int [] counts = new int[readDepth];
+			for(int i=0; i<readDepth; i++) {
+				counts[i] = orderCounts.get(i);
+			}
+
+			BackoffStorageBuilder builder = storageType.newBuilder(counts[0], counts);
+			int order = 1;
+			while(!(line = br.readLine()).equals("\\end\\")) {
+				if(line.endsWith("-grams:")) {
+					order = Integer.parseInt(line.substring(1, line.indexOf('-')));
+				} else if(!line.trim().isEmpty() && order <= readDepth) {
+					String [] tok = line.trim().split("\\s+");
+					int [] ids = new int[order];
+					for(int i=0; i<order; i++) {
+						ids[i] = vocabulary.addId(tok[i+1]);
+					}
+					double backoff = Double.NaN;
+					if(order < readDepth) {
+						backoff = tok.length == order + 2 ? Double.parseDouble(tok[order+1]) : ARPAModelLoader.LOG_ZERO;
+						backoff = backoff == -99.0 ? ARPAModelLoader.LOG_ZERO : backoff;
+					}
+					builder.add(ids, Double.parseDouble(tok[0]), backoff);
+				}
+			}
+			return builder.build();
+		} finally {
+			br.close();
+		}
+	}
+
+
+	/**
+	 * Assert that a loader read the same vocabulary and ngrams as a reference.
+	 */
+	private static void assertSameModel(Vocabulary expectedVocabulary, final BackoffStorage expectedStorage, ARPAModelLoader actual) {
+		Vocabulary actualVocabulary = actual.getVocabulary();
+		assertEquals(expectedVocabulary.size(), actualVocabulary.size());
+		for(int id=0; id<expectedVocabulary.size(); id++) {
+			assertEquals(expectedVocabulary.getWord(id), actualVocabulary.getWord(id));
+		}
+
+		final BackoffStorage actualStorage = actual.getLanguageModel().getStorage();
+		assertEquals(expectedStorage.order(), actualStorage.order());
+		for(int n=1; n<=expectedStorage.order(); n++) {
+			assertEquals(expectedStorage.size(n), actualStorage.size(n));
+		}
+		expectedStorage.copyTo(new BackoffEntrySink() {
+			@Override
+			public void add(int [] ids, double logProbability, double logBackoff) {
+				assertEquals(logProbability, actualStorage.probability(ids, 0, ids.length), 0.0);
+				if(ids.length < expectedStorage.order()) {
+					assertEquals(logBackoff, actualStorage.backoff(ids, 0, ids.length), 0.0);
+				}
+			}
+		});
+	}
+
+
+	@Test
+	public void testARPAByteReader() throws IOException {
+		for(int readDepth : new int [] {-1, 2, 1}) {
+			for(BackoffStorageType storageType : new BackoffStorageType [] {BackoffStorageType.HASH_MAP, BackoffStorageType.SORTED_TRIE}) {
+				Vocabulary vocabulary = new Vocabulary();
+				BackoffStorage expected = readReference(MODEL_FILE, readDepth, storageType, vocabulary);
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(MODEL_FILE, readDepth, storageType));
+				// Small chunks, so that chunk boundaries fall inside lines and sections hold many chunks
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(MODEL_FILE, readDepth, storageType, 4, 100, null));
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(MODEL_FILE, readDepth, storageType, 3, 5, null));
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(MODEL_FILE, readDepth, storageType, 1, 7, null));
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(MODEL_FILE, readDepth, storageType, 2));
+			}
+		}
+	}
+
+
+	/**
+	 * Write a gzip-compressed copy of the test model to a temporary file.
+	 */
+	private static File gzipModel() throws IOException {
+		File gzFile = File.createTempFile("model", ".arpa.gz");
+		gzFile.deleteOnExit();
+		InputStream in = new FileInputStream(MODEL_FILE);
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(gzFile));
+		try {
+			byte [] buffer = new byte[4096];
+			int n;
+			while((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return gzFile;
+	}
+
+
+	@Test
+	public void testStreams() throws IOException {
+		File gzFile = gzipModel();
+		for(int readDepth : new int [] {-1, 2, 1}) {
+			Vocabulary vocabulary = new Vocabulary();
+			BackoffStorage expected = readReference(MODEL_FILE, readDepth, BackoffStorageType.HASH_MAP, vocabulary);
+			assertSameModel(vocabulary, expected, new ARPAModelLoader(gzFile, readDepth, BackoffStorageType.HASH_MAP));
+			assertSameModel(vocabulary, expected, new ARPAModelLoader(gzFile, readDepth, BackoffStorageType.HASH_MAP, 2));
+
+			InputStream in = new FileInputStream(MODEL_FILE);
+			try {
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(in, readDepth, BackoffStorageType.HASH_MAP, 1));
+			} finally {
+				in.close();
+			}
+			FileInputStream gzIn = new FileInputStream(gzFile);
+			try {
+				assertSameModel(vocabulary, expected, new ARPAModelLoader(gzIn.getChannel(), readDepth, BackoffStorageType.HASH_MAP, 1));
+			} finally {
+				gzIn.close();
+			}
+
+			// Small blocks, so that lines and section headers straddle blocks and long lines outgrow them
+			for(int blockBytes : new int [] {100, 7}) {
+				for(int threads : new int [] {1, 3}) {
+					in = new FileInputStream(gzFile);
+					try {
+						assertSameModel(vocabulary, expected, new ARPAModelLoader(in, readDepth, BackoffStorageType.HASH_MAP, threads, blockBytes, null));
+					} finally {
+						in.close();
+					}
+				}
+			}
+		}
+		assertEquals(ARPAModelLoader.estimateBytes(MODEL_FILE, -1, BackoffStorageType.HASH_MAP), ARPAModelLoader.estimateBytes(gzFile, -1, BackoffStorageType.HASH_MAP));
+
+		// A stream cut off before the end of the model
+		byte [] bytes = new byte[(int) MODEL_FILE.length() / 2];
+		InputStream in = new FileInputStream(MODEL_FILE);
+		try {
+			int length = 0;
+			while(length < bytes.length) {
+				length += in.read(bytes, length, bytes.length - length);
+			}
+		} finally {
+			in.close();
+		}
+		try {
+			new ARPAModelLoader(new ByteArrayInputStream(bytes), -1, BackoffStorageType.HASH_MAP, 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testLimitVocabulary() throws IOException {
+		Random rnd = new Random(0x14);
+		File gzFile = gzipModel();
+		for(BackoffStorageType storageType : new BackoffStorageType [] {BackoffStorageType.HASH_MAP, BackoffStorageType.SORTED_TRIE}) {
+			ARPAModelLoader full = new ARPAModelLoader(MODEL_FILE, -1, storageType);
+			Vocabulary fullVocabulary = full.getVocabulary();
+			Set<String> limit = new HashSet<String>();
+			limit.add("<s>");
+			limit.add("</s>");
+			limit.add("not in the model");
+			for(String word : fullVocabulary) {
+				if(rnd.nextBoolean()) {
+					limit.add(word);
+				}
+			}
+
+			// The kept ngrams are those made of limiting words, with the same values
+			final Vocabulary expectedVocabulary = new Vocabulary();
+			for(int id=0; id<fullVocabulary.size(); id++) {
+				if(limit.contains(fullVocabulary.getWord(id))) {
+					expectedVocabulary.addId(fullVocabulary.getWord(id));
+				}
+			}
+			final BackoffStorage fullStorage = full.getLanguageModel().getStorage();
+			final Vocabulary fullWords = fullVocabulary;
+			final BackoffStorageBuilder expectedBuilder = BackoffStorageType.HASH_MAP.newBuilder(expectedVocabulary.size(), new int[fullStorage.order()]);
+			fullStorage.copyTo(new BackoffEntrySink() {
+				@Override
+				public void add(int [] ids, double logProbability, double logBackoff) {
+					int [] kept = new int[ids.length];
+					for(int i=0; i<ids.length; i++) {
+						kept[i] = expectedVocabulary.getId(fullWords.getWord(ids[i]));
+						if(kept[i] == Vocabulary.UNKNOWN_ID) {
+							return;
+						}
+					}
+					expectedBuilder.add(kept, logProbability, logBackoff);
+				}
+			});
+			BackoffStorage expected = storageType.copy(expectedBuilder.build(), expectedVocabulary.size());
+
+			List<ARPAModelLoader> limited = new ArrayList<ARPAModelLoader>();
+			limited.add(new ARPAModelLoader(MODEL_FILE, -1, storageType, 1, limit));
+			limited.add(new ARPAModelLoader(MODEL_FILE, -1, storageType, 3, 100, limit));
+			InputStream in = new FileInputStream(gzFile);
+			try {
+				limited.add(new ARPAModelLoader(in, -1, storageType, 2, 50, limit));
+			} finally {
+				in.close();
+			}
+			List<String> words = new ArrayList<String>(expectedVocabulary);
+			for(ARPAModelLoader actual : limited) {
+				assertSameModel(expectedVocabulary, expected, actual);
+				assertTrue(actual.getLanguageModel().getStorage().size(2) < fullStorage.size(2));
+
+				// Sentences of limiting words score as they do in the whole model
+				for(int i=0; i<200; i++) {
+					List<String> sentence = new ArrayList<String>();
+					sentence.add("<s>");
+					for(int j=rnd.nextInt(8); j>=0; j--) {
+						sentence.add(words.get(rnd.nextInt(words.size())));
+					}
+					sentence.add("</s>");
+					assertEquals(sentence.toString(), full.getLanguageModel().logProbability(sentence), actual.getLanguageModel().logProbability(sentence), 0.0);
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void testBackgroundLoading() throws IOException, InterruptedException {
+		// The lower orders are copied into the whole model, which must match a direct read for every storage type, including the quantized ones
+		File gzFile = gzipModel();
+		for(BackoffStorageType storageType : BackoffStorageType.values()) {
+			Vocabulary vocabulary = new Vocabulary();
+			BackoffStorage expected = readReference(MODEL_FILE, -1, storageType, vocabulary);
+			for(File modelFile : new File [] {MODEL_FILE, gzFile}) {
+				for(int immediateDepth : new int [] {1, 2}) {
+					ARPAModelLoader loader = ARPAModelLoader.loadInBackground(modelFile, -1, storageType, 2, immediateDepth);
+					assertEquals(3, loader.getLanguageModel().order());
+					loader.awaitFullyLoaded();
+					assertTrue(loader.isFullyLoaded());
+					assertSameModel(vocabulary, expected, loader);
+				}
+			}
+		}
+
+		// Nothing left to load in the background
+		ARPAModelLoader loader = ARPAModelLoader.loadInBackground(MODEL_FILE, 2, BackoffStorageType.SORTED_TRIE, 1, 2);
+		assertTrue(loader.isFullyLoaded());
+		assertEquals(2, loader.getLanguageModel().order());
+	}
+
+
+	@Test
+	public void testBackgroundLoadingUnknownWord() throws IOException, InterruptedException {
+		// A bigram holding a word that is not among the unigrams fails the background load and leaves the vocabulary of the unigrams alone
+		File modelFile = File.createTempFile("model", ".arpa");
+		modelFile.deleteOnExit();
+		OutputStream out = new FileOutputStream(modelFile);
+		try {
+			out.write(("\\data\\\nngram 1=2\nngram 2=1\n\n"
+					+ "\\1-grams:\n-0.3\ta\t-0.1\n-0.3\tb\t-0.1\n\n"
+					+ "\\2-grams:\n-0.2\ta c\n\n"
+					+ "\\end\\\n").getBytes());
+		} finally {
+			out.close();
+		}
+
+		ARPAModelLoader loader = ARPAModelLoader.loadInBackground(modelFile, -1, BackoffStorageType.HASH_MAP, 1, 1);
+		try {
+			loader.awaitFullyLoaded();
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertFalse(loader.isFullyLoaded());
+		assertEquals(2, loader.getVocabulary().size());
+		assertEquals(0, loader.getLanguageModel().getStorage().size(2));
+	}
+
+
+	@Test
+	public void testEstimateBytes() throws IOException {
+		BackoffStorage reference = readReference(MODEL_FILE, -1, BackoffStorageType.HASH_MAP, new Vocabulary());
+		int [] orderCounts = new ARPAByteReader(MODEL_FILE, 1, 100).readDeclaredCounts(-1);
+		assertEquals(reference.order(), orderCounts.length);
+		for(int n=1; n<=orderCounts.length; n++) {
+			assertEquals(reference.size(n), orderCounts[n-1]);
+		}
+		assertEquals(2, new ARPAByteReader(MODEL_FILE, 1, 100).readDeclaredCounts(2).length);
+
+		for(BackoffStorageType storageType : BackoffStorageType.values()) {
+			long bigram = ARPAModelLoader.estimateBytes(MODEL_FILE, 2, storageType);
+			long trigram = ARPAModelLoader.estimateBytes(MODEL_FILE, -1, storageType);
+			assertTrue(storageType.name(), bigram > 0);
+			assertTrue(storageType.name(), trigram > bigram);
+		}
+		long hashMap = ARPAModelLoader.estimateBytes(MODEL_FILE, -1, BackoffStorageType.HASH_MAP);
+		long trie = ARPAModelLoader.estimateBytes(MODEL_FILE, -1, BackoffStorageType.SORTED_TRIE);
+		assertTrue(hashMap > trie);
+
+		try {
+			ARPAModelLoader.estimateBytes(new File("testData/languageModels/missing.lm.arpa"), -1, BackoffStorageType.HASH_MAP);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testParseDouble() {
+		Random rnd = new Random(0x42);
+		List<String> numbers = new ArrayList<String>();
+		for(String n : new String [] {"-99", "0", "-0", "-0.0", "+1.5", "1e-05", "-2.5E+3", "0.000123", "007", "1.", ".5", "12345678901234567890", "1e400", "1e-400", "-Infinity", "NaN", "0x1p3"}) {
+			numbers.add(n);
+		}
+		for(int i=0; i<100000; i++) {
+			numbers.add(String.format("%." + rnd.nextInt(12) + "f", -rnd.nextDouble() * Math.pow(10, rnd.nextInt(6))));
+			numbers.add(Double.toString(-rnd.nextDouble() * Math.pow(10, rnd.nextInt(40) - 20)));
+		}
+		for(String n : numbers) {
+			ByteBuffer buffer = ByteBuffer.wrap(("\t" + n + " ").getBytes());
+			assertEquals(n, Double.doubleToRawLongBits(Double.parseDouble(n)), Double.doubleToRawLongBits(ARPAByteReader.parseDouble(buffer, 1, buffer.limit()-1)));
+		}
+		for(String n : new String [] {"", "-", "1e", "1.2.3", "abc", "1-"}) {
+			ByteBuffer buffer = ByteBuffer.wrap(n.getBytes());
+			try {
+				ARPAByteReader.parseDouble(buffer, 0, buffer.limit());
+				fail(n);
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
 }
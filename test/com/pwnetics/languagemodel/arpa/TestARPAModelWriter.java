@@ -0,0 +1,109 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.arpa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+import com.pwnetics.languagemodel.lm.KneserNeyModFixModel2;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorage;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+import com.pwnetics.languagemodel.tokenizer.WhitespaceTokenizer;
+
+
+/**
+ * Round-trips models through the ARPA format.
+ * @author romanows
+ */
+public class TestARPAModelWriter {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+
+	/**
+	 * Assert that two models hold the same ngrams and values, matching word ids through the words they stand for.
+	 */
+	private static void assertSameModel(final BackoffLanguageModel expected, BackoffLanguageModel actual, final double delta) {
+		final Vocabulary expectedVocabulary = expected.getVocabulary();
+		final Vocabulary actualVocabulary = actual.getVocabulary();
+		assertEquals(expectedVocabulary.size(), actualVocabulary.size());
+
+		final BackoffStorage expectedStorage = expected.getStorage();
+		final BackoffStorage actualStorage = actual.getStorage();
+		assertEquals(expectedStorage.order(), actualStorage.order());
+		for(int n=1; n<=expectedStorage.order(); n++) {
+			assertEquals(expectedStorage.size(n), actualStorage.size(n));
+		}
+		expectedStorage.copyTo(new BackoffEntrySink() {
+			@Override
+			public void add(int [] ids, double logProbability, double logBackoff) {
+				int [] actualIds = new int[ids.length];
+				for(int i=0; i<ids.length; i++) {
+					actualIds[i] = actualVocabulary.getId(expectedVocabulary.getWord(ids[i]));
+				}
+				assertEquals(logProbability, actualStorage.probability(actualIds, 0, actualIds.length), delta);
+				if(ids.length < expectedStorage.order()) {
+					assertEquals(logBackoff, actualStorage.backoff(actualIds, 0, actualIds.length), delta);
+				}
+			}
+		});
+	}
+
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for(BackoffStorageType storageType : new BackoffStorageType [] {BackoffStorageType.HASH_MAP, BackoffStorageType.SORTED_TRIE}) {
+			BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE, -1, storageType).getLanguageModel();
+			for(String suffix : new String [] {".arpa", ".arpa.gz"}) {
+				File arpaFile = File.createTempFile("TestARPAModelWriter", suffix);
+				arpaFile.deleteOnExit();
+				ARPAModelWriter.write(lm, arpaFile);
+				assertSameModel(lm, new ARPAModelLoader(arpaFile, -1, storageType).getLanguageModel(), 0.0);
+			}
+		}
+	}
+
+
+	@Test
+	public void testKneserNey() throws IOException {
+		KneserNeyModFixModel2 kn = KneserNeyModFixModel2.train(3, 10, new WhitespaceTokenizer(new File("testData/trainingText/brown.sentences.nltk.test.txt")), "<s>");
+		File arpaFile = File.createTempFile("TestARPAModelWriter", ".arpa");
+		arpaFile.deleteOnExit();
+		ARPAModelWriter.write(kn, arpaFile);
+		assertSameModel(kn.calcBackoff(), new ARPAModelLoader(arpaFile).getLanguageModel(), 1e-12);
+	}
+}
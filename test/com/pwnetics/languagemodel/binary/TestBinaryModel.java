@@ -0,0 +1,137 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.binary;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.TestFixtures;
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+
+
+/**
+ * Round-trips a model through the binary model format.
+ * @author romanows
+ */
+public class TestBinaryModel {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BackoffLanguageModel hashLm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		BackoffLanguageModel trieLm = new ARPAModelLoader(MODEL_FILE, -1, BackoffStorageType.SORTED_TRIE).getLanguageModel();
+
+		File binaryFile = File.createTempFile("TestBinaryModel", ".bin");
+		binaryFile.deleteOnExit();
+		BinaryModelWriter.write(hashLm, binaryFile);
+		BinaryModelLoader bml = new BinaryModelLoader(binaryFile);
+		BackoffLanguageModel lm = bml.getLanguageModel();
+
+		Vocabulary vocabulary = hashLm.getVocabulary();
+		assertEquals(vocabulary.size(), bml.getVocabulary().size());
+		for(int id=0; id<vocabulary.size(); id++) {
+			assertEquals(vocabulary.getWord(id), bml.getVocabulary().getWord(id));
+		}
+		assertEquals(hashLm.order(), lm.order());
+		assertEquals(hashLm.logBase(), lm.logBase(), 0.0);
+		assertEquals(hashLm.size(), lm.size());
+
+		for(List<String> sentence : TestFixtures.randomSentences(vocabulary, 1000, 0x42)) {
+			assertEquals(trieLm.logProbability(sentence), lm.logProbability(sentence), 0.0);
+			assertEquals(hashLm.logProbability(sentence), lm.logProbability(sentence), 1e-5);
+		}
+	}
+
+
+	@Test
+	public void testQuantizedRoundTrip() throws IOException {
+		for(BackoffStorageType storageType : new BackoffStorageType[] {BackoffStorageType.QUANTIZED_TRIE_8, BackoffStorageType.QUANTIZED_TRIE_16}) {
+			BackoffLanguageModel quantizedLm = new ARPAModelLoader(MODEL_FILE, -1, storageType).getLanguageModel();
+			File binaryFile = File.createTempFile("TestBinaryModel", ".bin");
+			binaryFile.deleteOnExit();
+			BinaryModelWriter.write(quantizedLm, binaryFile);
+			BackoffLanguageModel lm = new BinaryModelLoader(binaryFile).getLanguageModel();
+			assertEquals(quantizedLm.size(), lm.size());
+
+			for(List<String> sentence : TestFixtures.randomSentences(quantizedLm.getVocabulary(), 1000, 0x42)) {
+				assertEquals(quantizedLm.logProbability(sentence), lm.logProbability(sentence), 0.0);
+			}
+		}
+	}
+
+
+	@Test
+	public void testEmptyHighestOrderRoundTrip() throws IOException {
+		// The columns of an empty highest order end the file, so a float column there is only its header
+		File modelFile = File.createTempFile("TestBinaryModel", ".arpa");
+		modelFile.deleteOnExit();
+		FileWriter fw = new FileWriter(modelFile);
+		fw.write("\\data\\\nngram 1=3\nngram 2=0\n\n"
+				+ "\\1-grams:\n-1.0\t<s>\t-0.5\n-0.5\ta\t-0.3\n-0.7\t</s>\n\n"
+				+ "\\2-grams:\n\n"
+				+ "\\end\\\n");
+		fw.close();
+
+		for(BackoffStorageType storageType : BackoffStorageType.values()) {
+			BackoffLanguageModel arpaLm = new ARPAModelLoader(modelFile, -1, storageType).getLanguageModel();
+			File binaryFile = File.createTempFile("TestBinaryModel", ".bin");
+			binaryFile.deleteOnExit();
+			BinaryModelWriter.write(arpaLm, binaryFile);
+			BackoffLanguageModel lm = new BinaryModelLoader(binaryFile).getLanguageModel();
+			assertEquals(arpaLm.order(), lm.order());
+			assertEquals(arpaLm.size(), lm.size());
+
+			List<String> sentence = Arrays.asList("<s>", "a", "a", "</s>");
+			assertEquals(arpaLm.logProbability(sentence), lm.logProbability(sentence), 1e-5);
+		}
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNotBinaryModel() throws IOException {
+		File textFile = File.createTempFile("TestBinaryModel", ".txt");
+		textFile.deleteOnExit();
+		FileWriter fw = new FileWriter(textFile);
+		fw.write("\\data\\\nngram 1=1\n\n\\1-grams:\n-1.0\ta\n\n\\end\\\n");
+		fw.close();
+		new BinaryModelLoader(textFile);
+	}
+}
@@ -29,6 +29,8 @@ authors.
 package com.pwnetics.languagemodel.lm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -37,16 +39,28 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import com.pwnetics.helper.ItemCounter;
 import com.pwnetics.languagemodel.PerplexityMetric;
+import com.pwnetics.languagemodel.Vocabulary;
 import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.storage.BackoffEntrySink;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+import com.pwnetics.languagemodel.lm.storage.TrieBackoffStorage;
 import com.pwnetics.languagemodel.ngram.AbstractNGram;
 import com.pwnetics.languagemodel.ngram.Bigram;
 import com.pwnetics.languagemodel.ngram.Trigram;
 import com.pwnetics.languagemodel.ngram.Unigram;
+import com.pwnetics.languagemodel.ngram.WordIdNGram;
+import com.pwnetics.languagemodel.tokenizer.WhitespaceTokenizer;
 
 public class TestKneserNeyModFixModel {
 
@@ -129,7 +143,7 @@ public class TestKneserNeyModFixModel {
 	}
 
 
-	private KneserNeyModFixModel2 trainTrigram(List<List<String>> referenceSentenceList) {
+	private List<ItemCounter<AbstractNGram>> countTrigrams(List<List<String>> referenceSentenceList) {
 		ItemCounter<AbstractNGram> unigramCounter = new ItemCounter<AbstractNGram>();
 		ItemCounter<AbstractNGram> bigramCounter = new ItemCounter<AbstractNGram>();
 		ItemCounter<AbstractNGram> trigramCounter = new ItemCounter<AbstractNGram>();
@@ -148,7 +162,172 @@ public class TestKneserNeyModFixModel {
 		orderToNGramCounter.add(unigramCounter);
 		orderToNGramCounter.add(bigramCounter);
 		orderToNGramCounter.add(trigramCounter);
-		return new KneserNeyModFixModel2(3, 10, orderToNGramCounter);
+		return orderToNGramCounter;
+	}
+
+
+	private KneserNeyModFixModel2 trainTrigram(List<List<String>> referenceSentenceList) {
+		return new KneserNeyModFixModel2(3, 10, countTrigrams(referenceSentenceList));
+	}
+
+
+	@Test
+	public void testBackoffBigramTrie() throws IOException {
+		// Same as testBackoffBigram, but the backoff model is held in a trie with float values
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 1000);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainBigram(trainSentenceList);
+		BackoffLanguageModel blm = lm.calcBackoff(BackoffStorageType.SORTED_TRIE);
+		assertTrue(blm.getStorage() instanceof TrieBackoffStorage);
+
+		List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt"));
+
+		PerplexityMetric ppTrain = new PerplexityMetric(trainSentenceList);
+		PerplexityMetric ppTest = new PerplexityMetric(testSentenceList);
+		assertEquals(ppTrain.score(blm).perplexity, ppTrain.score(lm).perplexity, 0.0001);
+		assertEquals(ppTest.score(blm).perplexity, ppTest.score(lm).perplexity, 0.0001);
+	}
+
+
+	@Test
+	public void testBackoffBigramQuantized() throws IOException {
+		// Perplexity cost of quantizing the values of the backoff model
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 1000);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainBigram(trainSentenceList);
+		BackoffLanguageModel blm = lm.calcBackoff();
+		BackoffLanguageModel blm16 = lm.calcBackoff(BackoffStorageType.QUANTIZED_TRIE_16);
+		BackoffLanguageModel blm8 = lm.calcBackoff(BackoffStorageType.QUANTIZED_TRIE_8);
+
+		List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt"));
+		PerplexityMetric ppTest = new PerplexityMetric(testSentenceList);
+		double pp = ppTest.score(blm).perplexity;
+		double pp16 = ppTest.score(blm16).perplexity;
+		double pp8 = ppTest.score(blm8).perplexity;
+
+		System.out.println("Quantized Backoff Bigram, Testing PP: " + pp + "\t16-bit PP: " + pp16 + " (" + (pp16 - pp) + ")\t8-bit PP: " + pp8 + " (" + (pp8 - pp) + ")");
+		assertEquals(pp, pp16, pp * 0.0001);
+		assertEquals(pp, pp8, pp * 0.03);
+	}
+
+
+	@Test
+	public void testScoreNextTrigram() throws IOException {
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 200);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+
+		List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt"));
+		for(List<String> sentence : testSentenceList.subList(0, 100)) {
+			assertEquals(lm.logProbability(sentence), TestStatefulLanguageModel.scoreSentence(lm, sentence, false), 0.0);
+		}
+	}
+
+
+	@Test
+	public void testScoreNextReusesHistories() throws IOException {
+		// A state looks its context's histories up once; extending it scores every word from the cached histories
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 200);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+
+		List<String> sentence = trainSentenceList.get(0);
+		int [] context = lm.getVocabulary().getIds(sentence.subList(0, 2));
+		LanguageModelState state = lm.newState(context);
+		assertTrue(state.contextHistories[0] >= 0);
+		assertTrue(state.contextHistories[1] >= 0);
+
+		LanguageModelState next = lm.newState();
+		for(int wordId=0; wordId<lm.getVocabulary().size(); wordId++) {
+			double expected = lm.logProbability(new WordIdNGram(new int [] {context[0], context[1], wordId}));
+			assertEquals(expected, lm.scoreNext(state, wordId, next), 0.0);
+		}
+
+		// No suffix of a context ending in an OOV word is a history, so scoring falls back to the unigrams
+		state = lm.newState(context[0], Vocabulary.UNKNOWN_ID);
+		assertEquals(-1, state.contextHistories[0]);
+		assertEquals(-1, state.contextHistories[1]);
+		for(int wordId=0; wordId<lm.getVocabulary().size(); wordId++) {
+			double expected = lm.logProbability(new WordIdNGram(new int [] {wordId}));
+			assertEquals(expected, lm.scoreNext(state, wordId, next), 0.0);
+		}
+
+		// The cached histories are another model's ids, so a state filled in by another model is refused
+		KneserNeyModFixModel2 other = trainTrigram(trainSentenceList.subList(0, 100));
+		try {
+			lm.scoreNext(other.newState(context), 0, next);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testConcurrentQueries() throws Exception {
+		// Many threads querying one model at once must get exactly the single-threaded results
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 1000);  System.err.println("WARNING: training a small model");
+		final KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+
+		final List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt")).subList(0, 500);
+		final double [] expected = new double[testSentenceList.size()];
+		for(int i=0; i<expected.length; i++) {
+			expected[i] = lm.logProbability(testSentenceList.get(i));
+		}
+
+		int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> mismatches = new ArrayList<Future<Integer>>();
+			for(int t=0; t<threads; t++) {
+				final Random rnd = new Random(t);
+				mismatches.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws InterruptedException {
+						start.await();
+						int count = 0;
+						for(int r=0; r<10*expected.length; r++) {
+							int i = rnd.nextInt(expected.length);
+							List<String> sentence = testSentenceList.get(i);
+							double actual = r % 2 == 0 ? lm.logProbability(sentence) : TestStatefulLanguageModel.scoreSentence(lm, sentence, false);
+							if(Double.doubleToLongBits(actual) != Double.doubleToLongBits(expected[i])) {
+								count++;
+							}
+						}
+						return count;
+					}
+				}));
+			}
+			start.countDown();
+			for(Future<Integer> count : mismatches) {
+				assertEquals(0, count.get().intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		double [] actual = lm.logProbabilities(testSentenceList, threads);
+		for(int i=0; i<expected.length; i++) {
+			assertEquals(expected[i], actual[i], 0.0);
+		}
+	}
+
+
+	@Test
+	public void testLogProbabilitiesTrigram() throws IOException {
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 200);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+
+		// Scores of sentences spread over several threads equal the sentences scored one at a time
+		List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt")).subList(0, 500);
+		double [] logProbs = lm.logProbabilities(testSentenceList, 4);
+		assertEquals(testSentenceList.size(), logProbs.length);
+		for(int i=0; i<logProbs.length; i++) {
+			assertEquals(lm.logProbability(testSentenceList.get(i)), logProbs[i], 0.0);
+		}
 	}
 
 
@@ -195,6 +374,107 @@ public class TestKneserNeyModFixModel {
 	}
 
 
+	/**
+	 * Record the ngrams and values that the backoff conversion adds, in the order they are added.
+	 */
+	private static List<String> addedNGrams(KneserNeyModFixModel2 lm, int threads) {
+		final List<String> added = new ArrayList<String>();
+		lm.calcBackoff(new BackoffEntrySink() {
+			@Override
+			public void add(int [] ids, double logProbability, double logBackoff) {
+				added.add(Arrays.toString(ids) + " " + Double.doubleToRawLongBits(logProbability) + " " + Double.doubleToRawLongBits(logBackoff));
+			}
+		}, threads);
+		return added;
+	}
+
+
+	@Test
+	public void testBackoffThreads() throws IOException {
+		// The backoff model must be bit-identical for any number of estimating threads
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 1000);  System.err.println("WARNING: training a small model");
+		KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+		List<String> expected = addedNGrams(lm, 1);
+		assertEquals(lm.orderCounts()[0] + lm.orderCounts()[1] + lm.orderCounts()[2], expected.size());
+		for(int threads : new int [] {2, 3, 8}) {
+			assertEquals(expected, addedNGrams(lm, threads));
+		}
+	}
+
+
+	@Test
+	public void testBackoffBottomUp() throws IOException {
+		// Probabilities estimated order by order must match the recursive estimate of every held ngram
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		trainSentenceList = trainSentenceList.subList(0, 1000);  System.err.println("WARNING: training a small model");
+		final KneserNeyModFixModel2 lm = trainTrigram(trainSentenceList);
+		lm.calcBackoff(new BackoffEntrySink() {
+			@Override
+			public void add(int [] ids, double logProbability, double logBackoff) {
+				assertEquals(lm.logProbability(new WordIdNGram(ids)), logProbability, 1e-12);
+			}
+		});
+	}
+
+
+	@Test
+	public void testHistoryCounts() throws IOException {
+		// The denominators and Nc's precomputed per history must match those summed naively over the ngrams that extend each history
+		List<List<String>> trainSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.train.txt"));
+		List<ItemCounter<AbstractNGram>> orderToNGramCounter = countTrigrams(trainSentenceList);
+		KneserNeyModFixModel2 lm = new KneserNeyModFixModel2(3, 10, orderToNGramCounter);
+
+		for(int i=1; i<orderToNGramCounter.size(); i++) {
+			ItemCounter<AbstractNGram> den = new ItemCounter<AbstractNGram>();
+			List<ItemCounter<AbstractNGram>> nc = new ArrayList<ItemCounter<AbstractNGram>>();
+			for(int c=0; c<3; c++) {
+				nc.add(new ItemCounter<AbstractNGram>());
+			}
+			ItemCounter<AbstractNGram> counter = orderToNGramCounter.get(i);
+			for(AbstractNGram ngram : counter.getItems()) {
+				int count = counter.get(ngram);
+				den.set(ngram.history(), (den.get(ngram.history()) == null ? 0 : den.get(ngram.history())) + count);
+				nc.get(Math.min(count, 3) - 1).increment(ngram.history());
+			}
+
+			for(AbstractNGram history : den.getItems()) {
+				WordIdNGram ids = new WordIdNGram(lm.getVocabulary().getIds(history));
+				assertEquals(history.toString(), den.get(history).longValue(), lm.historyDen(ids));
+				for(int c=1; c<=3; c++) {
+					Integer expected = nc.get(c-1).get(history);
+					assertEquals(history.toString(), expected == null ? 0 : expected.intValue(), lm.historyNc(ids, c));
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void testTrain() throws IOException {
+		// Streaming the training file through the counting pipeline gives the model of the hand-counted sentences
+		File trainFile = new File("testData/trainingText/brown.sentences.nltk.train.txt");
+		List<List<String>> trainSentenceList = readSentences(trainFile);
+		List<List<String>> testSentenceList = readSentences(new File("testData/trainingText/brown.sentences.nltk.test.txt")).subList(0, 500);
+
+		KneserNeyModFixModel2 expected = trainBigram(trainSentenceList);
+		KneserNeyModFixModel2 lm = KneserNeyModFixModel2.train(2, 10, new WhitespaceTokenizer(trainFile), "<s>");
+		assertEquals(Arrays.toString(expected.orderCounts()), Arrays.toString(lm.orderCounts()));
+		for(List<String> sentence : testSentenceList) {
+			assertEquals(expected.logProbability(sentence), lm.logProbability(sentence), 1e-12);
+		}
+
+		expected = trainTrigram(trainSentenceList);
+		for(int threads : new int [] {1, 3}) {
+			lm = threads == 1 ? KneserNeyModFixModel2.train(3, 10, new WhitespaceTokenizer(trainFile), "<s>") : KneserNeyModFixModel2.train(3, 10, new WhitespaceTokenizer(trainFile), "<s>", threads);
+			assertEquals(Arrays.toString(expected.orderCounts()), Arrays.toString(lm.orderCounts()));
+			for(List<String> sentence : testSentenceList) {
+				assertEquals(expected.logProbability(sentence), lm.logProbability(sentence), 1e-12);
+			}
+		}
+	}
+
+
 	@Test
 	public void testLogProbabilityUnigram() {
 		// Test unigram estimation (verify on paper and with SRILM)
@@ -0,0 +1,163 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+
+package com.pwnetics.languagemodel.lm;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.PerplexityMetric;
+import com.pwnetics.languagemodel.TestFixtures;
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+import com.pwnetics.languagemodel.tokenizer.WhitespaceTokenizer;
+
+
+/**
+ * Checks that steady-state sentence scoring does not allocate per token.
+ * Allocation is measured with the per-thread allocated byte counter of the HotSpot {@link com.sun.management.ThreadMXBean};
+ * the tests are skipped on JVMs that do not provide it.
+ * @author romanows
+ */
+public class TestScoringAllocation {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+	private static final File TRAINING_FILE = new File("testData/trainingText/brown.sentences.nltk.train.txt");
+
+	/** Passes over the sentences before measuring, so that the scoring code is compiled */
+	private static final int WARMUP_PASSES = 20;
+
+	/** Allowance for the few objects allocated once per call or by the measurement itself */
+	private static final long SLACK_BYTES = 4096;
+
+
+	/**
+	 * @return the allocation counter for the current thread, or null if this JVM does not provide one
+	 */
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)bean;
+		if(!counter.isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		counter.setThreadAllocatedMemoryEnabled(true);
+		return counter;
+	}
+
+
+	private static int countTokens(List<List<String>> sentences) {
+		int tokens = 0;
+		for(List<String> sentence : sentences) {
+			tokens += sentence.size();
+		}
+		return tokens;
+	}
+
+
+	/**
+	 * @return the models whose scoring is measured: a backoff model in each storage type, and a Kneser-Ney model
+	 */
+	private static List<AbstractNGramLanguageModel> models() throws IOException {
+		List<AbstractNGramLanguageModel> models = new ArrayList<AbstractNGramLanguageModel>();
+		for(BackoffStorageType storageType : BackoffStorageType.values()) {
+			models.add(new ARPAModelLoader(MODEL_FILE, -1, storageType).getLanguageModel());
+		}
+		models.add(KneserNeyModFixModel2.train(3, 10, new WhitespaceTokenizer(TRAINING_FILE), "<s>"));
+		return models;
+	}
+
+
+	private static String describe(AbstractNGramLanguageModel lm) {
+		if(lm instanceof BackoffLanguageModel) {
+			return ((BackoffLanguageModel)lm).getStorage().getClass().getSimpleName();
+		}
+		return lm.getClass().getSimpleName();
+	}
+
+
+	@Test
+	public void testLogProbabilityAllocation() throws IOException {
+		com.sun.management.ThreadMXBean counter = allocationCounter();
+		Assume.assumeTrue(counter != null);
+		long threadId = Thread.currentThread().getId();
+
+		for(AbstractNGramLanguageModel lm : models()) {
+			List<List<String>> sentences = TestFixtures.randomSentences(((StatefulLanguageModel)lm).getVocabulary(), 1000, 0x42, 50);
+
+			double sum = 0.0;
+			for(int pass=0; pass<WARMUP_PASSES; pass++) {
+				for(int i=0; i<sentences.size(); i++) {
+					sum += lm.logProbability(sentences.get(i));
+				}
+			}
+
+			long before = counter.getThreadAllocatedBytes(threadId);
+			for(int i=0; i<sentences.size(); i++) {
+				sum += lm.logProbability(sentences.get(i));
+			}
+			long allocated = counter.getThreadAllocatedBytes(threadId) - before;
+			assertTrue(describe(lm) + " allocated " + allocated + " bytes scoring " + countTokens(sentences) + " tokens (" + sum + ")", allocated < SLACK_BYTES);
+		}
+	}
+
+
+	@Test
+	public void testPerplexityAllocation() throws IOException {
+		com.sun.management.ThreadMXBean counter = allocationCounter();
+		Assume.assumeTrue(counter != null);
+		long threadId = Thread.currentThread().getId();
+
+		for(AbstractNGramLanguageModel lm : models()) {
+			List<List<String>> sentences = TestFixtures.randomSentences(((StatefulLanguageModel)lm).getVocabulary(), 1000, 0x42, 50);
+			PerplexityMetric pp = new PerplexityMetric(sentences);
+
+			double sum = 0.0;
+			for(int pass=0; pass<WARMUP_PASSES; pass++) {
+				sum += pp.score(lm).perplexity;
+			}
+
+			long before = counter.getThreadAllocatedBytes(threadId);
+			sum += pp.score(lm).perplexity;
+			long allocated = counter.getThreadAllocatedBytes(threadId) - before;
+			assertTrue(describe(lm) + " allocated " + allocated + " bytes scoring " + countTokens(sentences) + " tokens (" + sum + ")", allocated < SLACK_BYTES);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.TestFixtures;
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.storage.BackoffStorageType;
+
+
+/**
+ * Checks that scoring word by word through {@link LanguageModelState}s matches scoring whole sentences.
+ * @author romanows
+ */
+public class TestStatefulLanguageModel {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+
+	/**
+	 * Score a sentence word by word.
+	 * @param inPlace whether to overwrite the current state with the next state rather than swapping between two states
+	 */
+	static double scoreSentence(StatefulLanguageModel lm, List<String> sentence, boolean inPlace) {
+		Vocabulary vocabulary = lm.getVocabulary();
+		LanguageModelState state = lm.newState(vocabulary.getId(sentence.get(0)));
+		LanguageModelState next = inPlace ? state : lm.newState();
+		double logProb = 0.0;
+		for(int i=1; i<sentence.size(); i++) {
+			logProb += lm.scoreNext(state, vocabulary.getId(sentence.get(i)), next);
+			LanguageModelState t = state;
+			state = next;
+			next = t;
+		}
+		return logProb;
+	}
+
+
+	/**
+	 * Score a sentence one sliding ngram window at a time, without states.
+	 */
+	static double scoreWindows(BackoffLanguageModel lm, List<String> sentence) {
+		int [] ids = lm.getVocabulary().getIds(sentence);
+		double logProb = 0.0;
+		for(int i=1; i<ids.length; i++) {
+			int start = Math.max(0, i - lm.order() + 1);
+			logProb += lm.logProbability(ids, start, i - start + 1);
+		}
+		return logProb;
+	}
+
+
+	@Test
+	public void testBackoffScoreNext() {
+		for(BackoffStorageType storageType : BackoffStorageType.values()) {
+			BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE, -1, storageType).getLanguageModel();
+			for(List<String> sentence : TestFixtures.randomSentences(lm.getVocabulary(), 1000, 0x42, 50)) {
+				double expected = scoreWindows(lm, sentence);
+				assertEquals(expected, lm.logProbability(sentence), 0.0);
+				assertEquals(expected, scoreSentence(lm, sentence, false), 0.0);
+				assertEquals(expected, scoreSentence(lm, sentence, true), 0.0);
+			}
+		}
+	}
+
+
+	@Test
+	public void testBackoffScoreNextBigram() {
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE, 2).getLanguageModel();
+		for(List<String> sentence : TestFixtures.randomSentences(lm.getVocabulary(), 1000, 0x42, 50)) {
+			assertEquals(scoreWindows(lm, sentence), lm.logProbability(sentence), 0.0);
+			assertEquals(scoreWindows(lm, sentence), scoreSentence(lm, sentence, false), 0.0);
+		}
+	}
+
+
+	@Test
+	public void testLinkedListSentences() {
+		// Sentences that are not random-access lists score the same, on the stateful path and on the ngram-by-ngram path of the base class
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		AbstractNGramLanguageModel ngramOnly = TestFixtures.ngramOnly(lm);
+		List<List<String>> sentences = new LinkedList<List<String>>();
+		for(List<String> sentence : TestFixtures.randomSentences(lm.getVocabulary(), 200, 0x42, 50)) {
+			List<String> linked = new LinkedList<String>(sentence);
+			assertEquals(scoreWindows(lm, sentence), lm.logProbability(linked), 0.0);
+			assertEquals(scoreWindows(lm, sentence), ngramOnly.logProbability(linked), 0.0);
+			sentences.add(linked);
+		}
+		double [] logProbs = lm.logProbabilities(sentences, 2);
+		int i = 0;
+		for(List<String> sentence : sentences) {
+			assertEquals(lm.logProbability(sentence), logProbs[i++], 0.0);
+		}
+	}
+
+
+	@Test
+	public void testBackoffLogProbabilities() {
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE, -1, BackoffStorageType.SORTED_TRIE).getLanguageModel();
+		List<List<String>> sentences = TestFixtures.randomSentences(lm.getVocabulary(), 5000, 0x42, 50);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			double [] logProbs = lm.logProbabilities(sentences, executor);
+			assertEquals(sentences.size(), logProbs.length);
+			for(int i=0; i<logProbs.length; i++) {
+				assertEquals(scoreWindows(lm, sentences.get(i)), logProbs[i], 0.0);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(0, lm.logProbabilities(new ArrayList<List<String>>(), 2).length);
+	}
+
+
+	@Test
+	public void testStateEquality() {
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE).getLanguageModel();
+		Vocabulary vocabulary = lm.getVocabulary();
+		int s = vocabulary.getId("<s>");
+		int and = vocabulary.getId("and");
+		int a = vocabulary.getId("a");
+
+		// Different histories that share the last order-1 words are the same state
+		LanguageModelState x = lm.newState(s, and);
+		LanguageModelState y = lm.newState(a);
+		lm.scoreNext(x, a, x);
+		lm.scoreNext(y, a, y);
+		assertFalse(x.equals(y));
+		LanguageModelState z = lm.newState(and, a);
+		assertEquals(z, x);
+		assertEquals(z.hashCode(), x.hashCode());
+		assertEquals(2, x.length());
+		assertEquals(a, x.getWord(1));
+	}
+}
@@ -0,0 +1,209 @@
+/*
+Copyright 2011 Brian Romanowski. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY BRIAN ROMANOWSKI ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL BRIAN ROMANOWSKI OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors.
+*/
+
+
+package com.pwnetics.languagemodel.lm.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pwnetics.languagemodel.TestFixtures;
+import com.pwnetics.languagemodel.Vocabulary;
+import com.pwnetics.languagemodel.arpa.ARPAModelLoader;
+import com.pwnetics.languagemodel.lm.BackoffLanguageModel;
+
+
+/**
+ * Compares models loaded into the compact storage types against the same model loaded into {@link HashMapBackoffStorage}.
+ * @author romanows
+ */
+public class TestBackoffStorage {
+
+	private static final File MODEL_FILE = new File("testData/languageModels/user2020.split.training.lm.arpa");
+
+
+	/**
+	 * Build test sentences from the trigrams in an ARPA file, so that the sentences exercise every order, plus sentences of random words that mostly back off.
+	 */
+	static List<List<String>> readTestSentences(File arpaFile, Vocabulary vocabulary) throws IOException {
+		List<List<String>> sentences = new ArrayList<List<String>>();
+
+		BufferedReader br = new BufferedReader(new FileReader(arpaFile));
+		String line;
+		boolean inTrigrams = false;
+		while( (line = br.readLine()) != null ) {
+			if(line.startsWith("\\")) {
+				inTrigrams = line.equals("\\3-grams:");
+			} else if(inTrigrams && !line.trim().isEmpty()) {
+				String [] tok = line.split("\\s+");
+				List<String> sentence = new ArrayList<String>(Arrays.asList(tok).subList(1, 4));
+				sentence.add(0, "<s>");
+				sentence.add("</s>");
+				sentences.add(sentence);
+			}
+		}
+		br.close();
+
+		sentences.addAll(TestFixtures.randomSentences(vocabulary, 1000, 0x42));
+		return sentences;
+	}
+
+
+	/**
+	 * Load the test model into the given storage type and compare it to the {@link HashMapBackoffStorage} version.
+	 */
+	private static void assertSameAsHashMapStorage(BackoffStorageType storageType, Class<? extends BackoffStorage> storageClass, double tolerance) throws IOException {
+		BackoffLanguageModel hashLm = new ARPAModelLoader(MODEL_FILE, -1, BackoffStorageType.HASH_MAP).getLanguageModel();
+		BackoffLanguageModel lm = new ARPAModelLoader(MODEL_FILE, -1, storageType).getLanguageModel();
+		assertTrue(storageClass.isInstance(lm.getStorage()));
+		assertEquals(hashLm.order(), lm.order());
+		assertEquals(hashLm.size(), lm.size());
+		for(int n=1; n<=hashLm.order(); n++) {
+			assertEquals(hashLm.getStorage().size(n), lm.getStorage().size(n));
+		}
+
+		for(List<String> sentence : readTestSentences(MODEL_FILE, hashLm.getVocabulary())) {
+			assertEquals(hashLm.logProbability(sentence), lm.logProbability(sentence), tolerance);
+		}
+
+		// OOV words are not found
+		assertEquals(Double.NEGATIVE_INFINITY, lm.logProbability(Arrays.asList("<s>", "zzyzx")), 0.0);
+		assertEquals(Double.NEGATIVE_INFINITY, lm.logProbability(new int[] {Vocabulary.UNKNOWN_ID}, 0, 1), 0.0);
+	}
+
+
+	@Test
+	public void testProbingSameAsHashMapStorage() throws IOException {
+		// Float storage keeps about 7 significant digits of each value
+		assertSameAsHashMapStorage(BackoffStorageType.PROBING_HASH, ProbingBackoffStorage.class, 1e-5);
+	}
+
+
+	@Test
+	public void testTrieSameAsHashMapStorage() throws IOException {
+		assertSameAsHashMapStorage(BackoffStorageType.SORTED_TRIE, TrieBackoffStorage.class, 1e-5);
+	}
+
+
+	@Test
+	public void testQuantizedTrieSameAsHashMapStorage() throws IOException {
+		// This model has fewer than 2^16 distinct values per order, so 16-bit codebooks are lossless
+		assertSameAsHashMapStorage(BackoffStorageType.QUANTIZED_TRIE_16, TrieBackoffStorage.class, 1e-5);
+
+		// 8-bit codebooks are lossy; sentence log10-probabilities move by up to about 0.1 on this model
+		assertSameAsHashMapStorage(BackoffStorageType.QUANTIZED_TRIE_8, TrieBackoffStorage.class, 0.25);
+	}
+
+
+	@Test
+	public void testCopy() throws IOException {
+		BackoffLanguageModel probingLm = new ARPAModelLoader(MODEL_FILE, -1, BackoffStorageType.PROBING_HASH).getLanguageModel();
+		Vocabulary vocabulary = probingLm.getVocabulary();
+		BackoffLanguageModel trieLm = new BackoffLanguageModel(10.0, vocabulary, BackoffStorageType.SORTED_TRIE.copy(probingLm.getStorage(), vocabulary.size()));
+		BackoffLanguageModel hashLm = new BackoffLanguageModel(10.0, vocabulary, BackoffStorageType.HASH_MAP.copy(trieLm.getStorage(), vocabulary.size()));
+		assertEquals(probingLm.size(), trieLm.size());
+		assertEquals(probingLm.size(), hashLm.size());
+		for(List<String> sentence : readTestSentences(MODEL_FILE, vocabulary)) {
+			assertEquals(probingLm.logProbability(sentence), trieLm.logProbability(sentence), 0.0);
+			assertEquals(probingLm.logProbability(sentence), hashLm.logProbability(sentence), 0.0);
+		}
+	}
+
+
+	@Test
+	public void testLazyStorage() throws IOException {
+		BackoffLanguageModel bigramLm = new ARPAModelLoader(MODEL_FILE, 2).getLanguageModel();
+		BackoffLanguageModel trigramLm = new ARPAModelLoader(MODEL_FILE, 3).getLanguageModel();
+		Vocabulary vocabulary = bigramLm.getVocabulary();
+		LazyBackoffStorage lazy = new LazyBackoffStorage(3, bigramLm.getStorage());
+		BackoffLanguageModel lazyLm = new BackoffLanguageModel(10.0, vocabulary, lazy);
+		assertEquals(3, lazyLm.order());
+		assertEquals(2, lazy.loadedOrder());
+		assertEquals(0, lazy.size(3));
+
+		// Answers as the bigram model until the trigrams are swapped in
+		List<List<String>> sentences = readTestSentences(MODEL_FILE, vocabulary);
+		for(List<String> sentence : sentences) {
+			assertEquals(bigramLm.logProbability(sentence), lazyLm.logProbability(sentence), 0.0);
+		}
+		lazy.replace(trigramLm.getStorage());
+		assertEquals(3, lazy.loadedOrder());
+		assertEquals(trigramLm.size(), lazyLm.size());
+		for(List<String> sentence : sentences) {
+			assertEquals(trigramLm.logProbability(sentence), lazyLm.logProbability(sentence), 0.0);
+		}
+
+		try {
+			lazy.replace(bigramLm.getStorage());
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTrieMissingPrefix() {
+		BackoffStorageBuilder builder = BackoffStorageType.SORTED_TRIE.newBuilder(3, new int[] {2, 1});
+		builder.add(new int[] {0}, -0.5, -0.1);
+		builder.add(new int[] {1}, -0.5, -0.1);
+		builder.add(new int[] {2, 1}, -0.2, Double.NaN);
+		builder.build();
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testTrieDuplicateUnigram() {
+		BackoffStorageBuilder builder = BackoffStorageType.SORTED_TRIE.newBuilder(2, new int[] {2});
+		builder.add(new int[] {0}, -0.5, Double.NaN);
+		builder.add(new int[] {0}, -0.3, Double.NaN);
+		builder.build();
+	}
+
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testProbingMoreThanDeclared() {
+		// The table has room for more bigrams than declared, but the extra one is still refused
+		BackoffStorageBuilder builder = BackoffStorageType.PROBING_HASH.newBuilder(3, new int[] {3, 1});
+		builder.add(new int[] {0}, -0.5, -0.1);
+		builder.add(new int[] {1}, -0.5, -0.1);
+		builder.add(new int[] {2}, -0.5, -0.1);
+		builder.add(new int[] {0, 1}, -0.2, Double.NaN);
+		builder.add(new int[] {1, 2}, -0.2, Double.NaN);
+	}
+}
@@ -232,4 +232,29 @@ public class TestNGramHashCodeEquals {
 			}
 		}
 	}
+
+	@Test
+	public void testWordIdNGram() {
+		int [] s = new int[] {7, 3, 5};
+		int [] t = new int[] {1, 7, 3, 5, 2};
+		assertTrue(s != t);
+
+		List<WordIdNGram> ngrams = new ArrayList<WordIdNGram>();
+		ngrams.add(new WordIdNGram(s));
+		ngrams.add(new WordIdNGram(t, 1, 3));
+		ngrams.add(new WordIdNGram(new int[] {9, 7, 3, 5}).backoff());
+		ngrams.add(new WordIdNGram(new int[] {7, 3, 5, 9}).history());
+		ngrams.add(new WordIdNGram(new int[] {7, 3}).add(5));
+
+		for(WordIdNGram p : ngrams) {
+			for(WordIdNGram q : ngrams) {
+				assertTrue(p.equals(q));
+				assertTrue(p.hashCode() == q.hashCode());
+			}
+		}
+
+		// Same ids, but different order
+		assertTrue(!new WordIdNGram(s).equals(new WordIdNGram(new int[] {5, 3, 7})));
+		assertTrue(!new WordIdNGram(s).equals(new WordIdNGram(s, 0, 2)));
+	}
 }